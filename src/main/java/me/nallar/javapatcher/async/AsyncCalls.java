@@ -0,0 +1,90 @@
+package me.nallar.javapatcher.async;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.*;
+
+/**
+ * Named executors and method handles used by code added by the runAsync patch.
+ */
+public enum AsyncCalls {
+	;
+	private static final ConcurrentMap<String, AsyncExecutor> executors = new ConcurrentHashMap<>();
+
+	/**
+	 * Gets the named executor, creating it with the given settings if it doesn't exist yet
+	 *
+	 * @param name       Name of the executor
+	 * @param maxPending Maximum number of submitted calls which haven't finished
+	 * @param whenFull   What to do with calls submitted while maxPending calls are pending, see {@link AsyncExecutor.WhenFull}
+	 */
+	public static AsyncExecutor executor(String name, int maxPending, String whenFull) {
+		AsyncExecutor executor = executors.get(name);
+		if (executor == null) {
+			AsyncExecutor created = new AsyncExecutor(name, newExecutor(name), maxPending, AsyncExecutor.WhenFull.valueOf(whenFull.toUpperCase()));
+			executor = executors.putIfAbsent(name, created);
+			if (executor == null) {
+				executor = created;
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * Registers an executor to run calls submitted to the named executor, before any calls are submitted to it
+	 *
+	 * @return false if the named executor already exists
+	 */
+	public static boolean register(String name, Executor executor, int maxPending, AsyncExecutor.WhenFull whenFull) {
+		return executors.putIfAbsent(name, new AsyncExecutor(name, executor, maxPending, whenFull)) == null;
+	}
+
+	/**
+	 * Uses a virtual thread per task executor if the runtime supports them, otherwise a daemon thread pool
+	 */
+	private static Executor newExecutor(final String name) {
+		try {
+			return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException ignored) {
+		}
+		int threads = Runtime.getRuntime().availableProcessors();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private int count;
+
+			@Override
+			public synchronized Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "JavaPatcher async " + name + " #" + count++);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Looks up a method for submission to an {@link AsyncExecutor}, adapted to take the receiver
+	 * (null for static methods) and an array of arguments.
+	 *
+	 * @param lookup     Lookup with access to the method
+	 * @param owner      Class declaring the method
+	 * @param name       Name of the method
+	 * @param descriptor JVM descriptor of the method
+	 * @param isStatic   Whether the method is static
+	 */
+	public static MethodHandle handle(MethodHandles.Lookup lookup, String owner, String name, String descriptor, boolean isStatic) throws ReflectiveOperationException {
+		ClassLoader classLoader = lookup.lookupClass().getClassLoader();
+		Class<?> ownerClass = Class.forName(owner, false, classLoader);
+		MethodType methodType = MethodType.fromMethodDescriptorString(descriptor, classLoader);
+		int parameters = methodType.parameterCount();
+		MethodHandle handle;
+		if (isStatic) {
+			handle = lookup.findStatic(ownerClass, name, methodType).asSpreader(Object[].class, parameters);
+			handle = MethodHandles.dropArguments(handle, 0, Object.class);
+		} else {
+			handle = lookup.findVirtual(ownerClass, name, methodType).asSpreader(Object[].class, parameters);
+		}
+		return handle.asType(MethodType.methodType(void.class, Object.class, Object[].class));
+	}
+}
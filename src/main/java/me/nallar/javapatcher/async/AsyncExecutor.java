@@ -0,0 +1,146 @@
+package me.nallar.javapatcher.async;
+
+import me.nallar.javapatcher.PatcherLog;
+import me.nallar.javapatcher.patcher.Throw;
+
+import java.lang.invoke.MethodHandle;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs method calls submitted by code added by the runAsync patch on an executor.
+ *
+ * Limits the number of pending calls. Ordered calls with the same key run one at a time,
+ * in the order they were submitted.
+ */
+public final class AsyncExecutor {
+	private static final int LANES = 64;
+	private final String name;
+	private final Executor executor;
+	private final Semaphore permits;
+	private final WhenFull whenFull;
+	private final SerialLane[] lanes = new SerialLane[LANES];
+
+	AsyncExecutor(String name, Executor executor, int maxPending, WhenFull whenFull) {
+		this.name = name;
+		this.executor = executor;
+		this.permits = new Semaphore(maxPending);
+		this.whenFull = whenFull;
+		for (int i = 0; i < LANES; i++) {
+			lanes[i] = new SerialLane();
+		}
+	}
+
+	private boolean acquire(boolean ordered) {
+		if (permits.tryAcquire()) {
+			return true;
+		}
+		if (whenFull == WhenFull.BLOCK || (ordered && whenFull == WhenFull.INLINE)) {
+			permits.acquireUninterruptibly();
+			return true;
+		}
+		return false;
+	}
+
+	private static void invoke(MethodHandle handle, Object receiver, Object[] arguments) {
+		try {
+			handle.invokeExact(receiver, arguments);
+		} catch (Throwable t) {
+			throw Throw.sneaky(t);
+		}
+	}
+
+	/**
+	 * Runs the call on the executor. If too many calls are pending, runs it in the calling thread,
+	 * waits, or discards it, depending on the executor's {@link WhenFull} setting.
+	 */
+	public void submit(MethodHandle handle, Object receiver, Object[] arguments) {
+		if (acquire(false)) {
+			executor.execute(new AsyncCall(handle, receiver, arguments));
+		} else if (whenFull == WhenFull.INLINE) {
+			invoke(handle, receiver, arguments);
+		}
+	}
+
+	/**
+	 * Runs the call on the executor after all earlier calls submitted with an equal key.
+	 * As running inline would break the ordering, waits instead if too many calls are pending
+	 * and the executor runs calls inline when full.
+	 */
+	public void submitOrdered(MethodHandle handle, Object receiver, Object[] arguments, Object key) {
+		if (acquire(true)) {
+			int hash = key == null ? 0 : key.hashCode();
+			lanes[(hash ^ (hash >>> 16)) & (LANES - 1)].add(new AsyncCall(handle, receiver, arguments));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "AsyncExecutor " + name + " (" + whenFull + ", " + permits.availablePermits() + " permits available)";
+	}
+
+	/**
+	 * What to do with a call submitted while the maximum number of calls are pending
+	 */
+	public enum WhenFull {
+		/**
+		 * Run the call in the submitting thread
+		 */
+		INLINE,
+		/**
+		 * Wait until a pending call finishes
+		 */
+		BLOCK,
+		/**
+		 * Drop the call
+		 */
+		DISCARD
+	}
+
+	private final class AsyncCall implements Runnable {
+		private final MethodHandle handle;
+		private final Object receiver;
+		private final Object[] arguments;
+
+		AsyncCall(MethodHandle handle, Object receiver, Object[] arguments) {
+			this.handle = handle;
+			this.receiver = receiver;
+			this.arguments = arguments;
+		}
+
+		@Override
+		public void run() {
+			try {
+				handle.invokeExact(receiver, arguments);
+			} catch (Throwable t) {
+				PatcherLog.error("Exception in asynchronous call on " + name, t);
+			} finally {
+				permits.release();
+			}
+		}
+	}
+
+	private final class SerialLane implements Runnable {
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+
+		void add(Runnable task) {
+			tasks.add(task);
+			if (scheduled.compareAndSet(false, true)) {
+				executor.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			do {
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				scheduled.set(false);
+			} while (!tasks.isEmpty() && scheduled.compareAndSet(false, true));
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package me.nallar.javapatcher.collections;
+
+enum HashCommon {
+	;
+	static final byte FREE = 0;
+	static final byte FULL = 1;
+	static final byte REMOVED = 2;
+
+	/**
+	 * @param expected Expected number of entries
+	 * @return Power of two table capacity which holds expected entries below the 3/4 load factor
+	 */
+	static int capacityFor(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(4, expected + expected / 3));
+		return capacity < expected + expected / 3 ? capacity << 1 : capacity;
+	}
+
+	static int threshold(int capacity) {
+		return capacity - (capacity >>> 2);
+	}
+
+	static int mix(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	static int mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 32;
+		return (int) (h ^ (h >>> 16));
+	}
+}
@@ -0,0 +1,145 @@
+package me.nallar.javapatcher.collections;
+
+import java.util.*;
+
+/**
+ * Array backed list of primitive ints, which doesn't box elements in the *Int methods.
+ *
+ * Null elements are not supported. Not thread safe.
+ */
+public class IntArrayList extends AbstractList<Integer> implements RandomAccess {
+	private int[] elements;
+	private int size;
+
+	public IntArrayList() {
+		this(10);
+	}
+
+	public IntArrayList(int capacity) {
+		elements = new int[capacity];
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+
+	private void grow(int minimum) {
+		if (minimum > elements.length) {
+			elements = Arrays.copyOf(elements, Math.max(minimum, elements.length + (elements.length >> 1) + 1));
+		}
+	}
+
+	public int getInt(int index) {
+		checkIndex(index);
+		return elements[index];
+	}
+
+	public int setInt(int index, int element) {
+		checkIndex(index);
+		int old = elements[index];
+		elements[index] = element;
+		return old;
+	}
+
+	public boolean addInt(int element) {
+		modCount++;
+		grow(size + 1);
+		elements[size++] = element;
+		return true;
+	}
+
+	public void addInt(int index, int element) {
+		if (index < 0 || index > size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		modCount++;
+		grow(size + 1);
+		System.arraycopy(elements, index, elements, index + 1, size - index);
+		elements[index] = element;
+		size++;
+	}
+
+	public int removeAtInt(int index) {
+		checkIndex(index);
+		modCount++;
+		int old = elements[index];
+		System.arraycopy(elements, index + 1, elements, index, size - index - 1);
+		size--;
+		return old;
+	}
+
+	public int indexOfInt(int element) {
+		for (int i = 0; i < size; i++) {
+			if (elements[i] == element) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public boolean containsInt(int element) {
+		return indexOfInt(element) != -1;
+	}
+
+	/**
+	 * Removes the first occurrence of element
+	 *
+	 * @return Whether the list contained element
+	 */
+	public boolean removeInt(int element) {
+		int index = indexOfInt(element);
+		if (index == -1) {
+			return false;
+		}
+		removeAtInt(index);
+		return true;
+	}
+
+	@Override
+	public Integer get(int index) {
+		return getInt(index);
+	}
+
+	@Override
+	public Integer set(int index, Integer element) {
+		return setInt(index, element);
+	}
+
+	@Override
+	public boolean add(Integer element) {
+		return addInt(element);
+	}
+
+	@Override
+	public void add(int index, Integer element) {
+		addInt(index, element);
+	}
+
+	@Override
+	public Integer remove(int index) {
+		return removeAtInt(index);
+	}
+
+	@Override
+	public int indexOf(Object o) {
+		return o instanceof Integer ? indexOfInt(((Integer) o).intValue()) : -1;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return indexOf(o) != -1;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		modCount++;
+		size = 0;
+	}
+}
@@ -0,0 +1,171 @@
+package me.nallar.javapatcher.collections;
+
+import java.util.*;
+
+import static me.nallar.javapatcher.collections.HashCommon.*;
+
+/**
+ * Open addressing hash set of primitive ints, which doesn't box elements in the int methods.
+ *
+ * Null elements are not supported. Not thread safe.
+ */
+public class IntHashSet extends AbstractSet<Integer> {
+	private int[] keys;
+	private byte[] states;
+	private int size;
+	private int used;
+	private int threshold;
+
+	public IntHashSet() {
+		this(12);
+	}
+
+	public IntHashSet(int expected) {
+		allocate(capacityFor(expected));
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		states = new byte[capacity];
+		threshold = threshold(capacity);
+		used = size;
+	}
+
+	private int find(int key) {
+		int mask = keys.length - 1;
+		for (int i = mix(key) & mask; states[i] != FREE; i = (i + 1) & mask) {
+			if (states[i] == FULL && keys[i] == key) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public boolean contains(int key) {
+		return find(key) != -1;
+	}
+
+	public boolean add(int key) {
+		int mask = keys.length - 1;
+		int removed = -1;
+		int i = mix(key) & mask;
+		for (; states[i] != FREE; i = (i + 1) & mask) {
+			if (states[i] == FULL) {
+				if (keys[i] == key) {
+					return false;
+				}
+			} else if (removed == -1) {
+				removed = i;
+			}
+		}
+		if (removed == -1) {
+			used++;
+		} else {
+			i = removed;
+		}
+		keys[i] = key;
+		states[i] = FULL;
+		size++;
+		if (used > threshold) {
+			rehash(size >= threshold >>> 1 ? keys.length << 1 : keys.length);
+		}
+		return true;
+	}
+
+	public boolean remove(int key) {
+		int i = find(key);
+		if (i == -1) {
+			return false;
+		}
+		removeAt(i);
+		return true;
+	}
+
+	private void removeAt(int i) {
+		states[i] = REMOVED;
+		size--;
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKeys = keys;
+		byte[] oldStates = states;
+		allocate(capacity);
+		int mask = capacity - 1;
+		for (int j = 0; j < oldStates.length; j++) {
+			if (oldStates[j] == FULL) {
+				int i = mix(oldKeys[j]) & mask;
+				while (states[i] != FREE) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = oldKeys[j];
+				states[i] = FULL;
+			}
+		}
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return o instanceof Integer && contains(((Integer) o).intValue());
+	}
+
+	@Override
+	public boolean add(Integer key) {
+		return add(key.intValue());
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		return o instanceof Integer && remove(((Integer) o).intValue());
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(states, FREE);
+		size = 0;
+		used = 0;
+	}
+
+	@Override
+	public Iterator<Integer> iterator() {
+		return new Iterator<Integer>() {
+			private int next = advance(0);
+			private int last = -1;
+
+			private int advance(int i) {
+				while (i < states.length && states[i] != FULL) {
+					i++;
+				}
+				return i;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next < states.length;
+			}
+
+			@Override
+			public Integer next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				last = next;
+				next = advance(next + 1);
+				return keys[last];
+			}
+
+			@Override
+			public void remove() {
+				if (last == -1) {
+					throw new IllegalStateException();
+				}
+				removeAt(last);
+				last = -1;
+			}
+		};
+	}
+}
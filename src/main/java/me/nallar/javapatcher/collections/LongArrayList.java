@@ -0,0 +1,145 @@
+package me.nallar.javapatcher.collections;
+
+import java.util.*;
+
+/**
+ * Array backed list of primitive longs, which doesn't box elements in the *Long methods.
+ *
+ * Null elements are not supported. Not thread safe.
+ */
+public class LongArrayList extends AbstractList<Long> implements RandomAccess {
+	private long[] elements;
+	private int size;
+
+	public LongArrayList() {
+		this(10);
+	}
+
+	public LongArrayList(int capacity) {
+		elements = new long[capacity];
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+
+	private void grow(int minimum) {
+		if (minimum > elements.length) {
+			elements = Arrays.copyOf(elements, Math.max(minimum, elements.length + (elements.length >> 1) + 1));
+		}
+	}
+
+	public long getLong(int index) {
+		checkIndex(index);
+		return elements[index];
+	}
+
+	public long setLong(int index, long element) {
+		checkIndex(index);
+		long old = elements[index];
+		elements[index] = element;
+		return old;
+	}
+
+	public boolean addLong(long element) {
+		modCount++;
+		grow(size + 1);
+		elements[size++] = element;
+		return true;
+	}
+
+	public void addLong(int index, long element) {
+		if (index < 0 || index > size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		modCount++;
+		grow(size + 1);
+		System.arraycopy(elements, index, elements, index + 1, size - index);
+		elements[index] = element;
+		size++;
+	}
+
+	public long removeAtLong(int index) {
+		checkIndex(index);
+		modCount++;
+		long old = elements[index];
+		System.arraycopy(elements, index + 1, elements, index, size - index - 1);
+		size--;
+		return old;
+	}
+
+	public int indexOfLong(long element) {
+		for (int i = 0; i < size; i++) {
+			if (elements[i] == element) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public boolean containsLong(long element) {
+		return indexOfLong(element) != -1;
+	}
+
+	/**
+	 * Removes the first occurrence of element
+	 *
+	 * @return Whether the list contained element
+	 */
+	public boolean removeLong(long element) {
+		int index = indexOfLong(element);
+		if (index == -1) {
+			return false;
+		}
+		removeAtLong(index);
+		return true;
+	}
+
+	@Override
+	public Long get(int index) {
+		return getLong(index);
+	}
+
+	@Override
+	public Long set(int index, Long element) {
+		return setLong(index, element);
+	}
+
+	@Override
+	public boolean add(Long element) {
+		return addLong(element);
+	}
+
+	@Override
+	public void add(int index, Long element) {
+		addLong(index, element);
+	}
+
+	@Override
+	public Long remove(int index) {
+		return removeAtLong(index);
+	}
+
+	@Override
+	public int indexOf(Object o) {
+		return o instanceof Long ? indexOfLong(((Long) o).longValue()) : -1;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return indexOf(o) != -1;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		modCount++;
+		size = 0;
+	}
+}
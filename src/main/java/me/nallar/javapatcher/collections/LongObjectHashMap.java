@@ -0,0 +1,257 @@
+package me.nallar.javapatcher.collections;
+
+import java.util.*;
+
+import static me.nallar.javapatcher.collections.HashCommon.*;
+
+/**
+ * Open addressing hash map with primitive long keys, which doesn't box keys in the long methods.
+ *
+ * Null keys are not supported. Not thread safe.
+ *
+ * @param <V> Value type
+ */
+public class LongObjectHashMap<V> extends AbstractMap<Long, V> {
+	private long[] keys;
+	private Object[] values;
+	private byte[] states;
+	private int size;
+	private int used;
+	private int threshold;
+
+	public LongObjectHashMap() {
+		this(12);
+	}
+
+	public LongObjectHashMap(int expected) {
+		allocate(capacityFor(expected));
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		states = new byte[capacity];
+		threshold = threshold(capacity);
+		used = size;
+	}
+
+	private int find(long key) {
+		int mask = keys.length - 1;
+		for (int i = mix(key) & mask; states[i] != FREE; i = (i + 1) & mask) {
+			if (states[i] == FULL && keys[i] == key) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int i = find(key);
+		return i == -1 ? null : (V) values[i];
+	}
+
+	public boolean containsKey(long key) {
+		return find(key) != -1;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		int mask = keys.length - 1;
+		int removed = -1;
+		int i = mix(key) & mask;
+		for (; states[i] != FREE; i = (i + 1) & mask) {
+			if (states[i] == FULL) {
+				if (keys[i] == key) {
+					V old = (V) values[i];
+					values[i] = value;
+					return old;
+				}
+			} else if (removed == -1) {
+				removed = i;
+			}
+		}
+		if (removed == -1) {
+			used++;
+		} else {
+			i = removed;
+		}
+		keys[i] = key;
+		values[i] = value;
+		states[i] = FULL;
+		size++;
+		if (used > threshold) {
+			rehash(size >= threshold >>> 1 ? keys.length << 1 : keys.length);
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int i = find(key);
+		if (i == -1) {
+			return null;
+		}
+		V old = (V) values[i];
+		removeAt(i);
+		return old;
+	}
+
+	private void removeAt(int i) {
+		values[i] = null;
+		states[i] = REMOVED;
+		size--;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		byte[] oldStates = states;
+		allocate(capacity);
+		int mask = capacity - 1;
+		for (int j = 0; j < oldStates.length; j++) {
+			if (oldStates[j] == FULL) {
+				int i = mix(oldKeys[j]) & mask;
+				while (states[i] != FREE) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+				states[i] = FULL;
+			}
+		}
+	}
+
+	@Override
+	public V get(Object key) {
+		return key instanceof Long ? get(((Long) key).longValue()) : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof Long && containsKey(((Long) key).longValue());
+	}
+
+	@Override
+	public V put(Long key, V value) {
+		return put(key.longValue(), value);
+	}
+
+	@Override
+	public V remove(Object key) {
+		return key instanceof Long ? remove(((Long) key).longValue()) : null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(values, null);
+		Arrays.fill(states, FREE);
+		size = 0;
+		used = 0;
+	}
+
+	@Override
+	public Set<Entry<Long, V>> entrySet() {
+		return new AbstractSet<Entry<Long, V>>() {
+			@Override
+			public Iterator<Entry<Long, V>> iterator() {
+				return new Iterator<Entry<Long, V>>() {
+					private int next = advance(0);
+					private int last = -1;
+
+					private int advance(int i) {
+						while (i < states.length && states[i] != FULL) {
+							i++;
+						}
+						return i;
+					}
+
+					@Override
+					public boolean hasNext() {
+						return next < states.length;
+					}
+
+					@Override
+					public Entry<Long, V> next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						last = next;
+						next = advance(next + 1);
+						return new SlotEntry(last);
+					}
+
+					@Override
+					public void remove() {
+						if (last == -1) {
+							throw new IllegalStateException();
+						}
+						removeAt(last);
+						last = -1;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+
+			@Override
+			public void clear() {
+				LongObjectHashMap.this.clear();
+			}
+		};
+	}
+
+	private class SlotEntry implements Entry<Long, V> {
+		private final int slot;
+
+		SlotEntry(int slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		public Long getKey() {
+			return keys[slot];
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V getValue() {
+			return (V) values[slot];
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V setValue(V value) {
+			V old = (V) values[slot];
+			values[slot] = value;
+			return old;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Entry)) {
+				return false;
+			}
+			Entry<?, ?> entry = (Entry<?, ?>) o;
+			return getKey().equals(entry.getKey()) && (values[slot] == null ? entry.getValue() == null : values[slot].equals(entry.getValue()));
+		}
+
+		@Override
+		public int hashCode() {
+			return getKey().hashCode() ^ (values[slot] == null ? 0 : values[slot].hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return keys[slot] + "=" + values[slot];
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package me.nallar.javapatcher.collections;
+
+import java.util.*;
+
+import static me.nallar.javapatcher.collections.HashCommon.mix;
+
+/**
+ * Bounded, thread safe cache of method results, used by code added by the memoize patch.
+ *
+ * The cache is direct mapped: each key has one slot, and storing a key replaces whatever was in its slot.
+ * Keys which fit in a long, such as packed primitive arguments, are stored without allocating.
+ */
+public final class MemoCache {
+	/**
+	 * Returned by get if the key is not cached
+	 */
+	public static final Object MISS = new Object();
+	private static final Object NULL = new Object();
+	private static final int LOCKS = 16;
+	private final long[] primitiveKeys;
+	private final Object[] keys;
+	private final Object[] values;
+	private final long[] expiries;
+	private final long expireNanos;
+	private final int mask;
+	private final Object[] locks = new Object[LOCKS];
+
+	/**
+	 * @param size         Maximum number of cached results, rounded up to a power of two
+	 * @param expireMillis Time after which a cached result is discarded, or 0 to never discard
+	 */
+	public MemoCache(int size, long expireMillis) {
+		int capacity = size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+		mask = capacity - 1;
+		primitiveKeys = new long[capacity];
+		keys = new Object[capacity];
+		values = new Object[capacity];
+		expiries = expireMillis > 0 ? new long[capacity] : null;
+		expireNanos = expireMillis * 1000000;
+		for (int i = 0; i < LOCKS; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	private Object get(int slot, long primitiveKey, Object key) {
+		synchronized (locks[slot & (LOCKS - 1)]) {
+			Object value = values[slot];
+			if (value == null || primitiveKeys[slot] != primitiveKey || (key == null ? keys[slot] != null : !key.equals(keys[slot]))) {
+				return MISS;
+			}
+			if (expiries != null && System.nanoTime() - expiries[slot] > 0) {
+				values[slot] = null;
+				keys[slot] = null;
+				return MISS;
+			}
+			return value == NULL ? null : value;
+		}
+	}
+
+	private void put(int slot, long primitiveKey, Object key, Object value) {
+		synchronized (locks[slot & (LOCKS - 1)]) {
+			primitiveKeys[slot] = primitiveKey;
+			keys[slot] = key;
+			values[slot] = value == null ? NULL : value;
+			if (expiries != null) {
+				expiries[slot] = System.nanoTime() + expireNanos;
+			}
+		}
+	}
+
+	/**
+	 * @return Cached value, or {@link #MISS}
+	 */
+	public Object get(long key) {
+		return get(mix(key) & mask, key, null);
+	}
+
+	public void put(long key, Object value) {
+		put(mix(key) & mask, key, null, value);
+	}
+
+	/**
+	 * @return Cached value, or {@link #MISS}
+	 */
+	public Object get(Object key) {
+		if (key == null) {
+			key = NULL;
+		}
+		return get(mix(key.hashCode()) & mask, 0, key);
+	}
+
+	public void put(Object key, Object value) {
+		if (key == null) {
+			key = NULL;
+		}
+		put(mix(key.hashCode()) & mask, 0, key, value);
+	}
+
+	public void clear() {
+		for (int lock = 0; lock < LOCKS; lock++) {
+			synchronized (locks[lock]) {
+				for (int i = lock; i < values.length; i += LOCKS) {
+					values[i] = null;
+					keys[i] = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Key for a tuple of arguments which don't fit in a long, compared by content.
+	 */
+	public static final class Key {
+		private final Object[] arguments;
+		private final int hashCode;
+
+		public Key(Object[] arguments) {
+			this.arguments = arguments;
+			this.hashCode = Arrays.deepHashCode(arguments);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && ((Key) o).hashCode == hashCode && Arrays.deepEquals(((Key) o).arguments, arguments);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+}
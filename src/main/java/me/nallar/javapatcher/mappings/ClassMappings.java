@@ -0,0 +1,90 @@
+package me.nallar.javapatcher.mappings;
+
+import java.util.*;
+
+/**
+ * Mappings of one class and its members, as returned by {@link Mappings#getClassMappings}
+ */
+public class ClassMappings {
+	private final ClassDescription classDescription;
+	private final ClassDescription mappedClass;
+	private final Map<MethodDescription, MethodDescription> methods;
+	private final Map<MethodDescription, MethodDescription> unmappedMethods;
+	private final Map<FieldDescription, FieldDescription> fields;
+
+	/**
+	 * @param classDescription Class which was mapped
+	 * @param mappedClass      (nullable) Mapped class
+	 * @param methods          Method -> mapped method
+	 * @param unmappedMethods  Mapped method -> method
+	 * @param fields           Field -> mapped field
+	 */
+	public ClassMappings(ClassDescription classDescription, ClassDescription mappedClass, Map<MethodDescription, MethodDescription> methods, Map<MethodDescription, MethodDescription> unmappedMethods, Map<FieldDescription, FieldDescription> fields) {
+		this.classDescription = classDescription;
+		this.mappedClass = mappedClass;
+		this.methods = methods;
+		this.unmappedMethods = unmappedMethods;
+		this.fields = fields;
+	}
+
+	public ClassDescription getClassDescription() {
+		return classDescription;
+	}
+
+	/**
+	 * @return Mapped class, or null if the class has no mapping
+	 */
+	public ClassDescription getMappedClass() {
+		return mappedClass;
+	}
+
+	/**
+	 * @return Mapped method, or null if the method has no mapping
+	 */
+	public MethodDescription map(MethodDescription methodDescription) {
+		return methods.get(methodDescription);
+	}
+
+	/**
+	 * Maps a list of methods. Methods without a mapping are kept as they are.
+	 *
+	 * @return Mapped List
+	 */
+	public List<MethodDescription> map(List<MethodDescription> methodDescriptions) {
+		List<MethodDescription> mapped = new ArrayList<>(methodDescriptions.size());
+		for (MethodDescription methodDescription : methodDescriptions) {
+			MethodDescription mappedMethod = methods.get(methodDescription);
+			mapped.add(mappedMethod == null ? methodDescription : mappedMethod);
+		}
+		return mapped;
+	}
+
+	/**
+	 * @param methodDescription Mapped method
+	 * @return Unmapped method, or null if the method has no mapping
+	 */
+	public MethodDescription unmap(MethodDescription methodDescription) {
+		return unmappedMethods.get(methodDescription);
+	}
+
+	/**
+	 * @return Mapped field, or null if the field has no mapping
+	 */
+	public FieldDescription map(FieldDescription fieldDescription) {
+		return fields.get(fieldDescription);
+	}
+
+	/**
+	 * @return Method -> mapped method, for every mapped method of the class known to these mappings
+	 */
+	public Map<MethodDescription, MethodDescription> getMethods() {
+		return Collections.unmodifiableMap(methods);
+	}
+
+	/**
+	 * @return Field -> mapped field, for every mapped field of the class known to these mappings
+	 */
+	public Map<FieldDescription, FieldDescription> getFields() {
+		return Collections.unmodifiableMap(fields);
+	}
+}
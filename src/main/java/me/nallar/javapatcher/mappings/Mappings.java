@@ -30,6 +30,41 @@ public abstract class Mappings {
 		return mappedThings;
 	}
 
+	/**
+	 * Maps a class and the given members of it in one call.
+	 *
+	 * The default implementation calls map(*Description) and unmap for each member. Mappings backed by
+	 * a mapping table should override this to look up the class's members at once, the result may
+	 * include members which weren't asked for.
+	 *
+	 * @param classDescription Class to map
+	 * @param methods          Methods of the class to map, also unmapped again
+	 * @param fields           Fields to map
+	 * @return Mappings of the class and its members
+	 */
+	public ClassMappings getClassMappings(ClassDescription classDescription, Collection<MethodDescription> methods, Collection<FieldDescription> fields) {
+		Map<MethodDescription, MethodDescription> mappedMethods = new HashMap<>();
+		Map<MethodDescription, MethodDescription> unmappedMethods = new HashMap<>();
+		for (MethodDescription methodDescription : methods) {
+			MethodDescription mapped = map(methodDescription);
+			if (mapped != null) {
+				mappedMethods.put(methodDescription, mapped);
+				MethodDescription unmapped = unmap(mapped);
+				if (unmapped != null) {
+					unmappedMethods.put(mapped, unmapped);
+				}
+			}
+		}
+		Map<FieldDescription, FieldDescription> mappedFields = new HashMap<>();
+		for (FieldDescription fieldDescription : fields) {
+			FieldDescription mapped = map(fieldDescription);
+			if (mapped != null) {
+				mappedFields.put(fieldDescription, mapped);
+			}
+		}
+		return new ClassMappings(classDescription, map(classDescription), mappedMethods, unmappedMethods, mappedFields);
+	}
+
 	public abstract MethodDescription map(MethodDescription methodDescription);
 
 	public abstract ClassDescription map(ClassDescription classDescription);
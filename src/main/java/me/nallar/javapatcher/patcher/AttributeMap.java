@@ -0,0 +1,94 @@
+package me.nallar.javapatcher.patcher;
+
+import java.util.*;
+
+/**
+ * Immutable map backed by an array of alternating keys and values, for the few attributes of a patch.
+ *
+ * Keys are interned, as every patch uses the same few attribute names.
+ */
+final class AttributeMap extends AbstractMap<String, String> {
+	private static final AttributeMap EMPTY = new AttributeMap(new String[0]);
+	private final String[] entries;
+
+	private AttributeMap(String[] entries) {
+		this.entries = entries;
+	}
+
+	static AttributeMap of(Map<String, String> map) {
+		if (map instanceof AttributeMap) {
+			return (AttributeMap) map;
+		}
+		if (map.isEmpty()) {
+			return EMPTY;
+		}
+		String[] entries = new String[map.size() * 2];
+		int i = 0;
+		for (Map.Entry<String, String> entry : map.entrySet()) {
+			entries[i++] = entry.getKey().intern();
+			entries[i++] = entry.getValue();
+		}
+		return new AttributeMap(entries);
+	}
+
+	private int indexOf(Object key) {
+		for (int i = 0; i < entries.length; i += 2) {
+			if (entries[i] == key || entries[i].equals(key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public String get(Object key) {
+		int index = indexOf(key);
+		return index == -1 ? null : entries[index + 1];
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key) != -1;
+	}
+
+	@Override
+	public int size() {
+		return entries.length / 2;
+	}
+
+	@Override
+	public Set<Map.Entry<String, String>> entrySet() {
+		return new AbstractSet<Map.Entry<String, String>>() {
+			@Override
+			public Iterator<Map.Entry<String, String>> iterator() {
+				return new Iterator<Map.Entry<String, String>>() {
+					private int index;
+
+					@Override
+					public boolean hasNext() {
+						return index < entries.length;
+					}
+
+					@Override
+					public Map.Entry<String, String> next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						index += 2;
+						return new SimpleImmutableEntry<>(entries[index - 2], entries[index - 1]);
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return AttributeMap.this.size();
+			}
+		};
+	}
+}
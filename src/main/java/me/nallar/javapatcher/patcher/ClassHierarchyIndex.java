@@ -0,0 +1,407 @@
+package me.nallar.javapatcher.patcher;
+
+import com.google.common.base.Splitter;
+import me.nallar.javapatcher.PatcherLog;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Index of the superclass and interfaces of every class on a classpath, used to resolve
+ * `extends:` and `implements:` class patch targets.
+ *
+ * Only class file headers are read, no CtClasses are created. Classpath entries are scanned in
+ * parallel, and if a cache file is given the index is saved to it and entries which have not
+ * changed since the last run are loaded from it instead of being rescanned.
+ */
+public class ClassHierarchyIndex {
+	public static final String EXTENDS = "extends:";
+	public static final String IMPLEMENTS = "implements:";
+	private static final int CACHE_VERSION = 1;
+	private static final int BATCH_SIZE = 512;
+	private final Map<String, ClassHeader> classes;
+	private final Map<String, List<String>> directSubtypes = new HashMap<>();
+
+	private ClassHierarchyIndex(Map<String, ClassHeader> classes) {
+		this.classes = classes;
+		for (ClassHeader classHeader : classes.values()) {
+			if (classHeader.superName != null) {
+				addSubtype(classHeader.superName, classHeader.name);
+			}
+			for (String interfaceName : classHeader.interfaces) {
+				addSubtype(interfaceName, classHeader.name);
+			}
+		}
+	}
+
+	/**
+	 * Builds an index of the current java.class.path
+	 *
+	 * @param cacheFile (nullable) file to persist the index in
+	 */
+	public static ClassHierarchyIndex ofSystemClassPath(File cacheFile) {
+		List<File> classPath = new ArrayList<>();
+		for (String entry : Splitter.on(File.pathSeparatorChar).omitEmptyStrings().split(System.getProperty("java.class.path", ""))) {
+			classPath.add(new File(entry));
+		}
+		return build(classPath, cacheFile);
+	}
+
+	/**
+	 * Builds an index of the given classpath. This should be the same classpath the ClassPool
+	 * used by the Patcher is set up with.
+	 *
+	 * @param classPath jar files and class directories
+	 * @param cacheFile (nullable) file to persist the index in
+	 */
+	public static ClassHierarchyIndex build(List<File> classPath, File cacheFile) {
+		Map<String, RootIndex> cached = cacheFile == null ? Collections.<String, RootIndex>emptyMap() : readCache(cacheFile);
+		ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		List<RootIndex> roots = new ArrayList<>();
+		List<Future<?>> futures = new ArrayList<>();
+		boolean changed = false;
+		try {
+			for (File file : classPath) {
+				if (!file.exists()) {
+					continue;
+				}
+				String path = file.getAbsolutePath();
+				RootIndex rootIndex = cached.get(path);
+				// Directories are always rescanned, their modification time doesn't reflect changes to nested files
+				if (rootIndex == null || rootIndex.lastModified != file.lastModified() || rootIndex.length != file.length() || file.isDirectory()) {
+					rootIndex = new RootIndex(path, file.lastModified(), file.length());
+					scan(file, rootIndex, executorService, futures);
+					changed = true;
+				}
+				roots.add(rootIndex);
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException | IOException e) {
+			throw new RuntimeException("Failed to build class hierarchy index", e);
+		} finally {
+			executorService.shutdown();
+		}
+		Map<String, ClassHeader> classes = new HashMap<>();
+		// Earlier classpath entries take priority
+		for (int i = roots.size() - 1; i >= 0; i--) {
+			for (ClassHeader classHeader : roots.get(i).classes) {
+				classes.put(classHeader.name, classHeader);
+			}
+		}
+		if (cacheFile != null && (changed || roots.size() != cached.size())) {
+			writeCache(cacheFile, roots);
+		}
+		PatcherLog.trace("Indexed " + classes.size() + " classes from " + roots.size() + " classpath entries");
+		return new ClassHierarchyIndex(classes);
+	}
+
+	private static void scan(File file, final RootIndex rootIndex, ExecutorService executorService, List<Future<?>> futures) throws IOException {
+		if (file.isDirectory()) {
+			final Path root = file.toPath();
+			final List<Path> batch = new ArrayList<>();
+			final List<List<Path>> batches = new ArrayList<>();
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+					if (path.toString().endsWith(".class")) {
+						batch.add(path);
+						if (batch.size() == BATCH_SIZE) {
+							batches.add(new ArrayList<>(batch));
+							batch.clear();
+						}
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			batches.add(batch);
+			for (final List<Path> paths : batches) {
+				futures.add(executorService.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						for (Path path : paths) {
+							try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(path))) {
+								rootIndex.add(readHeader(inputStream));
+							}
+						}
+						return null;
+					}
+				}));
+			}
+		} else {
+			final ZipFile zipFile = new ZipFile(file);
+			final List<ZipEntry> entries = new ArrayList<>();
+			for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); ) {
+				ZipEntry entry = e.nextElement();
+				if (entry.getName().endsWith(".class") && !entry.getName().startsWith("META-INF/")) {
+					entries.add(entry);
+				}
+			}
+			final CountDownLatch remaining = new CountDownLatch((entries.size() + BATCH_SIZE - 1) / BATCH_SIZE);
+			for (int start = 0; start < entries.size(); start += BATCH_SIZE) {
+				final List<ZipEntry> batch = entries.subList(start, Math.min(entries.size(), start + BATCH_SIZE));
+				futures.add(executorService.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						try {
+							for (ZipEntry entry : batch) {
+								try (InputStream inputStream = new BufferedInputStream(zipFile.getInputStream(entry))) {
+									rootIndex.add(readHeader(inputStream));
+								}
+							}
+						} finally {
+							remaining.countDown();
+							if (remaining.getCount() == 0) {
+								zipFile.close();
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			if (entries.isEmpty()) {
+				zipFile.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads the name, superclass and interfaces of a class file, skipping everything after them.
+	 */
+	static ClassHeader readHeader(InputStream inputStream) throws IOException {
+		DataInputStream in = new DataInputStream(inputStream);
+		if (in.readInt() != 0xCAFEBABE) {
+			throw new IOException("Not a class file");
+		}
+		in.readUnsignedShort();
+		in.readUnsignedShort();
+		int constantPoolCount = in.readUnsignedShort();
+		String[] utf8 = new String[constantPoolCount];
+		int[] classNameIndex = new int[constantPoolCount];
+		for (int i = 1; i < constantPoolCount; i++) {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+				case 1: // Utf8
+					utf8[i] = in.readUTF();
+					break;
+				case 7: // Class
+					classNameIndex[i] = in.readUnsignedShort();
+					break;
+				case 8: // String
+				case 16: // MethodType
+				case 19: // Module
+				case 20: // Package
+					in.skipBytes(2);
+					break;
+				case 15: // MethodHandle
+					in.skipBytes(3);
+					break;
+				case 3: // Integer
+				case 4: // Float
+				case 9: // Fieldref
+				case 10: // Methodref
+				case 11: // InterfaceMethodref
+				case 12: // NameAndType
+				case 17: // Dynamic
+				case 18: // InvokeDynamic
+					in.skipBytes(4);
+					break;
+				case 5: // Long
+				case 6: // Double
+					in.skipBytes(8);
+					i++;
+					break;
+				default:
+					throw new IOException("Unknown constant pool tag " + tag + " at " + i);
+			}
+		}
+		int access = in.readUnsignedShort();
+		String name = className(utf8, classNameIndex, in.readUnsignedShort());
+		String superName = className(utf8, classNameIndex, in.readUnsignedShort());
+		String[] interfaces = new String[in.readUnsignedShort()];
+		for (int i = 0; i < interfaces.length; i++) {
+			interfaces[i] = className(utf8, classNameIndex, in.readUnsignedShort());
+		}
+		return new ClassHeader(name, superName, interfaces, (access & 0x0200) != 0);
+	}
+
+	private static String className(String[] utf8, int[] classNameIndex, int index) {
+		return index == 0 ? null : utf8[classNameIndex[index]].replace('/', '.');
+	}
+
+	private static Map<String, RootIndex> readCache(File cacheFile) {
+		Map<String, RootIndex> roots = new HashMap<>();
+		if (!cacheFile.exists()) {
+			return roots;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)))) {
+			if (in.readInt() != CACHE_VERSION) {
+				return roots;
+			}
+			int rootCount = in.readInt();
+			for (int i = 0; i < rootCount; i++) {
+				RootIndex rootIndex = new RootIndex(in.readUTF(), in.readLong(), in.readLong());
+				int classCount = in.readInt();
+				for (int j = 0; j < classCount; j++) {
+					String name = in.readUTF();
+					String superName = in.readBoolean() ? in.readUTF() : null;
+					String[] interfaces = new String[in.readUnsignedShort()];
+					for (int k = 0; k < interfaces.length; k++) {
+						interfaces[k] = in.readUTF();
+					}
+					rootIndex.classes.add(new ClassHeader(name, superName, interfaces, in.readBoolean()));
+				}
+				roots.put(rootIndex.path, rootIndex);
+			}
+		} catch (IOException e) {
+			PatcherLog.warn("Failed to read class hierarchy cache " + cacheFile + ", rebuilding it", e);
+			roots.clear();
+		}
+		return roots;
+	}
+
+	private static void writeCache(File cacheFile, List<RootIndex> roots) {
+		File parent = cacheFile.getAbsoluteFile().getParentFile();
+		//noinspection ResultOfMethodCallIgnored
+		parent.mkdirs();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile)))) {
+			out.writeInt(CACHE_VERSION);
+			out.writeInt(roots.size());
+			for (RootIndex rootIndex : roots) {
+				out.writeUTF(rootIndex.path);
+				out.writeLong(rootIndex.lastModified);
+				out.writeLong(rootIndex.length);
+				out.writeInt(rootIndex.classes.size());
+				for (ClassHeader classHeader : rootIndex.classes) {
+					out.writeUTF(classHeader.name);
+					out.writeBoolean(classHeader.superName != null);
+					if (classHeader.superName != null) {
+						out.writeUTF(classHeader.superName);
+					}
+					out.writeShort(classHeader.interfaces.length);
+					for (String interfaceName : classHeader.interfaces) {
+						out.writeUTF(interfaceName);
+					}
+					out.writeBoolean(classHeader.isInterface);
+				}
+			}
+		} catch (IOException e) {
+			PatcherLog.warn("Failed to save class hierarchy cache " + cacheFile, e);
+		}
+	}
+
+	private void addSubtype(String superName, String name) {
+		List<String> subtypes = directSubtypes.get(superName);
+		if (subtypes == null) {
+			subtypes = new ArrayList<>();
+			directSubtypes.put(superName, subtypes);
+		}
+		subtypes.add(name);
+	}
+
+	/**
+	 * @return Whether the given target is an `extends:` or `implements:` target
+	 */
+	public static boolean isHierarchyTarget(String target) {
+		return target.startsWith(EXTENDS) || target.startsWith(IMPLEMENTS);
+	}
+
+	/**
+	 * Resolves an `extends:` or `implements:` target to the names of the matching classes
+	 */
+	public Set<String> resolve(String target) {
+		if (target.startsWith(EXTENDS)) {
+			return getSubclasses(target.substring(EXTENDS.length()));
+		} else if (target.startsWith(IMPLEMENTS)) {
+			return getImplementations(target.substring(IMPLEMENTS.length()));
+		}
+		throw new IllegalArgumentException("Not a hierarchy target: " + target);
+	}
+
+	/**
+	 * @return All classes which directly or indirectly extend the given class
+	 */
+	public Set<String> getSubclasses(String className) {
+		return subtypes(className, false);
+	}
+
+	/**
+	 * @return All non-interface classes which directly or indirectly implement the given interface
+	 */
+	public Set<String> getImplementations(String interfaceName) {
+		return subtypes(interfaceName, true);
+	}
+
+	private Set<String> subtypes(String className, boolean excludeInterfaces) {
+		Set<String> subtypes = new LinkedHashSet<>();
+		Deque<String> toVisit = new ArrayDeque<>();
+		toVisit.add(className);
+		while (!toVisit.isEmpty()) {
+			List<String> direct = directSubtypes.get(toVisit.poll());
+			if (direct == null) {
+				continue;
+			}
+			for (String subtype : direct) {
+				if (subtypes.add(subtype)) {
+					toVisit.add(subtype);
+				}
+			}
+		}
+		if (excludeInterfaces) {
+			Iterator<String> iterator = subtypes.iterator();
+			while (iterator.hasNext()) {
+				ClassHeader classHeader = classes.get(iterator.next());
+				if (classHeader != null && classHeader.isInterface) {
+					iterator.remove();
+				}
+			}
+		}
+		return subtypes;
+	}
+
+	/**
+	 * @return Number of indexed classes
+	 */
+	public int size() {
+		return classes.size();
+	}
+
+	static class ClassHeader {
+		final String name;
+		final String superName;
+		final String[] interfaces;
+		final boolean isInterface;
+
+		ClassHeader(String name, String superName, String[] interfaces, boolean isInterface) {
+			this.name = name;
+			this.superName = superName;
+			this.interfaces = interfaces;
+			this.isInterface = isInterface;
+		}
+	}
+
+	private static class RootIndex {
+		final String path;
+		final long lastModified;
+		final long length;
+		final Collection<ClassHeader> classes = new ConcurrentLinkedQueue<>();
+
+		RootIndex(String path, long lastModified, long length) {
+			this.path = path;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+
+		void add(ClassHeader classHeader) {
+			classes.add(classHeader);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package me.nallar.javapatcher.patcher;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+import me.nallar.javapatcher.PatcherLog;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Order in which patched classes were first requested, persisted to a file with one class name per line.
+ *
+ * The order recorded in previous runs is used to pre-patch the classes which will be needed first.
+ */
+class ClassLoadProfile {
+	private final File file;
+	private final List<String> previousOrder;
+	private final Set<String> recorded = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Queue<String> order = new ConcurrentLinkedQueue<>();
+
+	private ClassLoadProfile(File file, List<String> previousOrder) {
+		this.file = file;
+		this.previousOrder = previousOrder;
+	}
+
+	/**
+	 * @param file File the profile is read from and saved to, need not exist
+	 */
+	static ClassLoadProfile load(File file) {
+		List<String> previousOrder = Collections.emptyList();
+		if (file.exists()) {
+			try {
+				previousOrder = Files.readLines(file, Charsets.UTF_8);
+			} catch (IOException e) {
+				PatcherLog.warn("Failed to read class load profile " + file, e);
+			}
+		}
+		return new ClassLoadProfile(file, previousOrder);
+	}
+
+	/**
+	 * Records that a class was requested
+	 */
+	void loaded(String className) {
+		if (recorded.add(className)) {
+			order.add(className);
+		}
+	}
+
+	/**
+	 * @param patcher Classes from previous runs which patcher no longer patches are left out
+	 * @param targets Classes to patch even if they weren't loaded in previous runs
+	 * @return Classes in the order they were loaded in previous runs, followed by targets which weren't loaded
+	 */
+	List<String> order(Patcher patcher, Collection<String> targets) {
+		Set<String> remaining = new LinkedHashSet<>(targets);
+		List<String> ordered = new ArrayList<>(remaining.size());
+		for (String className : previousOrder) {
+			if (patcher.willPatch(className)) {
+				remaining.remove(className);
+				ordered.add(className);
+			}
+		}
+		ordered.addAll(remaining);
+		return ordered;
+	}
+
+	/**
+	 * Saves the classes recorded in this run in load order, followed by classes from previous runs which
+	 * weren't loaded in this run
+	 *
+	 * @param patcher Classes which patcher no longer patches are dropped
+	 */
+	void save(Patcher patcher) {
+		Set<String> classNames = new LinkedHashSet<>(order);
+		classNames.addAll(previousOrder);
+		List<String> lines = new ArrayList<>(classNames.size());
+		for (String className : classNames) {
+			if (patcher.willPatch(className)) {
+				lines.add(className);
+			}
+		}
+		File parent = file.getAbsoluteFile().getParentFile();
+		//noinspection ResultOfMethodCallIgnored
+		parent.mkdirs();
+		try {
+			Files.write(Joiner.on('\n').join(lines), file, Charsets.UTF_8);
+		} catch (IOException e) {
+			PatcherLog.warn("Failed to save class load profile " + file, e);
+		}
+	}
+}
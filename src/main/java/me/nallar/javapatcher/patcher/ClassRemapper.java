@@ -0,0 +1,284 @@
+package me.nallar.javapatcher.patcher;
+
+import javassist.bytecode.*;
+import me.nallar.javapatcher.mappings.*;
+
+import java.util.*;
+
+/**
+ * Remaps the names of classes, methods and fields referenced and declared by a class file, using a Mappings instance.
+ *
+ * Members are looked up with {@link Mappings#getClassMappings} once per owning class. Remapped member
+ * references are added to the constant pool and the instructions using them are pointed at the new
+ * entries, then classes are renamed in the constant pool and descriptors. Method handles of renamed
+ * members are replaced by new handles, in ldc instructions and bootstrap method arguments.
+ */
+enum ClassRemapper {
+	;
+
+	/**
+	 * @return Number of references, members and classes renamed
+	 */
+	static int remap(ClassFile classFile, Mappings mappings) throws BadBytecode {
+		ConstPool constPool = classFile.getConstPool();
+		int size = constPool.getSize();
+		String thisClass = classFile.getName();
+
+		Map<String, Members> owners = new LinkedHashMap<>();
+		Set<String> classNames = new HashSet<>();
+		for (int i = 1; i < size; i++) {
+			switch (constPool.getTag(i)) {
+				case ConstPool.CONST_Class:
+					String className = constPool.getClassInfo(i);
+					if (className.charAt(0) == '[') {
+						addDescriptorClasses(className, classNames);
+					} else {
+						classNames.add(className);
+					}
+					break;
+				case ConstPool.CONST_Fieldref:
+					members(owners, constPool.getFieldrefClassName(i)).addField(i, constPool.getFieldrefName(i));
+					addDescriptorClasses(constPool.getFieldrefType(i), classNames);
+					break;
+				case ConstPool.CONST_Methodref:
+					String owner = constPool.getMethodrefClassName(i);
+					// Methods of arrays are never mapped
+					if (owner.charAt(0) != '[') {
+						members(owners, owner).addMethod(i, constPool.getMethodrefName(i), constPool.getMethodrefType(i));
+					}
+					addDescriptorClasses(constPool.getMethodrefType(i), classNames);
+					break;
+				case ConstPool.CONST_InterfaceMethodref:
+					members(owners, constPool.getInterfaceMethodrefClassName(i)).addMethod(i, constPool.getInterfaceMethodrefName(i), constPool.getInterfaceMethodrefType(i));
+					addDescriptorClasses(constPool.getInterfaceMethodrefType(i), classNames);
+					break;
+			}
+		}
+		Members declared = members(owners, thisClass);
+		for (Object method_ : classFile.getMethods()) {
+			MethodInfo methodInfo = (MethodInfo) method_;
+			declared.addMethod(methodInfo, methodInfo.getName(), methodInfo.getDescriptor());
+			addDescriptorClasses(methodInfo.getDescriptor(), classNames);
+		}
+		for (Object field_ : classFile.getFields()) {
+			FieldInfo fieldInfo = (FieldInfo) field_;
+			declared.addField(fieldInfo, fieldInfo.getName());
+			addDescriptorClasses(fieldInfo.getDescriptor(), classNames);
+		}
+
+		int renamed = 0;
+		Map<Integer, Integer> remappedIndices = new HashMap<>();
+		Map<String, String> classMap = new HashMap<>();
+		for (Map.Entry<String, Members> entry : owners.entrySet()) {
+			String owner = entry.getKey();
+			Members members = entry.getValue();
+			ClassMappings classMappings = mappings.getClassMappings(new ClassDescription(owner), members.methods.keySet(), members.fields.keySet());
+			for (Map.Entry<MethodDescription, List<Object>> method : members.methods.entrySet()) {
+				MethodDescription mapped = classMappings.map(method.getKey());
+				if (mapped != null && !mapped.name.equals(method.getKey().name)) {
+					renamed += rename(constPool, method.getValue(), mapped.name, remappedIndices);
+				}
+			}
+			for (Map.Entry<FieldDescription, List<Object>> field : members.fields.entrySet()) {
+				FieldDescription mapped = classMappings.map(field.getKey());
+				if (mapped != null && !mapped.name.equals(field.getKey().name)) {
+					renamed += rename(constPool, field.getValue(), mapped.name, remappedIndices);
+				}
+			}
+			addClassMapping(owner, classMappings.getMappedClass(), thisClass, classMap);
+			classNames.remove(owner);
+		}
+		for (String className : classNames) {
+			addClassMapping(className, mappings.map(new ClassDescription(className)), thisClass, classMap);
+		}
+
+		if (!remappedIndices.isEmpty()) {
+			remapMethodHandles(classFile, size, remappedIndices);
+			for (Object method_ : classFile.getMethods()) {
+				CodeAttribute codeAttribute = ((MethodInfo) method_).getCodeAttribute();
+				if (codeAttribute != null) {
+					remapInstructions(codeAttribute, remappedIndices);
+				}
+			}
+		}
+		if (!classMap.isEmpty()) {
+			classFile.renameClass(classMap);
+		}
+		return renamed + classMap.size();
+	}
+
+	private static Members members(Map<String, Members> owners, String owner) {
+		Members members = owners.get(owner);
+		if (members == null) {
+			members = new Members(owner);
+			owners.put(owner, members);
+		}
+		return members;
+	}
+
+	private static void addDescriptorClasses(String descriptor, Set<String> classNames) {
+		for (int i = 0; i < descriptor.length(); i++) {
+			if (descriptor.charAt(i) == 'L') {
+				int end = descriptor.indexOf(';', i);
+				classNames.add(descriptor.substring(i + 1, end).replace('/', '.'));
+				i = end;
+			}
+		}
+	}
+
+	private static void addClassMapping(String className, ClassDescription mapped, String thisClass, Map<String, String> classMap) {
+		// The class's own name is set by the caller
+		if (mapped != null && !mapped.name.equals(className) && !className.equals(thisClass)) {
+			classMap.put(Descriptor.toJvmName(className), Descriptor.toJvmName(mapped.name));
+		}
+	}
+
+	/**
+	 * Renames declared members, and adds renamed copies of constant pool references
+	 *
+	 * @param usages MethodInfo/FieldInfo or constant pool index of each usage
+	 */
+	private static int rename(ConstPool constPool, List<Object> usages, String name, Map<Integer, Integer> remappedIndices) {
+		for (Object usage : usages) {
+			if (usage instanceof MethodInfo) {
+				((MethodInfo) usage).setName(name);
+			} else if (usage instanceof FieldInfo) {
+				((FieldInfo) usage).setName(name);
+			} else {
+				int index = (Integer) usage;
+				int newIndex;
+				switch (constPool.getTag(index)) {
+					case ConstPool.CONST_Fieldref:
+						newIndex = constPool.addFieldrefInfo(constPool.getFieldrefClass(index), name, constPool.getFieldrefType(index));
+						break;
+					case ConstPool.CONST_Methodref:
+						newIndex = constPool.addMethodrefInfo(constPool.getMethodrefClass(index), name, constPool.getMethodrefType(index));
+						break;
+					default:
+						newIndex = constPool.addInterfaceMethodrefInfo(constPool.getInterfaceMethodrefClass(index), name, constPool.getInterfaceMethodrefType(index));
+				}
+				remappedIndices.put(index, newIndex);
+			}
+		}
+		return usages.size();
+	}
+
+	/**
+	 * Adds handles of the renamed references to remappedIndices, and points bootstrap methods at them
+	 *
+	 * @param size Size of the constant pool before renamed references were added
+	 */
+	private static void remapMethodHandles(ClassFile classFile, int size, Map<Integer, Integer> remappedIndices) {
+		ConstPool constPool = classFile.getConstPool();
+		for (int i = 1; i < size; i++) {
+			if (constPool.getTag(i) == ConstPool.CONST_MethodHandle) {
+				Integer newIndex = remappedIndices.get(constPool.getMethodHandleIndex(i));
+				if (newIndex != null) {
+					remappedIndices.put(i, constPool.addMethodHandleInfo(constPool.getMethodHandleKind(i), newIndex));
+				}
+			}
+		}
+		BootstrapMethodsAttribute bootstrapMethodsAttribute = (BootstrapMethodsAttribute) classFile.getAttribute(BootstrapMethodsAttribute.tag);
+		if (bootstrapMethodsAttribute == null) {
+			return;
+		}
+		BootstrapMethodsAttribute.BootstrapMethod[] bootstrapMethods = bootstrapMethodsAttribute.getMethods();
+		boolean changed = false;
+		for (BootstrapMethodsAttribute.BootstrapMethod bootstrapMethod : bootstrapMethods) {
+			Integer newIndex = remappedIndices.get(bootstrapMethod.methodRef);
+			if (newIndex != null) {
+				bootstrapMethod.methodRef = newIndex;
+				changed = true;
+			}
+			int[] arguments = bootstrapMethod.arguments;
+			for (int i = 0; i < arguments.length; i++) {
+				newIndex = remappedIndices.get(arguments[i]);
+				if (newIndex != null) {
+					arguments[i] = newIndex;
+					changed = true;
+				}
+			}
+		}
+		if (changed) {
+			// Replaces the existing attribute
+			classFile.addAttribute(new BootstrapMethodsAttribute(constPool, bootstrapMethods));
+		}
+	}
+
+	private static void remapInstructions(CodeAttribute codeAttribute, Map<Integer, Integer> remappedIndices) throws BadBytecode {
+		CodeIterator iterator = codeAttribute.iterator();
+		while (iterator.hasNext()) {
+			int pos = iterator.next();
+			switch (iterator.byteAt(pos)) {
+				case Opcode.GETSTATIC:
+				case Opcode.PUTSTATIC:
+				case Opcode.GETFIELD:
+				case Opcode.PUTFIELD:
+				case Opcode.INVOKEVIRTUAL:
+				case Opcode.INVOKESPECIAL:
+				case Opcode.INVOKESTATIC:
+				case Opcode.INVOKEINTERFACE:
+					Integer newIndex = remappedIndices.get(iterator.u16bitAt(pos + 1));
+					if (newIndex != null) {
+						iterator.write16bit(newIndex, pos + 1);
+					}
+					break;
+				case Opcode.LDC_W:
+					// Only method handle constants are remapped
+					newIndex = remappedIndices.get(iterator.u16bitAt(pos + 1));
+					if (newIndex != null) {
+						iterator.write16bit(newIndex, pos + 1);
+					}
+					break;
+				case Opcode.LDC:
+					newIndex = remappedIndices.get(iterator.byteAt(pos + 1));
+					if (newIndex == null) {
+						break;
+					}
+					if (newIndex > 0xFF) {
+						// Widen to ldc_w, branches to the next instruction still reach it
+						iterator.insertGapAt(pos + 2, 1, true);
+						iterator.writeByte(Opcode.LDC_W, pos);
+						iterator.write16bit(newIndex, pos + 1);
+						iterator.move(pos);
+					} else {
+						iterator.writeByte(newIndex, pos + 1);
+					}
+			}
+		}
+	}
+
+	/**
+	 * Methods and fields of one class used by the class file being remapped
+	 */
+	private static class Members {
+		final String owner;
+		final Map<MethodDescription, List<Object>> methods = new LinkedHashMap<>();
+		final Map<FieldDescription, List<Object>> fields = new LinkedHashMap<>();
+
+		Members(String owner) {
+			this.owner = owner;
+		}
+
+		void addMethod(Object usage, String name, String descriptor) {
+			if (name.charAt(0) == '<') {
+				// Constructors and static initializers are never mapped
+				return;
+			}
+			add(methods, new MethodDescription(owner, name, descriptor), usage);
+		}
+
+		void addField(Object usage, String name) {
+			add(fields, new FieldDescription(owner, name), usage);
+		}
+
+		private static <K> void add(Map<K, List<Object>> map, K key, Object usage) {
+			List<Object> usages = map.get(key);
+			if (usages == null) {
+				usages = new ArrayList<>(1);
+				map.put(key, usages);
+			}
+			usages.add(usage);
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package me.nallar.javapatcher.patcher;
+
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.MultimapBuilder;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Maps class targets to values, where a target is either an exact class name or a wildcard.
+ *
+ * Wildcards:
+ * - `package.name.*` matches classes directly in package.name
+ * - `package.name.**` matches classes in package.name and all subpackages
+ * - `package.name.Prefix*` matches classes in package.name whose name starts with Prefix
+ *
+ * Wildcards are indexed by package, so a lookup costs one hash lookup for exact targets plus one
+ * per package segment of the class name when any wildcards are registered.
+ *
+ * Values are returned in the order they were added.
+ *
+ * {@link #put} must not be called concurrently. Exact targets may be removed while other threads look up classes.
+ */
+class ClassTargetIndex<V> {
+	private final ConcurrentMap<String, List<Entry<V>>> exact = new ConcurrentHashMap<>();
+	private final ListMultimap<String, Wildcard<V>> wildcards = MultimapBuilder.hashKeys().arrayListValues().build();
+	private int order;
+
+	static boolean isWildcard(String target) {
+		return target.indexOf('*') != -1;
+	}
+
+	private static String packageOf(String name) {
+		int lastDot = name.lastIndexOf('.');
+		return lastDot == -1 ? "" : name.substring(0, lastDot);
+	}
+
+	void put(String target, V value) {
+		if (!isWildcard(target)) {
+			List<Entry<V>> entries = exact.get(target);
+			if (entries == null) {
+				entries = new ArrayList<>(1);
+				exact.put(target, entries);
+			}
+			entries.add(new Entry<>(order++, value));
+			return;
+		}
+		int star = target.indexOf('*');
+		if (star != target.length() - 1 && !(star == target.length() - 2 && target.endsWith("**"))) {
+			throw new IllegalArgumentException("Wildcard must be at the end of class target " + target);
+		}
+		String prefix = target.substring(0, star);
+		wildcards.put(packageOf(prefix), new Wildcard<>(order++, value, prefix, target.endsWith("**")));
+	}
+
+	boolean contains(String className) {
+		if (exact.containsKey(className)) {
+			return true;
+		}
+		if (wildcards.isEmpty()) {
+			return false;
+		}
+		String packageName = packageOf(className);
+		while (true) {
+			for (Wildcard<V> wildcard : wildcards.get(packageName)) {
+				if (wildcard.matches(className)) {
+					return true;
+				}
+			}
+			if (packageName.isEmpty()) {
+				return false;
+			}
+			packageName = packageOf(packageName);
+		}
+	}
+
+	/**
+	 * @return Exact class names with values, classes only matched by wildcards aren't included
+	 */
+	Set<String> exactTargets() {
+		return exact.keySet();
+	}
+
+	/**
+	 * Removes the values of an exact class target. Values of wildcards matching the class are kept.
+	 */
+	void remove(String className) {
+		exact.remove(className);
+	}
+
+	List<V> get(String className) {
+		List<Entry<V>> exactEntries = exact.get(className);
+		if (exactEntries == null) {
+			exactEntries = Collections.emptyList();
+		}
+		if (wildcards.isEmpty()) {
+			return values(exactEntries);
+		}
+		List<Entry<V>> entries = new ArrayList<>(exactEntries);
+		String packageName = packageOf(className);
+		while (true) {
+			for (Wildcard<V> wildcard : wildcards.get(packageName)) {
+				if (wildcard.matches(className)) {
+					entries.add(wildcard);
+				}
+			}
+			if (packageName.isEmpty()) {
+				break;
+			}
+			packageName = packageOf(packageName);
+		}
+		if (entries.size() != exactEntries.size()) {
+			Collections.sort(entries);
+		}
+		return values(entries);
+	}
+
+	private List<V> values(List<Entry<V>> entries) {
+		if (entries.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<V> values = new ArrayList<>(entries.size());
+		for (Entry<V> entry : entries) {
+			values.add(entry.value);
+		}
+		return values;
+	}
+
+	private static class Entry<V> implements Comparable<Entry<V>> {
+		final int order;
+		final V value;
+
+		Entry(int order, V value) {
+			this.order = order;
+			this.value = value;
+		}
+
+		@Override
+		public int compareTo(Entry<V> o) {
+			return order < o.order ? -1 : (order == o.order ? 0 : 1);
+		}
+	}
+
+	private static class Wildcard<V> extends Entry<V> {
+		final String prefix;
+		final boolean recursive;
+
+		Wildcard(int order, V value, String prefix, boolean recursive) {
+			super(order, value);
+			this.prefix = prefix;
+			this.recursive = recursive;
+		}
+
+		boolean matches(String className) {
+			return className.startsWith(prefix) && (recursive || className.indexOf('.', prefix.length()) == -1);
+		}
+	}
+}
@@ -0,0 +1,320 @@
+package me.nallar.javapatcher.patcher;
+
+import javassist.ClassPool;
+import javassist.bytecode.*;
+
+import java.util.*;
+
+/**
+ * Removes NOPs and unreachable code left behind by bytecode level patches, so that patched methods
+ * don't grow past the JIT's inlining and huge method limits.
+ *
+ * Branch offsets, switch padding, the exception table, line numbers and local variables are updated.
+ * Methods using jsr/ret, or with code attributes other than those, are left as they are.
+ */
+enum CodeCompactor {
+	;
+	private static final Set<String> knownAttributes = new HashSet<>(Arrays.asList(
+		LineNumberAttribute.tag, LocalVariableAttribute.tag, LocalVariableAttribute.typeTag, StackMapTable.tag, StackMap.tag));
+
+	/**
+	 * Compacts the method's code, then rebuilds its stack map
+	 *
+	 * @return Whether any code was removed
+	 */
+	static boolean compact(MethodInfo methodInfo, ClassPool classPool, ClassFile classFile) throws BadBytecode {
+		CodeAttribute codeAttribute = methodInfo.getCodeAttribute();
+		boolean hasStackMap = codeAttribute != null && codeAttribute.getAttribute(StackMap.tag) != null;
+		boolean compacted = compact(methodInfo);
+		methodInfo.rebuildStackMapIf6(classPool, classFile);
+		if (compacted && hasStackMap) {
+			methodInfo.rebuildStackMapForME(classPool);
+		}
+		return compacted;
+	}
+
+	private static boolean compact(MethodInfo methodInfo) throws BadBytecode {
+		CodeAttribute codeAttribute = methodInfo.getCodeAttribute();
+		if (codeAttribute == null) {
+			return false;
+		}
+		for (Object attribute : codeAttribute.getAttributes()) {
+			if (!knownAttributes.contains(((AttributeInfo) attribute).getName())) {
+				return false;
+			}
+		}
+		byte[] code = codeAttribute.getCode();
+		int length = code.length;
+		int[] next = new int[length];
+		boolean[] isStart = new boolean[length];
+		List<Integer> starts = new ArrayList<>();
+		CodeIterator iterator = codeAttribute.iterator();
+		int last = -1;
+		while (iterator.hasNext()) {
+			int pos = iterator.next();
+			int op = iterator.byteAt(pos);
+			if (op == Opcode.JSR || op == Opcode.JSR_W || op == Opcode.RET || (op == Opcode.WIDE && iterator.byteAt(pos + 1) == Opcode.RET)) {
+				return false;
+			}
+			if (last != -1) {
+				next[last] = pos;
+			}
+			starts.add(pos);
+			isStart[pos] = true;
+			last = pos;
+		}
+		next[last] = length;
+
+		boolean[] reachable = new boolean[length];
+		Deque<Integer> pending = new ArrayDeque<>();
+		pending.add(0);
+		reachable[0] = true;
+		ExceptionTable exceptionTable = codeAttribute.getExceptionTable();
+		boolean[] handlerReachable = new boolean[exceptionTable.size()];
+		boolean found = true;
+		while (found) {
+			while (!pending.isEmpty()) {
+				int pos = pending.poll();
+				for (int target : successors(code, pos, next[pos])) {
+					if (target < 0 || target >= length || !isStart[target]) {
+						return false;
+					}
+					if (!reachable[target]) {
+						reachable[target] = true;
+						pending.add(target);
+					}
+				}
+			}
+			// Handlers are reachable if they cover reachable code which may throw
+			found = false;
+			for (int i = 0; i < exceptionTable.size(); i++) {
+				if (!handlerReachable[i] && coversReachable(code, reachable, exceptionTable.startPc(i), exceptionTable.endPc(i))) {
+					handlerReachable[i] = found = true;
+					int handler = exceptionTable.handlerPc(i);
+					if (!reachable[handler]) {
+						reachable[handler] = true;
+						pending.add(handler);
+					}
+				}
+			}
+		}
+
+		// Removed instructions are mapped to the position of the next kept instruction
+		int[] newPos = new int[length + 1];
+		int position = 0;
+		for (int pos : starts) {
+			newPos[pos] = position;
+			if (isKept(code, reachable, pos)) {
+				position += newLength(code[pos] & 0xff, pos, next[pos] - pos, position);
+			}
+		}
+		newPos[length] = position;
+		boolean removedHandler = false;
+		for (boolean handler : handlerReachable) {
+			removedHandler |= !handler;
+		}
+		if (position == length && !removedHandler) {
+			return false;
+		}
+
+		byte[] newCode = new byte[position];
+		for (int pos : starts) {
+			if (isKept(code, reachable, pos) && !copy(code, pos, next[pos] - pos, newCode, newPos)) {
+				return false;
+			}
+		}
+		for (int i = exceptionTable.size() - 1; i >= 0; i--) {
+			if (!handlerReachable[i]) {
+				exceptionTable.remove(i);
+				continue;
+			}
+			exceptionTable.setStartPc(newPos[exceptionTable.startPc(i)], i);
+			exceptionTable.setEndPc(newPos[exceptionTable.endPc(i)], i);
+			exceptionTable.setHandlerPc(newPos[exceptionTable.handlerPc(i)], i);
+		}
+
+		CodeAttribute compacted = new CodeAttribute(codeAttribute.getConstPool(), codeAttribute.getMaxStack(), codeAttribute.getMaxLocals(), newCode, exceptionTable);
+		for (Object attribute_ : codeAttribute.getAttributes()) {
+			AttributeInfo attribute = (AttributeInfo) attribute_;
+			if (attribute instanceof LineNumberAttribute) {
+				remapLineNumbers((LineNumberAttribute) attribute, newPos, position);
+			} else if (attribute instanceof LocalVariableAttribute) {
+				remapLocalVariables((LocalVariableAttribute) attribute, newPos);
+			} else {
+				// Stack maps are rebuilt
+				continue;
+			}
+			compacted.getAttributes().add(attribute);
+		}
+		methodInfo.setCodeAttribute(compacted);
+		return true;
+	}
+
+	private static boolean isKept(byte[] code, boolean[] reachable, int pos) {
+		return reachable[pos] && (code[pos] & 0xff) != Opcode.NOP;
+	}
+
+	private static boolean coversReachable(byte[] code, boolean[] reachable, int start, int end) {
+		for (int pos = start; pos < end; pos++) {
+			if (isKept(code, reachable, pos)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int padding(int pos) {
+		return 3 - (pos & 3);
+	}
+
+	private static int newLength(int op, int pos, int length, int newPos) {
+		if (op == Opcode.TABLESWITCH || op == Opcode.LOOKUPSWITCH) {
+			return length - padding(pos) + padding(newPos);
+		}
+		return length;
+	}
+
+	private static int s32(byte[] code, int pos) {
+		return ByteArray.read32bit(code, pos);
+	}
+
+	private static boolean isBranch16(int op) {
+		return (op >= Opcode.IFEQ && op <= Opcode.GOTO) || op == Opcode.IFNULL || op == Opcode.IFNONNULL;
+	}
+
+	private static List<Integer> successors(byte[] code, int pos, int next) {
+		int op = code[pos] & 0xff;
+		List<Integer> successors = new ArrayList<>();
+		switch (op) {
+			case Opcode.TABLESWITCH: {
+				int data = pos + 1 + padding(pos);
+				successors.add(pos + s32(code, data));
+				int low = s32(code, data + 4);
+				int high = s32(code, data + 8);
+				for (int i = 0; i <= high - low; i++) {
+					successors.add(pos + s32(code, data + 12 + i * 4));
+				}
+				return successors;
+			}
+			case Opcode.LOOKUPSWITCH: {
+				int data = pos + 1 + padding(pos);
+				successors.add(pos + s32(code, data));
+				int pairs = s32(code, data + 4);
+				for (int i = 0; i < pairs; i++) {
+					successors.add(pos + s32(code, data + 12 + i * 8));
+				}
+				return successors;
+			}
+			case Opcode.GOTO_W:
+				successors.add(pos + s32(code, pos + 1));
+				return successors;
+			case Opcode.IRETURN:
+			case Opcode.LRETURN:
+			case Opcode.FRETURN:
+			case Opcode.DRETURN:
+			case Opcode.ARETURN:
+			case Opcode.RETURN:
+			case Opcode.ATHROW:
+				return successors;
+		}
+		if (isBranch16(op)) {
+			successors.add(pos + ByteArray.readS16bit(code, pos + 1));
+		}
+		if (op != Opcode.GOTO) {
+			successors.add(next);
+		}
+		return successors;
+	}
+
+	/**
+	 * Copies the instruction at pos to its new position, updating branch offsets
+	 *
+	 * @return false if a branch offset no longer fits
+	 */
+	private static boolean copy(byte[] code, int pos, int length, byte[] newCode, int[] newPos) {
+		int op = code[pos] & 0xff;
+		int to = newPos[pos];
+		if (isBranch16(op)) {
+			int offset = newPos[pos + ByteArray.readS16bit(code, pos + 1)] - to;
+			if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+				return false;
+			}
+			newCode[to] = (byte) op;
+			ByteArray.write16bit(offset, newCode, to + 1);
+		} else if (op == Opcode.GOTO_W) {
+			newCode[to] = (byte) op;
+			ByteArray.write32bit(newPos[pos + s32(code, pos + 1)] - to, newCode, to + 1);
+		} else if (op == Opcode.TABLESWITCH || op == Opcode.LOOKUPSWITCH) {
+			newCode[to] = (byte) op;
+			int data = pos + 1 + padding(pos);
+			int newData = to + 1 + padding(to);
+			System.arraycopy(code, data, newCode, newData, pos + length - data);
+			ByteArray.write32bit(newPos[pos + s32(code, data)] - to, newCode, newData);
+			if (op == Opcode.TABLESWITCH) {
+				int count = s32(code, data + 8) - s32(code, data + 4) + 1;
+				for (int i = 0; i < count; i++) {
+					ByteArray.write32bit(newPos[pos + s32(code, data + 12 + i * 4)] - to, newCode, newData + 12 + i * 4);
+				}
+			} else {
+				int pairs = s32(code, data + 4);
+				for (int i = 0; i < pairs; i++) {
+					ByteArray.write32bit(newPos[pos + s32(code, data + 12 + i * 8)] - to, newCode, newData + 12 + i * 8);
+				}
+			}
+		} else {
+			System.arraycopy(code, pos, newCode, to, length);
+		}
+		return true;
+	}
+
+	private static void remapLineNumbers(final LineNumberAttribute attribute, int[] newPos, int codeLength) {
+		Integer[] order = new Integer[attribute.tableLength()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(attribute.startPc(a), attribute.startPc(b));
+			}
+		});
+		// If several lines now start at the same position, only the last has code left
+		Map<Integer, Integer> lines = new LinkedHashMap<>();
+		for (int i : order) {
+			int pc = newPos[attribute.startPc(i)];
+			if (pc < codeLength) {
+				lines.put(pc, attribute.lineNumber(i));
+			}
+		}
+		byte[] info = new byte[2 + lines.size() * 4];
+		ByteArray.write16bit(lines.size(), info, 0);
+		int offset = 2;
+		for (Map.Entry<Integer, Integer> entry : lines.entrySet()) {
+			ByteArray.write16bit(entry.getKey(), info, offset);
+			ByteArray.write16bit(entry.getValue(), info, offset + 2);
+			offset += 4;
+		}
+		attribute.set(info);
+	}
+
+	private static void remapLocalVariables(LocalVariableAttribute attribute, int[] newPos) {
+		List<int[]> entries = new ArrayList<>();
+		for (int i = 0; i < attribute.tableLength(); i++) {
+			int start = newPos[attribute.startPc(i)];
+			int end = newPos[attribute.startPc(i) + attribute.codeLength(i)];
+			if (end > start) {
+				entries.add(new int[]{start, end - start, attribute.nameIndex(i), attribute.descriptorIndex(i), attribute.index(i)});
+			}
+		}
+		byte[] info = new byte[2 + entries.size() * 10];
+		ByteArray.write16bit(entries.size(), info, 0);
+		int offset = 2;
+		for (int[] entry : entries) {
+			for (int value : entry) {
+				ByteArray.write16bit(value, info, offset);
+				offset += 2;
+			}
+		}
+		attribute.set(info);
+	}
+}
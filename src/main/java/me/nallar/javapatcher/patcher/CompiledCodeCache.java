@@ -0,0 +1,387 @@
+package me.nallar.javapatcher.patcher;
+
+import javassist.*;
+import javassist.bytecode.*;
+import javassist.compiler.CompileError;
+import javassist.compiler.Javac;
+
+import java.util.*;
+
+/**
+ * Caches compiled javassist source snippets so that applying the same code to many behaviors
+ * only runs the compiler once per compile context.
+ *
+ * A compile context is the declaring class, the behavior's descriptor, whether it is static, and
+ * any local variable names visible to the snippet. Cached bytecode is relocated into the target's
+ * constant pool with {@link CodeAttribute#copy(ConstPool, Map)} instead of being recompiled.
+ *
+ * The least recently used entries are discarded once 512 are cached, as cached
+ * methods keep the class they were compiled for alive.
+ *
+ * Not thread-safe, each {@link Patches} instance owns one cache.
+ */
+public class CompiledCodeCache {
+	private static final int MAX_ENTRIES = 512;
+	private final Map<String, CompiledCode> compiled = new LruMap<>();
+	private final Map<String, CtMethod> methods = new LruMap<>();
+	private int hits;
+	private int misses;
+
+	private static String contextKey(String kind, String code, CtBehavior ctBehavior, String extra) {
+		StringBuilder key = new StringBuilder(code.length() + 128);
+		key.append(kind).append('\0')
+			.append(ctBehavior.getDeclaringClass().getName()).append('\0')
+			.append(ctBehavior.getMethodInfo2().getDescriptor()).append('\0')
+			.append(Modifier.isStatic(ctBehavior.getModifiers())).append('\0');
+		if (extra != null) {
+			key.append(extra);
+		}
+		return key.append('\0').append(code).toString();
+	}
+
+	/**
+	 * Names of the local variables visible at pc 0 (the parameters), as the compiler resolves
+	 * parameter names from these when compiling code inserted at the start of a behavior.
+	 */
+	private static String localVariableNames(CodeAttribute codeAttribute) {
+		LocalVariableAttribute localVariableAttribute = (LocalVariableAttribute) codeAttribute.getAttribute(LocalVariableAttribute.tag);
+		if (localVariableAttribute == null) {
+			return "";
+		}
+		StringBuilder names = new StringBuilder();
+		for (int i = 0, length = localVariableAttribute.tableLength(); i < length; i++) {
+			if (localVariableAttribute.startPc(i) == 0) {
+				names.append(localVariableAttribute.index(i)).append(':')
+					.append(localVariableAttribute.variableName(i)).append(':')
+					.append(localVariableAttribute.descriptor(i)).append(',');
+			}
+		}
+		return names.toString();
+	}
+
+	private static CtClass returnType(CtBehavior ctBehavior) throws NotFoundException {
+		return ctBehavior instanceof CtMethod ? ((CtMethod) ctBehavior).getReturnType() : CtClass.voidType;
+	}
+
+	private static boolean containsSwitch(CodeAttribute codeAttribute) throws BadBytecode {
+		CodeIterator iterator = codeAttribute.iterator();
+		while (iterator.hasNext()) {
+			int op = iterator.byteAt(iterator.next());
+			if (op == Opcode.TABLESWITCH || op == Opcode.LOOKUPSWITCH) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Equivalent to {@link CtBehavior#insertBefore(String)}
+	 */
+	public void insertBefore(CtBehavior ctBehavior, String code) throws CannotCompileException {
+		CtClass ctClass = ctBehavior.getDeclaringClass();
+		MethodInfo methodInfo = ctBehavior.getMethodInfo();
+		CodeAttribute codeAttribute = methodInfo.getCodeAttribute();
+		if (codeAttribute == null) {
+			throw new CannotCompileException("no method body");
+		}
+		String key = contextKey("before", code, ctBehavior, localVariableNames(codeAttribute));
+		CompiledCode compiledCode = compiled.get(key);
+		if (compiledCode == null) {
+			misses++;
+			try {
+				Javac javac = new Javac(ctClass);
+				int variables = javac.recordParams(ctBehavior.getParameterTypes(), Modifier.isStatic(ctBehavior.getModifiers()));
+				javac.recordParamNames(codeAttribute, variables);
+				javac.recordLocalVariables(codeAttribute, 0);
+				javac.recordReturnType(returnType(ctBehavior), false);
+				javac.compileStmnt(code);
+				compiledCode = new CompiledCode(javac.getBytecode(), ctClass);
+			} catch (NotFoundException e) {
+				throw new CannotCompileException(e);
+			} catch (CompileError e) {
+				throw new CannotCompileException(e);
+			}
+			compiled.put(key, compiledCode);
+		} else {
+			hits++;
+		}
+		CodeAttribute relocated = compiledCode.relocate(methodInfo.getConstPool());
+		compiledCode.growLimits(codeAttribute, false);
+		try {
+			CodeIterator iterator = codeAttribute.iterator();
+			int pos = iterator.insertEx(relocated.getCode());
+			iterator.insert(relocated.getExceptionTable(), pos);
+			methodInfo.rebuildStackMapIf6(ctClass.getClassPool(), ctClass.getClassFile2());
+		} catch (BadBytecode e) {
+			throw new CannotCompileException(e);
+		}
+	}
+
+	/**
+	 * Equivalent to {@link CtBehavior#insertAfter(String, boolean)}
+	 *
+	 * As with javassist, the code is appended once to the end of the method, outside all exception handler
+	 * ranges, and returns are replaced with jumps to it. Only non-finally insertion of code without switch
+	 * statements is cached, everything else is passed through to javassist.
+	 */
+	public void insertAfter(CtBehavior ctBehavior, String code, boolean asFinally) throws CannotCompileException {
+		MethodInfo methodInfo = ctBehavior.getMethodInfo();
+		CodeAttribute codeAttribute = methodInfo.getCodeAttribute();
+		if (asFinally || codeAttribute == null) {
+			ctBehavior.insertAfter(code, asFinally);
+			return;
+		}
+		CtClass ctClass = ctBehavior.getDeclaringClass();
+		String key = contextKey("after", code, ctBehavior, localVariableNames(codeAttribute) + codeAttribute.getMaxLocals());
+		CompiledCode compiledCode = compiled.get(key);
+		try {
+			if (compiledCode == null) {
+				misses++;
+				CtClass returnType = returnType(ctBehavior);
+				Bytecode bytecode = new Bytecode(methodInfo.getConstPool(), 0, codeAttribute.getMaxLocals());
+				Javac javac = new Javac(bytecode, ctClass);
+				int variables = javac.recordParams(ctBehavior.getParameterTypes(), Modifier.isStatic(ctBehavior.getModifiers()));
+				javac.recordParamNames(codeAttribute, variables);
+				int resultVariable = javac.recordReturnType(returnType, true);
+				javac.recordLocalVariables(codeAttribute, 0);
+				if (returnType != CtClass.voidType) {
+					bytecode.addStore(resultVariable, returnType);
+				}
+				javac.compileStmnt(code);
+				if (returnType != CtClass.voidType) {
+					bytecode.addLoad(resultVariable, returnType);
+				}
+				bytecode.addReturn(returnType == CtClass.voidType ? null : returnType);
+				compiledCode = new CompiledCode(bytecode, ctClass);
+				compiledCode.hasSwitch = containsSwitch(compiledCode.codeAttribute);
+				compiled.put(key, compiledCode);
+			} else {
+				hits++;
+			}
+			if (compiledCode.hasSwitch) {
+				ctBehavior.insertAfter(code, false);
+				return;
+			}
+			CodeIterator iterator = codeAttribute.iterator();
+			List<Integer> returns = new ArrayList<>();
+			while (iterator.hasNext()) {
+				int pos = iterator.next();
+				int op = iterator.byteAt(pos);
+				if (op >= Opcode.IRETURN && op <= Opcode.RETURN) {
+					returns.add(pos);
+				}
+			}
+			if (returns.isEmpty()) {
+				return;
+			}
+			CodeAttribute relocated = compiledCode.relocate(methodInfo.getConstPool());
+			compiledCode.growLimits(codeAttribute, false);
+			int advice = iterator.append(relocated.getCode());
+			iterator.append(relocated.getExceptionTable(), advice);
+			// Last first, gaps before the advice move it
+			for (int i = returns.size() - 1; i >= 0; i--) {
+				int pos = returns.get(i);
+				// Not exclusive, so branches to the return reach the goto
+				CodeIterator.Gap gap = iterator.insertGapAt(pos, 2, false);
+				advice += gap.length;
+				int start = gap.position + gap.length - 2;
+				for (int j = gap.position; j < start; j++) {
+					iterator.writeByte(Opcode.NOP, j);
+				}
+				iterator.writeByte(Opcode.GOTO, start);
+				iterator.write16bit(advice - start, start + 1);
+			}
+			methodInfo.rebuildStackMapIf6(ctClass.getClassPool(), ctClass.getClassFile2());
+		} catch (NotFoundException | BadBytecode e) {
+			throw new CannotCompileException(e);
+		} catch (CompileError e) {
+			throw new CannotCompileException(e);
+		}
+	}
+
+	/**
+	 * Equivalent to {@link CtBehavior#setBody(String)}
+	 */
+	public void setBody(CtBehavior ctBehavior, String code) throws CannotCompileException {
+		CtClass ctClass = ctBehavior.getDeclaringClass();
+		MethodInfo methodInfo = ctBehavior.getMethodInfo();
+		String key = contextKey("body", code, ctBehavior, null);
+		CompiledCode compiledCode = compiled.get(key);
+		if (compiledCode == null) {
+			misses++;
+			try {
+				compiledCode = new CompiledCode(new Javac(ctClass).compileBody(ctBehavior, code), ctClass);
+			} catch (CompileError e) {
+				throw new CannotCompileException(e);
+			}
+			compiled.put(key, compiledCode);
+		} else {
+			hits++;
+		}
+		methodInfo.setCodeAttribute(compiledCode.relocate(methodInfo.getConstPool()));
+		methodInfo.setAccessFlags(methodInfo.getAccessFlags() & ~AccessFlag.ABSTRACT);
+		try {
+			methodInfo.rebuildStackMapIf6(ctClass.getClassPool(), ctClass.getClassFile2());
+		} catch (BadBytecode e) {
+			throw new CannotCompileException(e);
+		}
+		rebuildClassFile(ctClass);
+	}
+
+	/**
+	 * Makes javassist compact the constant pool when the class is written, dropping the entries only the
+	 * replaced body used, as {@link CtBehavior#setBody(String)} does. CtClass.rebuildClassFile isn't
+	 * accessible, but removing a member has the same effect.
+	 */
+	private static void rebuildClassFile(CtClass ctClass) throws CannotCompileException {
+		CtField ctField = new CtField(CtClass.intType, "__rebuildClassFile", ctClass);
+		ctClass.addField(ctField);
+		try {
+			ctClass.removeField(ctField);
+		} catch (NotFoundException e) {
+			throw new CannotCompileException(e);
+		}
+	}
+
+	/**
+	 * Equivalent to {@link CtBehavior#addCatch(String, CtClass)} for methods
+	 */
+	public void addCatch(CtMethod ctMethod, String code, CtClass exceptionType) throws CannotCompileException {
+		CtClass ctClass = ctMethod.getDeclaringClass();
+		MethodInfo methodInfo = ctMethod.getMethodInfo();
+		CodeAttribute codeAttribute = methodInfo.getCodeAttribute();
+		if (codeAttribute == null) {
+			throw new CannotCompileException("no method body");
+		}
+		ConstPool constPool = methodInfo.getConstPool();
+		String key = contextKey("catch", code, ctMethod, exceptionType.getName() + ':' + codeAttribute.getMaxStack() + ':' + codeAttribute.getMaxLocals());
+		CompiledCode compiledCode = compiled.get(key);
+		if (compiledCode == null) {
+			misses++;
+			try {
+				Bytecode bytecode = new Bytecode(constPool, codeAttribute.getMaxStack(), codeAttribute.getMaxLocals());
+				bytecode.setStackDepth(1);
+				Javac javac = new Javac(bytecode, ctClass);
+				javac.recordParams(ctMethod.getParameterTypes(), Modifier.isStatic(ctMethod.getModifiers()));
+				bytecode.addAstore(javac.recordVariable(exceptionType, "$e"));
+				javac.compileStmnt(code);
+				compiledCode = new CompiledCode(bytecode, ctClass);
+			} catch (NotFoundException e) {
+				throw new CannotCompileException(e);
+			} catch (CompileError e) {
+				throw new CannotCompileException(e);
+			}
+			compiled.put(key, compiledCode);
+		} else {
+			hits++;
+		}
+		CodeAttribute relocated = compiledCode.relocate(constPool);
+		compiledCode.growLimits(codeAttribute, false);
+		try {
+			CodeIterator iterator = codeAttribute.iterator();
+			int length = iterator.getCodeLength();
+			int pos = iterator.append(relocated.getCode());
+			codeAttribute.getExceptionTable().add(0, length, length, constPool.addClassInfo(exceptionType));
+			iterator.append(relocated.getExceptionTable(), pos);
+			methodInfo.rebuildStackMapIf6(ctClass.getClassPool(), ctClass.getClassFile2());
+		} catch (BadBytecode e) {
+			throw new CannotCompileException(e);
+		}
+	}
+
+	/**
+	 * Equivalent to {@link CtNewMethod#make(String, CtClass)}
+	 *
+	 * The compiled method is kept and copied for later uses of the same code in the same class, such as
+	 * when the class is patched again. Code isn't shared between classes, as names in it may resolve to
+	 * different members in each class.
+	 */
+	public CtMethod makeMethod(String code, CtClass ctClass) throws CannotCompileException {
+		String key = "method\0" + ctClass.getName() + '\0' + code;
+		CtMethod template = methods.get(key);
+		if (template == null) {
+			misses++;
+			CtMethod ctMethod = CtNewMethod.make(code, ctClass);
+			// keep a detached copy, the returned method may be modified by later patches
+			methods.put(key, CtNewMethod.copy(ctMethod, ctClass, null));
+			return ctMethod;
+		}
+		hits++;
+		return CtNewMethod.copy(template, ctClass, null);
+	}
+
+	/**
+	 * Gets a method from another class, caching the lookup.
+	 *
+	 * Patches which copy a method's body from another class into many targets can use this to avoid
+	 * repeated class lookups and method searches.
+	 */
+	public CtMethod getMethod(ClassPool classPool, String className, String methodKey, MethodLookup lookup) throws NotFoundException {
+		String key = "lookup\0" + className + '\0' + methodKey;
+		CtMethod ctMethod = methods.get(key);
+		if (ctMethod == null) {
+			ctMethod = lookup.find(classPool.get(className));
+			methods.put(key, ctMethod);
+		}
+		return ctMethod;
+	}
+
+	/**
+	 * @return Number of snippet compilations which were avoided
+	 */
+	public int getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return Number of snippets which had to be compiled
+	 */
+	public int getMisses() {
+		return misses;
+	}
+
+	public void clear() {
+		compiled.clear();
+		methods.clear();
+	}
+
+	public interface MethodLookup {
+		CtMethod find(CtClass ctClass) throws NotFoundException;
+	}
+
+	private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+		LruMap() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	}
+
+	private static class CompiledCode {
+		final CodeAttribute codeAttribute;
+		boolean hasSwitch;
+
+		CompiledCode(Bytecode bytecode, CtClass ctClass) {
+			// Copied into a constant pool of its own, so the cache doesn't keep the compiled class's pool alive
+			codeAttribute = (CodeAttribute) bytecode.toCodeAttribute().copy(new ConstPool(ctClass.getName()), null);
+		}
+
+		CodeAttribute relocate(ConstPool constPool) {
+			return (CodeAttribute) codeAttribute.copy(constPool, null);
+		}
+
+		void growLimits(CodeAttribute target, boolean onExistingStack) {
+			// code inserted before a return runs on top of whatever the method left on the stack there
+			int stack = codeAttribute.getMaxStack() + (onExistingStack ? target.getMaxStack() : 0);
+			if (stack > target.getMaxStack()) {
+				target.setMaxStack(stack);
+			}
+			if (codeAttribute.getMaxLocals() > target.getMaxLocals()) {
+				target.setMaxLocals(codeAttribute.getMaxLocals());
+			}
+		}
+	}
+}
@@ -97,6 +97,17 @@ enum DomUtil {
 		return null;
 	}
 
+	/**
+	 * Creates a new empty XML document
+	 */
+	public static Document newDocument() {
+		try {
+			return DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		} catch (ParserConfigurationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public static String makePatchXmlFromJson(String json) {
 		Matcher m = stringMatcher.matcher(json);
 		StringBuffer sb = new StringBuffer(json.length());
@@ -0,0 +1,280 @@
+package me.nallar.javapatcher.patcher;
+
+import com.google.common.io.ByteStreams;
+import javassist.ClassPath;
+import me.nallar.javapatcher.PatcherLog;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.*;
+
+/**
+ * ClassPath for a set of jars which reads each jar's central directory once into an index and
+ * memory-maps the jar, so that looking up a class costs a hash lookup instead of jar I/O.
+ *
+ * Class bytes are cached once read, until 16MB are cached. Lookups of classes which aren't in any of
+ * the jars are answered from the index without touching the jars. Safe for concurrent use.
+ *
+ * Usage: classPool.insertClassPath(new IndexedJarClassPath(jars));
+ */
+public class IndexedJarClassPath implements ClassPath {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final long MAX_CACHED_BYTES = 16 * 1024 * 1024;
+	private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+	private static final int CENTRAL_DIRECTORY_ENTRY = 0x02014b50;
+	private static final int LOCAL_FILE_HEADER = 0x04034b50;
+	private final Map<String, Entry> index = new HashMap<>();
+	private final List<Closeable> openJars = new ArrayList<>();
+	private final ConcurrentMap<String, byte[]> classBytes = new ConcurrentHashMap<>();
+	private final AtomicLong cachedBytes = new AtomicLong();
+
+	/**
+	 * @param jars jar files to index, in classpath order
+	 * @throws IOException if a jar can't be read
+	 */
+	public IndexedJarClassPath(List<File> jars) throws IOException {
+		for (File jar : jars) {
+			try {
+				indexMapped(jar);
+			} catch (UnsupportedOperationException e) {
+				PatcherLog.trace("Falling back to ZipFile for " + jar + ": " + e.getMessage());
+				indexZipFile(jar);
+			}
+		}
+	}
+
+	private static String className(String entryName) {
+		if (!entryName.endsWith(".class")) {
+			return null;
+		}
+		return entryName.substring(0, entryName.length() - ".class".length()).replace('/', '.');
+	}
+
+	private void indexMapped(File jar) throws IOException {
+		final ByteBuffer buffer;
+		try (RandomAccessFile file = new RandomAccessFile(jar, "r")) {
+			if (file.length() > Integer.MAX_VALUE) {
+				throw new UnsupportedOperationException("too large to map");
+			}
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		int end = -1;
+		for (int i = buffer.limit() - 22, min = Math.max(0, buffer.limit() - 22 - 0xFFFF); i >= min; i--) {
+			if (buffer.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+				end = i;
+				break;
+			}
+		}
+		if (end == -1) {
+			throw new IOException(jar + " is not a zip file");
+		}
+		int entries = buffer.getShort(end + 10) & 0xFFFF;
+		long centralDirectoryOffset = buffer.getInt(end + 16) & 0xFFFFFFFFL;
+		if (entries == 0xFFFF || centralDirectoryOffset == 0xFFFFFFFFL) {
+			throw new UnsupportedOperationException("zip64");
+		}
+		int pos = (int) centralDirectoryOffset;
+		for (int i = 0; i < entries; i++) {
+			if (buffer.getInt(pos) != CENTRAL_DIRECTORY_ENTRY) {
+				throw new IOException("Corrupt central directory in " + jar + " at " + pos);
+			}
+			int method = buffer.getShort(pos + 10) & 0xFFFF;
+			int compressedSize = buffer.getInt(pos + 20);
+			int size = buffer.getInt(pos + 24);
+			int nameLength = buffer.getShort(pos + 28) & 0xFFFF;
+			int extraLength = buffer.getShort(pos + 30) & 0xFFFF;
+			int commentLength = buffer.getShort(pos + 32) & 0xFFFF;
+			int localHeaderOffset = buffer.getInt(pos + 42);
+			byte[] name = new byte[nameLength];
+			ByteBuffer nameBuffer = buffer.duplicate();
+			nameBuffer.position(pos + 46);
+			nameBuffer.get(name);
+			String className = className(new String(name, UTF_8));
+			if (className != null && !index.containsKey(className)) {
+				if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+					throw new UnsupportedOperationException("compression method " + method);
+				}
+				index.put(className, new MappedEntry(jar, buffer, localHeaderOffset, method == ZipEntry.DEFLATED, compressedSize, size));
+			}
+			pos += 46 + nameLength + extraLength + commentLength;
+		}
+	}
+
+	private void indexZipFile(File jar) throws IOException {
+		ZipFile zipFile = new ZipFile(jar);
+		openJars.add(zipFile);
+		for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); ) {
+			ZipEntry zipEntry = e.nextElement();
+			String className = className(zipEntry.getName());
+			if (className != null && !index.containsKey(className)) {
+				index.put(className, new ZipFileEntry(jar, zipFile, zipEntry));
+			}
+		}
+	}
+
+	/**
+	 * @return Bytes of the class, or null if it isn't in any of the jars
+	 */
+	private byte[] getBytes(String className) throws IOException {
+		byte[] bytes = classBytes.get(className);
+		if (bytes != null) {
+			return bytes;
+		}
+		Entry entry = index.get(className);
+		if (entry == null) {
+			return null;
+		}
+		bytes = entry.read();
+		if (cachedBytes.get() + bytes.length > MAX_CACHED_BYTES) {
+			return bytes;
+		}
+		byte[] existing = classBytes.putIfAbsent(className, bytes);
+		if (existing != null) {
+			return existing;
+		}
+		cachedBytes.addAndGet(bytes.length);
+		return bytes;
+	}
+
+	@Override
+	public InputStream openClassfile(String className) {
+		try {
+			byte[] bytes = getBytes(className);
+			return bytes == null ? null : new ByteArrayInputStream(bytes);
+		} catch (IOException e) {
+			PatcherLog.warn("Failed to read " + className, e);
+			return null;
+		}
+	}
+
+	@Override
+	public URL find(String className) {
+		Entry entry = index.get(className);
+		if (entry == null) {
+			return null;
+		}
+		try {
+			return new URL("jar:" + entry.jar.toURI().toURL() + "!/" + className.replace('.', '/') + ".class");
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return Number of indexed classes
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * Drops cached class bytes. Classes will be read from the mapped jars again when next needed.
+	 */
+	public void clearCache() {
+		classBytes.clear();
+		cachedBytes.set(0);
+	}
+
+	@Override
+	public void close() {
+		clearCache();
+		for (Closeable closeable : openJars) {
+			try {
+				closeable.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "IndexedJarClassPath(" + index.size() + " classes)";
+	}
+
+	private abstract static class Entry {
+		final File jar;
+
+		Entry(File jar) {
+			this.jar = jar;
+		}
+
+		abstract byte[] read() throws IOException;
+	}
+
+	private static class MappedEntry extends Entry {
+		private final ByteBuffer buffer;
+		private final int localHeaderOffset;
+		private final boolean deflated;
+		private final int compressedSize;
+		private final int size;
+
+		MappedEntry(File jar, ByteBuffer buffer, int localHeaderOffset, boolean deflated, int compressedSize, int size) {
+			super(jar);
+			this.buffer = buffer;
+			this.localHeaderOffset = localHeaderOffset;
+			this.deflated = deflated;
+			this.compressedSize = compressedSize;
+			this.size = size;
+		}
+
+		@Override
+		byte[] read() throws IOException {
+			if (buffer.getInt(localHeaderOffset) != LOCAL_FILE_HEADER) {
+				throw new IOException("Corrupt local header in " + jar + " at " + localHeaderOffset);
+			}
+			int dataOffset = localHeaderOffset + 30 + (buffer.getShort(localHeaderOffset + 26) & 0xFFFF) + (buffer.getShort(localHeaderOffset + 28) & 0xFFFF);
+			byte[] data = new byte[compressedSize];
+			ByteBuffer dataBuffer = buffer.duplicate();
+			dataBuffer.position(dataOffset);
+			dataBuffer.get(data);
+			if (!deflated) {
+				return data;
+			}
+			Inflater inflater = new Inflater(true);
+			try {
+				inflater.setInput(data);
+				byte[] bytes = new byte[size];
+				int read = 0;
+				while (read < size) {
+					int inflated = inflater.inflate(bytes, read, size - read);
+					if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					read += inflated;
+				}
+				if (read != size) {
+					throw new IOException("Truncated entry in " + jar + " at " + localHeaderOffset);
+				}
+				return bytes;
+			} catch (DataFormatException e) {
+				throw new IOException(e);
+			} finally {
+				inflater.end();
+			}
+		}
+	}
+
+	private static class ZipFileEntry extends Entry {
+		private final ZipFile zipFile;
+		private final ZipEntry zipEntry;
+
+		ZipFileEntry(File jar, ZipFile zipFile, ZipEntry zipEntry) {
+			super(jar);
+			this.zipFile = zipFile;
+			this.zipEntry = zipEntry;
+		}
+
+		@Override
+		byte[] read() throws IOException {
+			try (InputStream inputStream = zipFile.getInputStream(zipEntry)) {
+				return ByteStreams.toByteArray(inputStream);
+			}
+		}
+	}
+}
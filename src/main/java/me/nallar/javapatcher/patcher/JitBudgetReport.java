@@ -0,0 +1,207 @@
+package me.nallar.javapatcher.patcher;
+
+import javassist.bytecode.*;
+
+import java.util.*;
+
+/**
+ * Bytecode sizes of a patched class's methods before and after patching, compared to HotSpot's JIT limits.
+ *
+ * Methods are flagged if patching made them cross a limit, or added exception handlers or monitors.
+ */
+public class JitBudgetReport {
+	/**
+	 * -XX:MaxInlineSize, methods larger than this are only inlined if they are hot
+	 */
+	public static final int MAX_INLINE_SIZE = 35;
+	/**
+	 * -XX:FreqInlineSize, methods larger than this are never inlined
+	 */
+	public static final int FREQ_INLINE_SIZE = 325;
+	/**
+	 * -XX:HugeMethodLimit, methods larger than this are never compiled
+	 */
+	public static final int HUGE_METHOD_LIMIT = 8000;
+	private static final int[] LIMITS = {MAX_INLINE_SIZE, FREQ_INLINE_SIZE, HUGE_METHOD_LIMIT};
+	private final String className;
+	private final List<MethodBudget> methods;
+
+	JitBudgetReport(String className, Map<String, MethodBudget> before, Map<String, MethodBudget> after) {
+		this.className = className;
+		List<MethodBudget> methods = new ArrayList<>();
+		for (Map.Entry<String, MethodBudget> entry : after.entrySet()) {
+			methods.add(new MethodBudget(before.get(entry.getKey()), entry.getValue()));
+		}
+		for (Map.Entry<String, MethodBudget> entry : before.entrySet()) {
+			if (!after.containsKey(entry.getKey())) {
+				methods.add(new MethodBudget(entry.getValue(), null));
+			}
+		}
+		this.methods = Collections.unmodifiableList(methods);
+	}
+
+	/**
+	 * @return Size, handlers and monitors of each method with code in the class, by name and descriptor
+	 */
+	static Map<String, MethodBudget> measure(ClassFile classFile) {
+		Map<String, MethodBudget> methods = new LinkedHashMap<>();
+		for (Object method_ : classFile.getMethods()) {
+			MethodInfo methodInfo = (MethodInfo) method_;
+			CodeAttribute codeAttribute = methodInfo.getCodeAttribute();
+			if (codeAttribute == null) {
+				continue;
+			}
+			int monitors = (methodInfo.getAccessFlags() & AccessFlag.SYNCHRONIZED) == 0 ? 0 : 1;
+			CodeIterator iterator = codeAttribute.iterator();
+			try {
+				while (iterator.hasNext()) {
+					if (iterator.byteAt(iterator.next()) == Opcode.MONITORENTER) {
+						monitors++;
+					}
+				}
+			} catch (BadBytecode ignored) {
+			}
+			String name = methodInfo.getName() + methodInfo.getDescriptor();
+			methods.put(name, new MethodBudget(name, codeAttribute.getCodeLength(), codeAttribute.getExceptionTable().size(), monitors));
+		}
+		return methods;
+	}
+
+	public String getClassName() {
+		return className;
+	}
+
+	/**
+	 * @return Every method with code before or after patching
+	 */
+	public List<MethodBudget> getMethods() {
+		return methods;
+	}
+
+	/**
+	 * @return Methods which crossed a limit, or gained exception handlers or monitors
+	 */
+	public List<MethodBudget> getFlagged() {
+		List<MethodBudget> flagged = new ArrayList<>();
+		for (MethodBudget method : methods) {
+			if (method.isFlagged()) {
+				flagged.add(method);
+			}
+		}
+		return flagged;
+	}
+
+	/**
+	 * @return Report of each method changed by patching, one per line
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(className).append('\n');
+		for (MethodBudget method : methods) {
+			if (method.isChanged()) {
+				sb.append('\t').append(method).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Size of one method before and after patching. Sizes are -1 if the method didn't exist or has been removed.
+	 */
+	public static class MethodBudget {
+		private final String name;
+		private final int sizeBefore;
+		private final int sizeAfter;
+		private final int handlersBefore;
+		private final int handlersAfter;
+		private final int monitorsBefore;
+		private final int monitorsAfter;
+
+		private MethodBudget(String name, int size, int handlers, int monitors) {
+			this.name = name;
+			sizeBefore = sizeAfter = size;
+			handlersBefore = handlersAfter = handlers;
+			monitorsBefore = monitorsAfter = monitors;
+		}
+
+		private MethodBudget(MethodBudget before, MethodBudget after) {
+			name = (after == null ? before : after).name;
+			sizeBefore = before == null ? -1 : before.sizeBefore;
+			handlersBefore = before == null ? 0 : before.handlersBefore;
+			monitorsBefore = before == null ? 0 : before.monitorsBefore;
+			sizeAfter = after == null ? -1 : after.sizeAfter;
+			handlersAfter = after == null ? 0 : after.handlersAfter;
+			monitorsAfter = after == null ? 0 : after.monitorsAfter;
+		}
+
+		/**
+		 * @return Method name and descriptor
+		 */
+		public String getName() {
+			return name;
+		}
+
+		public int getSizeBefore() {
+			return sizeBefore;
+		}
+
+		public int getSizeAfter() {
+			return sizeAfter;
+		}
+
+		public int getHandlersBefore() {
+			return handlersBefore;
+		}
+
+		public int getHandlersAfter() {
+			return handlersAfter;
+		}
+
+		/**
+		 * @return Number of monitorenter instructions, plus one if the method is synchronized
+		 */
+		public int getMonitorsBefore() {
+			return monitorsBefore;
+		}
+
+		public int getMonitorsAfter() {
+			return monitorsAfter;
+		}
+
+		/**
+		 * @return Limits which the method was within before patching, but isn't after. Added methods cross no limits.
+		 */
+		public List<Integer> getCrossedLimits() {
+			List<Integer> crossed = new ArrayList<>();
+			for (int limit : LIMITS) {
+				if (sizeAfter > limit && sizeBefore != -1 && sizeBefore <= limit) {
+					crossed.add(limit);
+				}
+			}
+			return crossed;
+		}
+
+		public boolean isFlagged() {
+			return sizeBefore != -1 && (!getCrossedLimits().isEmpty() || handlersAfter > handlersBefore || monitorsAfter > monitorsBefore);
+		}
+
+		public boolean isChanged() {
+			return sizeBefore != sizeAfter || handlersBefore != handlersAfter || monitorsBefore != monitorsAfter;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder(name).append(": ").append(sizeBefore).append(" -> ").append(sizeAfter).append(" bytes");
+			for (int limit : getCrossedLimits()) {
+				sb.append(", crossed ").append(limit);
+			}
+			if (handlersAfter > handlersBefore) {
+				sb.append(", +").append(handlersAfter - handlersBefore).append(" handlers");
+			}
+			if (monitorsAfter > monitorsBefore) {
+				sb.append(", +").append(monitorsAfter - monitorsBefore).append(" monitors");
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,426 @@
+package me.nallar.javapatcher.patcher;
+
+import javassist.*;
+import javassist.bytecode.*;
+import javassist.bytecode.analysis.Analyzer;
+import javassist.bytecode.analysis.Frame;
+import me.nallar.javapatcher.PatcherLog;
+
+import java.util.*;
+
+/**
+ * Inlines calls to statically bound methods: the callee's code is copied into the caller in place of the call.
+ *
+ * The call's arguments are stored into new locals of the caller, which replace the callee's parameters.
+ * Returns become jumps to the end of the inlined code, leaving the return value on the stack.
+ * The callee's exception handlers are added before the caller's, so they take precedence within the inlined code.
+ *
+ * A call is not inlined if:
+ * - the callee may be overridden, is abstract, native or synchronized
+ * - the callee calls itself
+ * - the callee uses a member or class which the caller can't access
+ * - the callee makes super calls or calls private methods of another class
+ * - the callee uses jsr/ret or switches
+ * - the callee has exception handlers, and the call is made with other values on the stack
+ *   which would be lost when an exception is caught
+ */
+class MethodInliner {
+	private final ClassPool classPool;
+	private final CtBehavior caller;
+	private final ClassMap classMap;
+
+	/**
+	 * @param classMap Classes to rename in the callee's code, eg from a template class to the caller's class
+	 */
+	MethodInliner(ClassPool classPool, CtBehavior caller, ClassMap classMap) {
+		this.classPool = classPool;
+		this.caller = caller;
+		this.classMap = classMap;
+	}
+
+	private static boolean isInvoke(int op) {
+		return op == Opcode.INVOKEVIRTUAL || op == Opcode.INVOKESPECIAL || op == Opcode.INVOKESTATIC || op == Opcode.INVOKEINTERFACE;
+	}
+
+	/**
+	 * @param className (optional) Class of the called method
+	 * @param method    Name of the called method
+	 * @param index     Index of the call to inline, or -1 for all
+	 * @return Number of calls inlined
+	 */
+	int inline(String className, String method, int index) throws BadBytecode, NotFoundException {
+		MethodInfo methodInfo = caller.getMethodInfo();
+		CodeAttribute codeAttribute = methodInfo.getCodeAttribute();
+		if (codeAttribute == null) {
+			return 0;
+		}
+		ConstPool constPool = codeAttribute.getConstPool();
+		CodeIterator iterator = codeAttribute.iterator();
+		List<Integer> calls = new ArrayList<>();
+		int currentIndex = 0;
+		while (iterator.hasNext()) {
+			int pos = iterator.next();
+			int op = iterator.byteAt(pos);
+			if (!isInvoke(op)) {
+				continue;
+			}
+			int methodIndex = iterator.u16bitAt(pos + 1);
+			boolean isInterface = op == Opcode.INVOKEINTERFACE;
+			String name = isInterface ? constPool.getInterfaceMethodrefName(methodIndex) : constPool.getMethodrefName(methodIndex);
+			String owner = isInterface ? constPool.getInterfaceMethodrefClassName(methodIndex) : constPool.getMethodrefClassName(methodIndex);
+			if (name.equals(method) && (className == null || owner.equals(className)) && (index == -1 || currentIndex++ == index)) {
+				calls.add(pos);
+			}
+		}
+		if (calls.isEmpty()) {
+			return 0;
+		}
+		Frame[] frames = new Analyzer().analyze(caller.getDeclaringClass(), methodInfo);
+		int inlined = 0;
+		// Last first, so that inlining doesn't move calls which haven't been inlined yet
+		Collections.reverse(calls);
+		for (int pos : calls) {
+			if (frames[pos] != null && inline(codeAttribute, iterator, pos, frames[pos])) {
+				inlined++;
+			}
+		}
+		if (inlined != 0) {
+			codeAttribute.computeMaxStack();
+			methodInfo.rebuildStackMapIf6(classPool, caller.getDeclaringClass().getClassFile2());
+		}
+		return inlined;
+	}
+
+	private boolean inline(CodeAttribute codeAttribute, CodeIterator iterator, int pos, Frame frame) throws BadBytecode, NotFoundException {
+		ConstPool constPool = codeAttribute.getConstPool();
+		int op = iterator.byteAt(pos);
+		int methodIndex = iterator.u16bitAt(pos + 1);
+		String owner = op == Opcode.INVOKEINTERFACE ? constPool.getInterfaceMethodrefClassName(methodIndex) : constPool.getMethodrefClassName(methodIndex);
+		String name = op == Opcode.INVOKEINTERFACE ? constPool.getInterfaceMethodrefName(methodIndex) : constPool.getMethodrefName(methodIndex);
+		String descriptor = op == Opcode.INVOKEINTERFACE ? constPool.getInterfaceMethodrefType(methodIndex) : constPool.getMethodrefType(methodIndex);
+		String where = owner + '.' + name + descriptor + " in " + caller.getLongName();
+		if (name.equals(MethodInfo.nameInit)) {
+			PatcherLog.warn("Not inlining " + where + ", can't inline constructors.");
+			return false;
+		}
+		CtMethod callee = classPool.get(owner).getMethod(name, descriptor);
+		CtClass calleeClass = callee.getDeclaringClass();
+		int modifiers = callee.getModifiers();
+		boolean isStatic = op == Opcode.INVOKESTATIC;
+		boolean staticallyBound = isStatic || op == Opcode.INVOKESPECIAL || Modifier.isPrivate(modifiers) || Modifier.isFinal(modifiers) || Modifier.isFinal(calleeClass.getModifiers());
+		if (!staticallyBound || op == Opcode.INVOKEINTERFACE) {
+			PatcherLog.warn("Not inlining " + where + ", it may be overridden.");
+			return false;
+		}
+		if ((modifiers & (Modifier.ABSTRACT | Modifier.NATIVE | Modifier.SYNCHRONIZED)) != 0) {
+			PatcherLog.warn("Not inlining " + where + ", it is abstract, native or synchronized.");
+			return false;
+		}
+		CodeAttribute calleeCode = callee.getMethodInfo2().getCodeAttribute();
+		String problem = findProblem(callee, calleeCode);
+		if (problem == null && calleeCode.getExceptionTable().size() != 0) {
+			int belowArguments = frame.getTopIndex() + 1 - Descriptor.paramSize(descriptor) - (isStatic ? 0 : 1);
+			if (belowArguments != 0) {
+				problem = "it has exception handlers and is called with other values on the stack";
+			}
+		}
+		if (problem != null) {
+			PatcherLog.warn("Not inlining " + where + ", " + problem + '.');
+			return false;
+		}
+
+		int base = codeAttribute.getMaxLocals();
+		Bytecode prologue = storeArguments(constPool, descriptor, isStatic, base);
+		CodeAttribute body = (CodeAttribute) calleeCode.copy(constPool, classMap);
+		relocateLocals(body, base);
+		replaceReturns(body);
+		byte[] code = new byte[prologue.length() + body.getCodeLength()];
+		System.arraycopy(prologue.get(), 0, code, 0, prologue.length());
+		System.arraycopy(body.getCode(), 0, code, prologue.length(), body.getCodeLength());
+
+		int callLength = op == Opcode.INVOKEINTERFACE ? 5 : 3;
+		int start = pos;
+		if (code.length > callLength) {
+			CodeIterator.Gap gap = iterator.insertGapAt(pos, code.length - callLength, false);
+			start = gap.position + gap.length + callLength - code.length;
+		}
+		for (int i = pos; i < start; i++) {
+			iterator.writeByte(Opcode.NOP, i);
+		}
+		iterator.write(code, start);
+		for (int i = start + code.length; i < pos + callLength; i++) {
+			iterator.writeByte(Opcode.NOP, i);
+		}
+
+		ExceptionTable exceptionTable = codeAttribute.getExceptionTable();
+		ExceptionTable bodyExceptionTable = body.getExceptionTable();
+		int bodyStart = start + prologue.length();
+		for (int i = 0; i < bodyExceptionTable.size(); i++) {
+			exceptionTable.add(i, bodyStart + bodyExceptionTable.startPc(i), bodyStart + bodyExceptionTable.endPc(i), bodyStart + bodyExceptionTable.handlerPc(i), bodyExceptionTable.catchType(i));
+		}
+		codeAttribute.setMaxLocals(Math.max(codeAttribute.getMaxLocals(), base + calleeCode.getMaxLocals()));
+		PatcherLog.trace("Inlined " + where);
+		return true;
+	}
+
+	/**
+	 * @return Why the callee can't be inlined, or null if it can be
+	 */
+	private String findProblem(CtMethod callee, CodeAttribute calleeCode) throws BadBytecode {
+		if (calleeCode == null) {
+			return "it has no code";
+		}
+		CtClass callerClass = caller.getDeclaringClass();
+		String calleeClassName = mapped(callee.getDeclaringClass().getName());
+		ConstPool constPool = calleeCode.getConstPool();
+		Frame[] frames = new Analyzer().analyze(callee.getDeclaringClass(), callee.getMethodInfo2());
+		String signature = callee.getSignature();
+		int returnSize = Descriptor.dataSize(signature.substring(signature.indexOf(')') + 1));
+		CodeIterator iterator = calleeCode.iterator();
+		while (iterator.hasNext()) {
+			int pos = iterator.next();
+			int op = iterator.byteAt(pos);
+			switch (op) {
+				case Opcode.JSR:
+				case Opcode.JSR_W:
+				case Opcode.RET:
+					return "it uses jsr/ret";
+				case Opcode.TABLESWITCH:
+				case Opcode.LOOKUPSWITCH:
+					return "it contains a switch";
+				case Opcode.WIDE:
+					if (iterator.byteAt(pos + 1) == Opcode.RET) {
+						return "it uses jsr/ret";
+					}
+					break;
+				case Opcode.IRETURN:
+				case Opcode.LRETURN:
+				case Opcode.FRETURN:
+				case Opcode.DRETURN:
+				case Opcode.ARETURN:
+				case Opcode.RETURN:
+					if (frames[pos] != null && frames[pos].getTopIndex() + 1 != returnSize) {
+						return "it returns with other values on the stack";
+					}
+					break;
+				case Opcode.GETFIELD:
+				case Opcode.PUTFIELD:
+				case Opcode.GETSTATIC:
+				case Opcode.PUTSTATIC: {
+					int index = iterator.u16bitAt(pos + 1);
+					String owner = mapped(constPool.getFieldrefClassName(index));
+					if (!isAccessible(owner, constPool.getFieldrefName(index), constPool.getFieldrefType(index), false)) {
+						return "it uses field " + owner + '.' + constPool.getFieldrefName(index) + " which isn't accessible";
+					}
+					break;
+				}
+				case Opcode.INVOKEVIRTUAL:
+				case Opcode.INVOKESPECIAL:
+				case Opcode.INVOKESTATIC:
+				case Opcode.INVOKEINTERFACE: {
+					int index = iterator.u16bitAt(pos + 1);
+					boolean isInterface = op == Opcode.INVOKEINTERFACE;
+					String owner = mapped(isInterface ? constPool.getInterfaceMethodrefClassName(index) : constPool.getMethodrefClassName(index));
+					String name = isInterface ? constPool.getInterfaceMethodrefName(index) : constPool.getMethodrefName(index);
+					String descriptor = isInterface ? constPool.getInterfaceMethodrefType(index) : constPool.getMethodrefType(index);
+					if (owner.equals(calleeClassName) && name.equals(callee.getName()) && descriptor.equals(callee.getSignature())) {
+						return "it is recursive";
+					}
+					if (op == Opcode.INVOKESPECIAL && !name.equals(MethodInfo.nameInit) && !calleeClassName.equals(callerClass.getName())) {
+						return "it makes a super or private call to " + owner + '.' + name;
+					}
+					if (!isAccessible(owner, name, descriptor, true)) {
+						return "it calls " + owner + '.' + name + descriptor + " which isn't accessible";
+					}
+					break;
+				}
+				case Opcode.NEW:
+				case Opcode.ANEWARRAY:
+				case Opcode.CHECKCAST:
+				case Opcode.INSTANCEOF:
+				case Opcode.MULTIANEWARRAY: {
+					String className = mapped(constPool.getClassInfo(iterator.u16bitAt(pos + 1)));
+					if (!isAccessible(className)) {
+						return "it uses class " + className + " which isn't accessible";
+					}
+					break;
+				}
+			}
+		}
+		return null;
+	}
+
+	private String mapped(String className) {
+		String mapped = (String) classMap.get(Descriptor.toJvmName(className));
+		return mapped == null ? className : Descriptor.toJavaName(mapped);
+	}
+
+	private boolean isAccessible(String className) {
+		while (className.endsWith("[]")) {
+			className = className.substring(0, className.length() - 2);
+		}
+		if (className.startsWith("[")) {
+			return true;
+		}
+		try {
+			CtClass ctClass = classPool.get(className);
+			return ctClass.isPrimitive() || isAccessible(ctClass, ctClass.getModifiers());
+		} catch (NotFoundException e) {
+			return false;
+		}
+	}
+
+	private boolean isAccessible(CtClass declaringClass, int modifiers) throws NotFoundException {
+		CtClass callerClass = caller.getDeclaringClass();
+		if (declaringClass.getName().equals(callerClass.getName()) || Modifier.isPublic(modifiers)) {
+			return true;
+		}
+		if (Modifier.isPrivate(modifiers)) {
+			return false;
+		}
+		String packageName = declaringClass.getPackageName();
+		boolean samePackage = packageName == null ? callerClass.getPackageName() == null : packageName.equals(callerClass.getPackageName());
+		return samePackage || (Modifier.isProtected(modifiers) && callerClass.subclassOf(declaringClass));
+	}
+
+	private boolean isAccessible(String owner, String name, String descriptor, boolean isMethod) {
+		try {
+			if (!isAccessible(owner)) {
+				return false;
+			}
+			CtClass ownerClass = classPool.get(owner);
+			CtMember member = isMethod ? (name.equals(MethodInfo.nameInit) ? ownerClass.getConstructor(descriptor) : ownerClass.getMethod(name, descriptor)) : ownerClass.getField(name, descriptor);
+			return isAccessible(member.getDeclaringClass(), member.getModifiers());
+		} catch (NotFoundException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Stores the arguments on the stack into locals starting at base, in the callee's parameter layout
+	 */
+	private static Bytecode storeArguments(ConstPool constPool, String descriptor, boolean isStatic, int base) {
+		List<Character> types = new ArrayList<>();
+		List<Integer> slots = new ArrayList<>();
+		int slot = base + (isStatic ? 0 : 1);
+		for (Descriptor.Iterator iterator = new Descriptor.Iterator(descriptor); iterator.hasNext(); ) {
+			iterator.next();
+			if (!iterator.isParameter()) {
+				break;
+			}
+			types.add(iterator.currentChar());
+			slots.add(slot);
+			slot += iterator.is2byte() ? 2 : 1;
+		}
+		Bytecode bytecode = new Bytecode(constPool);
+		for (int i = types.size() - 1; i >= 0; i--) {
+			switch (types.get(i)) {
+				case 'J':
+					bytecode.addLstore(slots.get(i));
+					break;
+				case 'F':
+					bytecode.addFstore(slots.get(i));
+					break;
+				case 'D':
+					bytecode.addDstore(slots.get(i));
+					break;
+				case 'L':
+				case '[':
+					bytecode.addAstore(slots.get(i));
+					break;
+				default:
+					bytecode.addIstore(slots.get(i));
+			}
+		}
+		if (!isStatic) {
+			bytecode.addAstore(base);
+			// The call would have thrown a NullPointerException for a null receiver
+			bytecode.addAload(base);
+			bytecode.addInvokevirtual("java.lang.Object", "getClass", "()Ljava/lang/Class;");
+			bytecode.addOpcode(Opcode.POP);
+		}
+		return bytecode;
+	}
+
+	/**
+	 * Adds base to the index of every local variable used by code
+	 */
+	private static void relocateLocals(CodeAttribute code, int base) throws BadBytecode {
+		CodeIterator iterator = code.iterator();
+		List<Integer> positions = new ArrayList<>();
+		while (iterator.hasNext()) {
+			positions.add(iterator.next());
+		}
+		Collections.reverse(positions);
+		for (int pos : positions) {
+			int op = iterator.byteAt(pos);
+			byte[] replacement;
+			int length;
+			if (op == Opcode.WIDE) {
+				iterator.write16bit(iterator.u16bitAt(pos + 2) + base, pos + 2);
+				continue;
+			} else if (op >= Opcode.ILOAD_0 && op <= Opcode.ALOAD_3) {
+				replacement = local(Opcode.ILOAD + (op - Opcode.ILOAD_0) / 4, Opcode.ILOAD_0, (op - Opcode.ILOAD_0) / 4, base + (op - Opcode.ILOAD_0) % 4);
+				length = 1;
+			} else if (op >= Opcode.ISTORE_0 && op <= Opcode.ASTORE_3) {
+				replacement = local(Opcode.ISTORE + (op - Opcode.ISTORE_0) / 4, Opcode.ISTORE_0, (op - Opcode.ISTORE_0) / 4, base + (op - Opcode.ISTORE_0) % 4);
+				length = 1;
+			} else if ((op >= Opcode.ILOAD && op <= Opcode.ALOAD) || (op >= Opcode.ISTORE && op <= Opcode.ASTORE)) {
+				int shortBase = op <= Opcode.ALOAD ? Opcode.ILOAD_0 : Opcode.ISTORE_0;
+				int type = op - (op <= Opcode.ALOAD ? Opcode.ILOAD : Opcode.ISTORE);
+				replacement = local(op, shortBase, type, base + iterator.byteAt(pos + 1));
+				length = 2;
+			} else if (op == Opcode.IINC) {
+				int index = base + iterator.byteAt(pos + 1);
+				int constant = iterator.signedByteAt(pos + 2);
+				replacement = index <= 255 ? new byte[]{(byte) Opcode.IINC, (byte) index, (byte) constant}
+					: new byte[]{(byte) Opcode.WIDE, (byte) Opcode.IINC, (byte) (index >> 8), (byte) index, (byte) (constant >> 8), (byte) constant};
+				length = 3;
+			} else {
+				continue;
+			}
+			int start = pos;
+			if (replacement.length > length) {
+				CodeIterator.Gap gap = iterator.insertGapAt(pos, replacement.length - length, false);
+				start = gap.position + gap.length + length - replacement.length;
+			}
+			iterator.write(replacement, start);
+		}
+	}
+
+	/**
+	 * @return Shortest instruction accessing local index, given the long form opcode, and the first short form opcode and type offset
+	 */
+	private static byte[] local(int op, int shortBase, int type, int index) {
+		if (index <= 3) {
+			return new byte[]{(byte) (shortBase + type * 4 + index)};
+		}
+		if (index <= 255) {
+			return new byte[]{(byte) op, (byte) index};
+		}
+		return new byte[]{(byte) Opcode.WIDE, (byte) op, (byte) (index >> 8), (byte) index};
+	}
+
+	/**
+	 * Replaces returns with jumps to the end of the code
+	 */
+	private static void replaceReturns(CodeAttribute code) throws BadBytecode {
+		CodeIterator iterator = code.iterator();
+		List<Integer> positions = new ArrayList<>();
+		while (iterator.hasNext()) {
+			int pos = iterator.next();
+			int op = iterator.byteAt(pos);
+			if (op >= Opcode.IRETURN && op <= Opcode.RETURN) {
+				positions.add(pos);
+			}
+		}
+		Collections.reverse(positions);
+		for (int pos : positions) {
+			CodeIterator.Gap gap = iterator.insertGapAt(pos, 2, false);
+			int start = gap.position + gap.length - 2;
+			// Jumps to the end of the code are moved by later gaps, as their target is after the gap
+			iterator.writeByte(Opcode.GOTO, start);
+			iterator.write16bit(iterator.getCodeLength() - start, start + 1);
+		}
+	}
+}
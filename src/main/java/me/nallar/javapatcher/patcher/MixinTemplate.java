@@ -0,0 +1,127 @@
+package me.nallar.javapatcher.patcher;
+
+import javassist.*;
+import javassist.bytecode.*;
+import me.nallar.javapatcher.PatcherLog;
+
+import java.util.*;
+
+/**
+ * Members of a mixin class which are merged into targets by {@link Patches#mixin(CtClass, Map)}.
+ *
+ * Built once per mixin class: shadow members, constructors and the static initializer are dropped,
+ * leaving the interfaces, fields and methods to copy. Applying the template copies their bytecode
+ * into the target, remapping references to the mixin class to the target class, without compiling.
+ *
+ * Field initializers are compiled into the dropped constructors and static initializer, so copied
+ * fields start with their default value, other than constant static final fields. A warning is
+ * logged for each field the mixin initializes.
+ */
+class MixinTemplate {
+	private final String name;
+	private final List<CtClass> interfaces;
+	private final List<CtField> fields = new ArrayList<>();
+	private final List<CtMethod> methods = new ArrayList<>();
+	private final List<CtField> shadowFields = new ArrayList<>();
+	private final List<CtMethod> shadowMethods = new ArrayList<>();
+
+	MixinTemplate(CtClass mixin) throws NotFoundException, BadBytecode {
+		name = mixin.getName();
+		interfaces = Arrays.asList(mixin.getInterfaces());
+		Set<String> initializedFields = initializedFields(mixin);
+		for (CtField ctField : mixin.getDeclaredFields()) {
+			boolean shadow = ctField.hasAnnotation(Shadow.class);
+			(shadow ? shadowFields : fields).add(ctField);
+			if (!shadow && initializedFields.contains(ctField.getName())) {
+				PatcherLog.warn("Mixin " + name + " field " + ctField.getName() + " is initialized in a constructor or static initializer, it will not be initialized in targets");
+			}
+		}
+		for (CtMethod ctMethod : mixin.getDeclaredMethods()) {
+			(Modifier.isAbstract(ctMethod.getModifiers()) || ctMethod.hasAnnotation(Shadow.class) ? shadowMethods : methods).add(ctMethod);
+		}
+		if (mixin.getClassInitializer() != null) {
+			PatcherLog.warn("Static initializer of mixin " + name + " will not be copied to targets");
+		}
+	}
+
+	/**
+	 * @return Names of the mixin's fields which are assigned by its constructors or static initializer
+	 */
+	private static Set<String> initializedFields(CtClass mixin) throws BadBytecode {
+		List<CtBehavior> initializers = new ArrayList<CtBehavior>(Arrays.asList(mixin.getDeclaredConstructors()));
+		if (mixin.getClassInitializer() != null) {
+			initializers.add(mixin.getClassInitializer());
+		}
+		Set<String> initializedFields = new HashSet<>();
+		for (CtBehavior ctBehavior : initializers) {
+			CodeAttribute codeAttribute = ctBehavior.getMethodInfo2().getCodeAttribute();
+			if (codeAttribute == null) {
+				continue;
+			}
+			ConstPool constPool = codeAttribute.getConstPool();
+			CodeIterator iterator = codeAttribute.iterator();
+			while (iterator.hasNext()) {
+				int pos = iterator.next();
+				int op = iterator.byteAt(pos);
+				if ((op == Opcode.PUTFIELD || op == Opcode.PUTSTATIC) && constPool.getFieldrefClassName(iterator.u16bitAt(pos + 1)).equals(mixin.getName())) {
+					initializedFields.add(constPool.getFieldrefName(iterator.u16bitAt(pos + 1)));
+				}
+			}
+		}
+		return initializedFields;
+	}
+
+	private static CtMethod getDeclaredMethod(CtClass ctClass, String name, String descriptor) {
+		for (CtMethod ctMethod : ctClass.getDeclaredMethods()) {
+			if (ctMethod.getName().equals(name) && ctMethod.getSignature().equals(descriptor)) {
+				return ctMethod;
+			}
+		}
+		return null;
+	}
+
+	void apply(CtClass target, ClassPool classPool) throws CannotCompileException, NotFoundException, BadBytecode {
+		ClassMap classMap = new ClassMap();
+		classMap.put(name, target.getName());
+		for (CtField ctField : shadowFields) {
+			try {
+				target.getField(ctField.getName(), Descriptor.rename(ctField.getSignature(), name, target.getName()));
+			} catch (NotFoundException e) {
+				PatcherLog.warn("Mixin " + name + " shadow field " + ctField.getName() + " not found in " + target.getName());
+			}
+		}
+		for (CtMethod ctMethod : shadowMethods) {
+			try {
+				target.getMethod(ctMethod.getName(), Descriptor.rename(ctMethod.getSignature(), name, target.getName()));
+			} catch (NotFoundException e) {
+				PatcherLog.warn("Mixin " + name + " shadow method " + ctMethod.getLongName() + " not found in " + target.getName());
+			}
+		}
+		for (CtClass interface_ : interfaces) {
+			if (!target.subtypeOf(interface_)) {
+				target.addInterface(interface_);
+			}
+		}
+		for (CtField ctField : fields) {
+			try {
+				target.getDeclaredField(ctField.getName());
+				PatcherLog.warn("Mixin " + name + " field " + ctField.getName() + " already exists in " + target.getName() + ", mark it as @Shadow if this is intended");
+				continue;
+			} catch (NotFoundException ignored) {
+			}
+			CtField copy = new CtField(ctField, target);
+			copy.getFieldInfo2().setDescriptor(Descriptor.rename(ctField.getSignature(), name, target.getName()));
+			target.addField(copy);
+		}
+		for (CtMethod ctMethod : methods) {
+			String descriptor = Descriptor.rename(ctMethod.getSignature(), name, target.getName());
+			CtMethod existing = getDeclaredMethod(target, ctMethod.getName(), descriptor);
+			if (existing == null) {
+				target.addMethod(CtNewMethod.copy(ctMethod, target, classMap));
+			} else {
+				existing.setBody(ctMethod, classMap);
+				existing.getMethodInfo().rebuildStackMapIf6(classPool, target.getClassFile());
+			}
+		}
+	}
+}
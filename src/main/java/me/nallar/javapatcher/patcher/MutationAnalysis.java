@@ -0,0 +1,126 @@
+package me.nallar.javapatcher.patcher;
+
+import com.google.common.collect.ImmutableSet;
+import javassist.*;
+import javassist.bytecode.*;
+
+import java.util.*;
+
+/**
+ * Classifies methods as readers or writers of the state of their class, by scanning their bytecode.
+ *
+ * A method is a writer if it:
+ * - writes a field of its class
+ * - stores into an array
+ * - calls a method with a mutator name, on any object
+ * - calls a writer method of its class
+ * - calls an inherited method of its class, other than methods of Object, unless mutators are given explicitly
+ * Everything else is a reader. The analysis is conservative, a method which only modifies local
+ * state may be classified as a writer, but a method which modifies its class's state won't be
+ * classified as a reader unless it does so through a call to an unknown mutator.
+ */
+enum MutationAnalysis {
+	;
+	static final Set<String> DEFAULT_MUTATORS = ImmutableSet.of(
+		"add", "addAll", "put", "putAll", "putIfAbsent", "remove", "removeAll", "retainAll", "clear",
+		"set", "offer", "poll", "push", "pop", "replace", "compute", "computeIfAbsent", "merge");
+
+	/**
+	 * @param ctClass        Class to analyse
+	 * @param mutators       Names of methods which modify the object they're called on
+	 * @param inheritedWrite Whether calls to inherited methods of ctClass are writes, as their code isn't analysed
+	 * @return Declared methods of ctClass which are writers
+	 */
+	static Set<CtMethod> findWriters(CtClass ctClass, Set<String> mutators, boolean inheritedWrite) throws BadBytecode {
+		String className = ctClass.getName();
+		Set<CtMethod> writers = new HashSet<>();
+		Map<CtMethod, Set<String>> calls = new HashMap<>();
+		Set<String> declared = new HashSet<>();
+		for (CtMethod ctMethod : ctClass.getDeclaredMethods()) {
+			declared.add(ctMethod.getName() + ctMethod.getSignature());
+		}
+		for (CtMethod ctMethod : ctClass.getDeclaredMethods()) {
+			CodeAttribute codeAttribute = ctMethod.getMethodInfo2().getCodeAttribute();
+			if (codeAttribute == null) {
+				continue;
+			}
+			ConstPool constPool = codeAttribute.getConstPool();
+			Set<String> ownCalls = new HashSet<>();
+			CodeIterator iterator = codeAttribute.iterator();
+			boolean writer = false;
+			while (iterator.hasNext() && !writer) {
+				int pos = iterator.next();
+				int op = iterator.byteAt(pos);
+				switch (op) {
+					case Opcode.PUTFIELD:
+					case Opcode.PUTSTATIC:
+						writer = constPool.getFieldrefClassName(iterator.u16bitAt(pos + 1)).equals(className);
+						break;
+					case Opcode.IASTORE:
+					case Opcode.LASTORE:
+					case Opcode.FASTORE:
+					case Opcode.DASTORE:
+					case Opcode.AASTORE:
+					case Opcode.BASTORE:
+					case Opcode.CASTORE:
+					case Opcode.SASTORE:
+						writer = true;
+						break;
+					case Opcode.INVOKEVIRTUAL:
+					case Opcode.INVOKESPECIAL:
+					case Opcode.INVOKESTATIC: {
+						int index = iterator.u16bitAt(pos + 1);
+						String name = constPool.getMethodrefName(index);
+						writer = mutators.contains(name);
+						if (constPool.getMethodrefClassName(index).equals(className) && name.charAt(0) != '<') {
+							String descriptor = constPool.getMethodrefType(index);
+							if (declared.contains(name + descriptor)) {
+								ownCalls.add(name + descriptor);
+							} else if (inheritedWrite && !isObjectMethod(ctClass, name, descriptor)) {
+								writer = true;
+							}
+						}
+						break;
+					}
+					case Opcode.INVOKEINTERFACE: {
+						int index = iterator.u16bitAt(pos + 1);
+						writer = mutators.contains(constPool.getInterfaceMethodrefName(index));
+						break;
+					}
+				}
+			}
+			if (writer) {
+				writers.add(ctMethod);
+			} else {
+				calls.put(ctMethod, ownCalls);
+			}
+		}
+		// Propagate through calls to writers in the same class until nothing changes
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			Set<String> writerSignatures = new HashSet<>();
+			for (CtMethod writer : writers) {
+				writerSignatures.add(writer.getName() + writer.getSignature());
+			}
+			Iterator<Map.Entry<CtMethod, Set<String>>> iterator = calls.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<CtMethod, Set<String>> entry = iterator.next();
+				if (!Collections.disjoint(entry.getValue(), writerSignatures)) {
+					writers.add(entry.getKey());
+					iterator.remove();
+					changed = true;
+				}
+			}
+		}
+		return writers;
+	}
+
+	private static boolean isObjectMethod(CtClass ctClass, String name, String descriptor) {
+		try {
+			return "java.lang.Object".equals(ctClass.getMethod(name, descriptor).getDeclaringClass().getName());
+		} catch (NotFoundException e) {
+			return false;
+		}
+	}
+}
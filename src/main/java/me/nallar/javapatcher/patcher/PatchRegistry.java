@@ -0,0 +1,64 @@
+package me.nallar.javapatcher.patcher;
+
+import javassist.ClassPool;
+import me.nallar.javapatcher.mappings.Mappings;
+
+import java.util.*;
+
+/**
+ * The @Patch methods of a patches class, so that {@link Patcher} can call them without reflection.
+ *
+ * Implementations are generated at compile time by the patch registry annotation processor, named
+ * the binary name of the patches class + {@link #SUFFIX}.
+ */
+public interface PatchRegistry {
+	String SUFFIX = "_PatchRegistry";
+
+	/**
+	 * @return New instance of the patches class, or null if it has no (ClassPool, Mappings) constructor
+	 */
+	Object newInstance(ClassPool classPool, Mappings mappings);
+
+	/**
+	 * @return @Patch methods declared by the patches class
+	 */
+	List<Entry> getPatches();
+
+	/**
+	 * Calls one @Patch method
+	 */
+	interface Invoker {
+		/**
+		 * @param attributes Ignored if the patch method doesn't take attributes
+		 * @return Result of the patch method, or null if it is void
+		 */
+		Object invoke(Object patches, Object target, Map<String, String> attributes) throws Throwable;
+	}
+
+	final class Entry {
+		/**
+		 * Name of the patch, the @Patch name or the method name
+		 */
+		public final String name;
+		/**
+		 * Comma delimited required attributes
+		 */
+		public final String requiredAttributes;
+		public final boolean takesAttributes;
+		/**
+		 * Type of the patch method's first parameter, CtClass for class patches
+		 */
+		public final Class<?> targetType;
+		public final boolean emptyConstructor;
+		public final Invoker invoker;
+
+		public Entry(String name, String requiredAttributes, boolean takesAttributes, Class<?> targetType, boolean emptyConstructor, Invoker invoker) {
+			this.name = name;
+			this.requiredAttributes = requiredAttributes;
+			this.takesAttributes = takesAttributes;
+			this.targetType = targetType;
+			this.emptyConstructor = emptyConstructor;
+			this.invoker = invoker;
+		}
+	}
+}
@@ -2,9 +2,9 @@ package me.nallar.javapatcher.patcher;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.MultimapBuilder;
 import com.google.common.io.Files;
 import javassist.*;
 import lombok.ToString;
@@ -18,20 +18,38 @@ import org.xml.sax.SAXException;
 import java.io.*;
 import java.lang.annotation.*;
 import java.lang.reflect.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Patcher which uses javassist, a config file and a patcher class to patch arbitrary classes.
  */
 public class Patcher {
 	private static final String debugPatchedOutput = System.getProperty("patcher.debug", "");
+	private static final String hierarchyCache = System.getProperty("patcher.hierarchyCache", "");
 	private static final Splitter idSplitter = Splitter.on("  ").trimResults().omitEmptyStrings();
 	private final ClassPool classPool;
 	private final Mappings mappings;
 	private final Map<String, PatchMethodDescriptor> patchMethods = new HashMap<>();
-	private final Multimap<String, ClassPatchDescriptor> patches = MultimapBuilder.hashKeys().arrayListValues().build();
-	private final Map<String, byte[]> patchedBytes = new HashMap<>();
+	private final ClassTargetIndex<ClassPatchDescriptor> patches = new ClassTargetIndex<>();
+	private final Map<String, byte[]> patchedBytes = new ConcurrentHashMap<>();
+	private final Map<String, JitBudgetReport> jitBudgetReports = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, FutureTask<byte[]>> patchesInProgress = new ConcurrentHashMap<>();
+	private final Class<?> patchesClass;
+	private final PatchRegistry patchRegistry;
 	private Object patchClassInstance;
+	private ClassHierarchyIndex classHierarchyIndex;
+	private volatile BlockingQueue<Worker> workers;
+	private volatile SharedClassPath sharedClassPath;
+	private volatile ClassLoadProfile classLoadProfile;
+	private Queue<String> prePatchQueue;
+	private List<Thread> prePatchThreads;
+	private Thread prePatchShutdownHook;
+	private int parallelism = 1;
+	private volatile boolean retainPatches;
+	private volatile boolean jitBudgetReporting = !debugPatchedOutput.isEmpty();
 
 	/**
 	 * Creates a patcher instance
@@ -60,33 +78,76 @@ public class Patcher {
 	 * @param mappings     Mappings instance
 	 */
 	public Patcher(ClassPool classPool, Class<?> patchesClass, Mappings mappings) {
-		for (Method method : patchesClass.getDeclaredMethods()) {
-			for (Annotation annotation : method.getDeclaredAnnotations()) {
-				if (annotation instanceof Patch) {
-					PatchMethodDescriptor patchMethodDescriptor = new PatchMethodDescriptor(method, (Patch) annotation);
-					if (patchMethods.put(patchMethodDescriptor.name, patchMethodDescriptor) != null) {
-						PatcherLog.warn("Duplicate @Patch method with name " + patchMethodDescriptor.name);
+		patchRegistry = findPatchRegistry(patchesClass);
+		if (patchRegistry != null) {
+			for (PatchRegistry.Entry entry : patchRegistry.getPatches()) {
+				addPatchMethod(new PatchMethodDescriptor(entry));
+			}
+		} else {
+			for (Method method : patchesClass.getDeclaredMethods()) {
+				for (Annotation annotation : method.getDeclaredAnnotations()) {
+					if (annotation instanceof Patch) {
+						addPatchMethod(new PatchMethodDescriptor(method, (Patch) annotation));
 					}
 				}
 			}
 		}
 		this.classPool = classPool;
 		this.mappings = mappings;
+		this.patchesClass = patchesClass;
+		patchClassInstance = newPatchClassInstance(classPool);
+	}
+
+	/**
+	 * @return Registry generated at compile time for the patches class, or null if there isn't one
+	 */
+	private static PatchRegistry findPatchRegistry(Class<?> patchesClass) {
+		Class<?> registryClass;
 		try {
-			patchClassInstance = patchesClass.getDeclaredConstructors()[0].newInstance(classPool, mappings);
+			registryClass = Class.forName(patchesClass.getName() + PatchRegistry.SUFFIX, true, patchesClass.getClassLoader());
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+		try {
+			return (PatchRegistry) registryClass.newInstance();
+		} catch (Exception e) {
+			PatcherLog.warn("Failed to instantiate patch registry " + registryClass.getName() + ", falling back to reflection", e);
+			return null;
+		}
+	}
+
+	private void addPatchMethod(PatchMethodDescriptor patchMethodDescriptor) {
+		if (patchMethods.put(patchMethodDescriptor.name, patchMethodDescriptor) != null) {
+			PatcherLog.warn("Duplicate @Patch method with name " + patchMethodDescriptor.name);
+		}
+	}
+
+	private Object newPatchClassInstance(ClassPool classPool) {
+		try {
+			if (patchRegistry != null) {
+				Object instance = patchRegistry.newInstance(classPool, mappings);
+				if (instance != null) {
+					return instance;
+				}
+			}
+			return patchesClass.getDeclaredConstructors()[0].newInstance(classPool, mappings);
 		} catch (Exception e) {
 			PatcherLog.error("Failed to instantiate patch class", e);
+			return null;
 		}
 	}
 
-	private static void saveByteCode(byte[] bytes, String name) {
+	private static void saveByteCode(byte[] bytes, JitBudgetReport jitBudgetReport, String name) {
 		if (!debugPatchedOutput.isEmpty()) {
-			name = name.replace('.', '/') + ".class";
-			File file = new File(debugPatchedOutput + '/' + name);
+			name = name.replace('.', '/');
+			File file = new File(debugPatchedOutput + '/' + name + ".class");
 			//noinspection ResultOfMethodCallIgnored
 			file.getParentFile().mkdirs();
 			try {
 				Files.write(bytes, file);
+				if (jitBudgetReport != null) {
+					Files.write(jitBudgetReport.toString().getBytes("UTF-8"), new File(debugPatchedOutput + '/' + name + ".jit.txt"));
+				}
 			} catch (IOException e) {
 				PatcherLog.error("Failed to save patched bytes for " + name, e);
 			}
@@ -110,19 +171,86 @@ public class Patcher {
 	 *
 	 * @param patch patch to load
 	 */
-	@SuppressWarnings("deprecation")
 	public void loadPatches(String patch) {
+		PatcherEvent event = PatcherEvent.begin(PatcherEvent.Type.LOAD_PATCHES);
+		Document document = readPatchDocument(patch);
+		readPatchesFromXmlDocument(document);
+		event.commit(1, DomUtil.children(document.getDocumentElement()).size());
+	}
+
+	/**
+	 * Loads patches from all .xml and .json files in the given directory, in file name order.
+	 *
+	 * @param directory directory containing patch files
+	 * @throws IOException if the directory can't be listed
+	 */
+	public void loadPatchDirectory(Path directory) throws IOException {
+		List<Path> patchFiles = new ArrayList<>();
+		try (DirectoryStream<Path> directoryStream = java.nio.file.Files.newDirectoryStream(directory, "*.{xml,json}")) {
+			for (Path path : directoryStream) {
+				patchFiles.add(path);
+			}
+		}
+		Collections.sort(patchFiles);
+		loadPatches(patchFiles);
+	}
+
+	/**
+	 * Loads patches from many files.
+	 *
+	 * Files, and the patch groups in them, are parsed and their class patches are built in
+	 * parallel. The result is the same as calling {@link #loadPatches(String)} for each file in
+	 * order: patches for the same class are applied in file order, then group order.
+	 *
+	 * @param patchFiles patch files to load
+	 */
+	public void loadPatches(Collection<Path> patchFiles) {
+		PatcherEvent event = PatcherEvent.begin(PatcherEvent.Type.LOAD_PATCHES);
+		final List<Path> files = new ArrayList<>(patchFiles);
+		ForkJoinPool forkJoinPool = new ForkJoinPool();
+		List<PatchGroup> patchGroups;
+		try {
+			patchGroups = forkJoinPool.invoke(new RecursiveTask<List<PatchGroup>>() {
+				private static final long serialVersionUID = 1;
+
+				@Override
+				protected List<PatchGroup> compute() {
+					List<ReadPatchFileTask> tasks = new ArrayList<>(files.size());
+					for (Path file : files) {
+						tasks.add(new ReadPatchFileTask(file));
+					}
+					List<PatchGroup> patchGroups = new ArrayList<>();
+					for (ReadPatchFileTask task : invokeAll(tasks)) {
+						patchGroups.addAll(task.join());
+					}
+					return patchGroups;
+				}
+			});
+		} finally {
+			forkJoinPool.shutdown();
+		}
+		for (PatchGroup patchGroup : patchGroups) {
+			addPatchGroup(patchGroup);
+		}
+		event.commit(files.size(), patchGroups.size());
+	}
+
+	private static Document readPatchDocument(String patch) {
 		switch (patch.charAt(0)) {
 			case '<':
-				readPatchesFromXmlString(patch);
 				break;
 			case '[':
 			case '{':
-				readPatchesFromJsonString(patch);
+				patch = DomUtil.makePatchXmlFromJson(patch);
 				break;
 			default:
 				throw new RuntimeException("Unknown patch format for " + patch);
 		}
+		try {
+			return DomUtil.readDocumentFromString(patch);
+		} catch (IOException | SAXException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	@Deprecated
@@ -150,8 +278,7 @@ public class Patcher {
 	public void readPatchesFromXmlDocument(Document document) {
 		List<Element> patchGroupElements = DomUtil.children(document.getDocumentElement());
 		for (Element patchGroupElement : patchGroupElements) {
-			// TODO - rework this. Side-effect of object creation makes this look redundant when it isn't
-			loadPatchGroup(patchGroupElement);
+			addPatchGroup(readPatchGroup(patchGroupElement));
 		}
 	}
 
@@ -169,6 +296,31 @@ public class Patcher {
 		return classPool;
 	}
 
+	/**
+	 * Gets the index used to resolve `extends:` and `implements:` class targets.
+	 *
+	 * If none has been set, an index of java.class.path is built, persisted to the file given by
+	 * the patcher.hierarchyCache system property if it is set.
+	 *
+	 * @return The ClassHierarchyIndex
+	 */
+	public synchronized ClassHierarchyIndex getClassHierarchyIndex() {
+		if (classHierarchyIndex == null) {
+			classHierarchyIndex = ClassHierarchyIndex.ofSystemClassPath(hierarchyCache.isEmpty() ? null : new File(hierarchyCache));
+		}
+		return classHierarchyIndex;
+	}
+
+	/**
+	 * Sets the index used to resolve `extends:` and `implements:` class targets.
+	 * Must be set before loading patches which use them.
+	 *
+	 * @param classHierarchyIndex index of the classpath the ClassPool is set up with
+	 */
+	public synchronized void setClassHierarchyIndex(ClassHierarchyIndex classHierarchyIndex) {
+		this.classHierarchyIndex = classHierarchyIndex;
+	}
+
 	/**
 	 * Returns whether the given class will be patched
 	 *
@@ -176,7 +328,7 @@ public class Patcher {
 	 * @return Whether a patch exists for that class
 	 */
 	public boolean willPatch(String className) {
-		return !patches.get(className).isEmpty();
+		return patchedBytes.containsKey(className) || patches.contains(className);
 	}
 
 	/**
@@ -189,6 +341,245 @@ public class Patcher {
 		return patch(className, null);
 	}
 
+	/**
+	 * Sets how many classes may be patched at the same time.
+	 *
+	 * Javassist ClassPools are not thread-safe, so when parallelism is greater than one each
+	 * concurrently patched class is patched in one of `parallelism` worker ClassPools, each with its
+	 * own instance of the patches class. Workers read class bytes through a shared cache backed by
+	 * this patcher's ClassPool. Changes made to one class while patching another are not visible
+	 * to other workers, and patched classes are detached from their worker's ClassPool.
+	 *
+	 * Should be called before any classes are patched.
+	 *
+	 * @param parallelism maximum number of classes to patch concurrently. 1 = patch on the ClassPool given in the constructor
+	 */
+	public synchronized void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+		if (this.parallelism == 1) {
+			workers = null;
+			sharedClassPath = null;
+			return;
+		}
+		SharedClassPath sharedClassPath = new SharedClassPath(classPool);
+		BlockingQueue<Worker> workers = new ArrayBlockingQueue<>(this.parallelism);
+		for (int i = 0; i < this.parallelism; i++) {
+			ClassPool workerClassPool = new ClassPool(false);
+			workerClassPool.appendClassPath(sharedClassPath);
+			workers.add(new Worker(workerClassPool, newPatchClassInstance(workerClassPool)));
+		}
+		this.sharedClassPath = sharedClassPath;
+		this.workers = workers;
+	}
+
+	/**
+	 * @return Maximum number of classes which may be patched concurrently
+	 */
+	public synchronized int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Sets whether patches are kept after the classes they target have been patched, so that those classes
+	 * can be patched again by {@link #repatch(String, byte[])}, for example when hot reloading them.
+	 *
+	 * By default patches are released once their class is patched, patches for classes only matched by
+	 * wildcard targets are always kept. Should be called before any classes are patched.
+	 *
+	 * @param retainPatches whether to keep patches for patched classes
+	 */
+	public void setRetainPatches(boolean retainPatches) {
+		this.retainPatches = retainPatches;
+	}
+
+	/**
+	 * @return Whether patches are kept after the classes they target have been patched
+	 */
+	public boolean getRetainPatches() {
+		return retainPatches;
+	}
+
+	/**
+	 * Sets whether method sizes are measured before and after patching each class, to warn about methods
+	 * pushed over a JIT limit. Enabled by default when patcher.debug is set.
+	 *
+	 * @param jitBudgetReporting whether to measure patched classes
+	 */
+	public void setJitBudgetReporting(boolean jitBudgetReporting) {
+		this.jitBudgetReporting = jitBudgetReporting;
+	}
+
+	/**
+	 * @return Whether method sizes of patched classes are measured
+	 */
+	public boolean getJitBudgetReporting() {
+		return jitBudgetReporting;
+	}
+
+	/**
+	 * Patches a class again from the given bytes, discarding its cached patched bytes.
+	 * Must not be called while the class is being patched.
+	 *
+	 * With parallelism greater than one, every worker is taken while the class is replaced, so other
+	 * classes can't be patched until the class has been repatched.
+	 *
+	 * @param className     Name of the class
+	 * @param originalBytes original class bytes, or null to read them from the ClassPool's class path again
+	 * @return Returns patched class if needed, else returns original class
+	 * @throws IllegalStateException if patches aren't retained
+	 */
+	public byte[] repatch(String className, byte[] originalBytes) {
+		if (!retainPatches) {
+			throw new IllegalStateException("Classes can only be repatched if patches are retained");
+		}
+		BlockingQueue<Worker> workers = this.workers;
+		if (workers == null) {
+			synchronized (this) {
+				patchedBytes.remove(className);
+				if (!replaceClass(classPool, className, originalBytes)) {
+					return originalBytes;
+				}
+				return patch(className, originalBytes);
+			}
+		}
+		// Any worker may have the old class cached from patching another class which uses it
+		int parallelism = getParallelism();
+		List<Worker> taken = new ArrayList<>(parallelism);
+		try {
+			for (int i = 0; i < parallelism; i++) {
+				taken.add(workers.take());
+			}
+			patchedBytes.remove(className);
+			sharedClassPath.update(className, originalBytes);
+			synchronized (classPool) {
+				replaceClass(classPool, className, null);
+			}
+			for (Worker worker : taken) {
+				replaceClass(worker.classPool, className, null);
+			}
+			ClassLoadProfile classLoadProfile = this.classLoadProfile;
+			if (classLoadProfile != null && willPatch(className)) {
+				classLoadProfile.loaded(className);
+			}
+			List<ClassPatchDescriptor> patches = this.patches.get(className);
+			if (patches.isEmpty()) {
+				return originalBytes;
+			}
+			Worker worker = taken.get(0);
+			return patch(className, originalBytes, patches, worker.classPool, worker.patchClassInstance, true);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return originalBytes;
+		} finally {
+			workers.addAll(taken);
+		}
+	}
+
+	/**
+	 * Detaches a class from a ClassPool, and defines it again from bytes if given
+	 *
+	 * @return false if the bytes couldn't be read
+	 */
+	private static boolean replaceClass(ClassPool classPool, String className, byte[] bytes) {
+		CtClass ctClass = classPool.getOrNull(className);
+		if (ctClass != null) {
+			ctClass.detach();
+		}
+		if (bytes == null) {
+			return true;
+		}
+		try {
+			classPool.makeClass(new ByteArrayInputStream(bytes));
+			return true;
+		} catch (IOException | RuntimeException e) {
+			PatcherLog.error("Failed to read new bytes of " + className, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Starts patching classes on low priority background threads, so that {@link #patch(String, byte[])}
+	 * usually only has to return already patched bytes. Should be called after loading patches.
+	 *
+	 * Classes are pre-patched in the order they were first patched in previous runs, which is recorded
+	 * in the given profile and saved when the JVM exits. Classes which weren't patched in previous runs
+	 * are only pre-patched if they are exact class targets.
+	 *
+	 * Classes are no longer patched in the order they are loaded, so patches must not depend on that order.
+	 *
+	 * @param classLoadProfile file the class load order is read from and saved to
+	 * @throws IllegalStateException if pre-patching is already running
+	 */
+	public synchronized void startPrePatching(File classLoadProfile) {
+		if (prePatchThreads != null) {
+			throw new IllegalStateException("Pre-patching is already running");
+		}
+		final ClassLoadProfile profile = ClassLoadProfile.load(classLoadProfile);
+		this.classLoadProfile = profile;
+		prePatchShutdownHook = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				profile.save(Patcher.this);
+			}
+		}, "JavaPatcher class load profile");
+		Runtime.getRuntime().addShutdownHook(prePatchShutdownHook);
+		final Queue<String> classNames = new ConcurrentLinkedQueue<>(profile.order(this, new ArrayList<>(patches.exactTargets())));
+		prePatchQueue = classNames;
+		prePatchThreads = new ArrayList<>(parallelism);
+		PatcherLog.info("Pre-patching " + classNames.size() + " classes");
+		for (int i = 0; i < parallelism; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					String className;
+					while ((className = classNames.poll()) != null) {
+						patchClass(className, null);
+					}
+				}
+			}, "JavaPatcher pre-patch " + i);
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.start();
+			prePatchThreads.add(thread);
+		}
+	}
+
+	/**
+	 * Stops pre-patching started by {@link #startPrePatching}, waiting for classes which are being pre-patched,
+	 * and saves the class load profile. Classes loaded afterwards are not recorded in the profile.
+	 * Does nothing if pre-patching isn't running.
+	 */
+	public void stopPrePatching() {
+		ClassLoadProfile profile;
+		List<Thread> threads;
+		// Pre-patch threads may need the lock to finish, so don't wait for them while holding it
+		synchronized (this) {
+			if (prePatchThreads == null) {
+				return;
+			}
+			profile = classLoadProfile;
+			threads = prePatchThreads;
+			prePatchQueue.clear();
+			try {
+				Runtime.getRuntime().removeShutdownHook(prePatchShutdownHook);
+			} catch (IllegalStateException ignored) {
+				// Already shutting down
+			}
+			classLoadProfile = null;
+			prePatchQueue = null;
+			prePatchThreads = null;
+			prePatchShutdownHook = null;
+		}
+		try {
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		profile.save(this);
+	}
+
 	/**
 	 * Patch the class with the given name, if it has a patch associated with it.
 	 *
@@ -196,23 +587,101 @@ public class Patcher {
 	 * @param originalBytes original class bytes
 	 * @return Returns patched class if needed, else returns original class
 	 */
-	public synchronized byte[] patch(String className, byte[] originalBytes) {
+	public byte[] patch(String className, byte[] originalBytes) {
+		ClassLoadProfile classLoadProfile = this.classLoadProfile;
+		if (classLoadProfile != null && willPatch(className)) {
+			classLoadProfile.loaded(className);
+		}
+		return patchClass(className, originalBytes);
+	}
+
+	private byte[] patchClass(final String className, final byte[] originalBytes) {
 		byte[] bytes = patchedBytes.get(className);
 		if (bytes != null) {
 			return bytes;
 		}
-		val patches = this.patches.get(className);
+		final List<ClassPatchDescriptor> patches = this.patches.get(className);
+		// Patches are released after their bytes are cached, so the class may have been patched since the first check
+		bytes = patchedBytes.get(className);
+		if (bytes != null) {
+			return bytes;
+		}
 		if (patches.isEmpty()) {
 			return originalBytes;
 		}
+		final BlockingQueue<Worker> workers = this.workers;
+		if (workers == null) {
+			synchronized (this) {
+				bytes = patchedBytes.get(className);
+				return bytes == null ? patch(className, originalBytes, patches, classPool, patchClassInstance, false) : bytes;
+			}
+		}
+		FutureTask<byte[]> task = new FutureTask<>(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws InterruptedException {
+				// Another task may have finished patching the class after the checks in patchClass
+				byte[] bytes = patchedBytes.get(className);
+				if (bytes != null) {
+					return bytes;
+				}
+				Worker worker = workers.take();
+				try {
+					return patch(className, originalBytes, patches, worker.classPool, worker.patchClassInstance, true);
+				} finally {
+					workers.add(worker);
+				}
+			}
+		});
+		FutureTask<byte[]> existing = patchesInProgress.putIfAbsent(className, task);
+		if (existing == null) {
+			existing = task;
+			try {
+				task.run();
+			} finally {
+				patchesInProgress.remove(className);
+			}
+		}
+		try {
+			return existing.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return originalBytes;
+		} catch (ExecutionException e) {
+			throw Throw.sneaky(e.getCause());
+		}
+	}
+
+	private byte[] patch(String className, byte[] originalBytes, List<ClassPatchDescriptor> patches, ClassPool classPool, Object patchClassInstance, boolean detach) {
+		PatcherEvent event = PatcherEvent.begin(PatcherEvent.Type.PATCH_CLASS);
 		try {
 			CtClass ctClass = classPool.get(className);
+			Map<String, JitBudgetReport.MethodBudget> before = jitBudgetReporting ? JitBudgetReport.measure(ctClass.getClassFile2()) : null;
 			for (val classPatchDescriptor : patches) {
-				ctClass = classPatchDescriptor.runPatches(ctClass);
+				ctClass = classPatchDescriptor.runPatches(ctClass, className, patchClassInstance);
+			}
+			JitBudgetReport jitBudgetReport = null;
+			if (before != null) {
+				jitBudgetReport = new JitBudgetReport(className, before, JitBudgetReport.measure(ctClass.getClassFile2()));
+				List<JitBudgetReport.MethodBudget> flagged = jitBudgetReport.getFlagged();
+				for (JitBudgetReport.MethodBudget method : flagged) {
+					if (!method.getCrossedLimits().isEmpty()) {
+						PatcherLog.warn("Patching " + className + " pushed a method over a JIT limit: " + method);
+					}
+				}
+				if (!flagged.isEmpty()) {
+					jitBudgetReports.put(className, jitBudgetReport);
+				}
+			}
+			byte[] bytes = ctClass.toBytecode();
+			if (detach) {
+				ctClass.detach();
 			}
-			bytes = ctClass.toBytecode();
 			patchedBytes.put(className, bytes);
-			saveByteCode(bytes, className);
+			if (!retainPatches) {
+				this.patches.remove(className);
+			}
+			saveByteCode(bytes, jitBudgetReport, className);
+			event.commit(className, originalBytes == null ? 0 : originalBytes.length, bytes.length);
 			return bytes;
 		} catch (Throwable t) {
 			PatcherLog.error("Failed to patch " + className + " in patch group " + className + '.', t);
@@ -220,6 +689,52 @@ public class Patcher {
 		}
 	}
 
+	/**
+	 * Reports are only collected while {@link #getJitBudgetReporting()} is enabled.
+	 *
+	 * @return Method size report for each class patched so far which has flagged methods, by class name
+	 */
+	public Map<String, JitBudgetReport> getJitBudgetReports() {
+		return Collections.unmodifiableMap(jitBudgetReports);
+	}
+
+	/**
+	 * Patches many classes, using up to {@link #getParallelism()} threads.
+	 *
+	 * @param classNames Names of the classes to patch
+	 * @return Map of class name to patched bytes, for each class which was patched successfully
+	 */
+	public Map<String, byte[]> patchAll(Collection<String> classNames) {
+		Map<String, byte[]> result = new LinkedHashMap<>();
+		ExecutorService executorService = Executors.newFixedThreadPool(getParallelism());
+		try {
+			Map<String, Future<byte[]>> futures = new LinkedHashMap<>();
+			for (final String className : classNames) {
+				if (willPatch(className)) {
+					futures.put(className, executorService.submit(new Callable<byte[]>() {
+						@Override
+						public byte[] call() {
+							return patch(className);
+						}
+					}));
+				}
+			}
+			for (Map.Entry<String, Future<byte[]>> entry : futures.entrySet()) {
+				byte[] bytes = entry.getValue().get();
+				if (bytes != null) {
+					result.put(entry.getKey(), bytes);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw Throw.sneaky(e.getCause());
+		} finally {
+			executorService.shutdown();
+		}
+		return result;
+	}
+
 	private void obfuscateAttributesAndTextContent(Element root) {
 		// TODO - reimplement environments?
 		/*
@@ -243,55 +758,113 @@ public class Patcher {
 				element.setAttribute(attributeEntry.getKey(), mappings.obfuscate(attributeEntry.getValue()));
 			}
 		}
-		for (Element element : DomUtil.children(root)) {
-			String id = element.getAttribute("id");
-			ArrayList<String> list = Lists.newArrayList(idSplitter.split(id));
-			if (list.size() > 1) {
-				for (String className : list) {
-					Element newClassElement = (Element) element.cloneNode(true);
-					newClassElement.setAttribute("id", className.trim());
-					element.getParentNode().insertBefore(newClassElement, element);
-				}
-				element.getParentNode().removeChild(element);
-			}
-		}
 	}
 
-	private void loadPatchGroup(Element e) {
+	/**
+	 * Builds the class patches in a patch group without adding them to this patcher.
+	 * Safe to call concurrently for elements from different documents.
+	 */
+	private PatchGroup readPatchGroup(Element e) {
+		PatchGroup patchGroup = new PatchGroup(e.getTagName());
 		Map<String, String> attributes = DomUtil.getAttributes(e);
 		String requiredProperty = attributes.get("requireProperty");
 		if (requiredProperty != null && !requiredProperty.isEmpty() && !Boolean.getBoolean(requiredProperty)) {
 			// Required property attribute isn't set as system property
-			return;
+			return patchGroup;
 		}
+		PatcherEvent obfuscateEvent = PatcherEvent.begin(PatcherEvent.Type.OBFUSCATE);
 		obfuscateAttributesAndTextContent(e);
+		obfuscateEvent.commit(patchGroup.name);
+		PatcherEvent buildEvent = PatcherEvent.begin(PatcherEvent.Type.BUILD_DESCRIPTORS);
 		val patchElements = DomUtil.children(e);
 		for (Element classElement : patchElements) {
-			ClassPatchDescriptor classPatchDescriptor;
 			try {
-				classPatchDescriptor = new ClassPatchDescriptor(classElement);
+				patchGroup.classPatches.add(new ClassPatchDescriptor(classElement));
 			} catch (Throwable t) {
 				throw new RuntimeException("Failed to create class patch for " + classElement.getAttribute("id"), t);
 			}
-			patches.put(classPatchDescriptor.name, classPatchDescriptor);
-			PatcherLog.info("Added patch " + e.getTagName() + ": " + classPatchDescriptor.toString());
+		}
+		buildEvent.commit(patchGroup.name, patchGroup.classPatches.size());
+		return patchGroup;
+	}
+
+	private synchronized void addPatchGroup(PatchGroup patchGroup) {
+		for (ClassPatchDescriptor classPatchDescriptor : patchGroup.classPatches) {
+			for (String target : classPatchDescriptor.targets.keySet()) {
+				patches.put(target, classPatchDescriptor);
+			}
+			PatcherLog.info("Added patch " + patchGroup.name + ": " + classPatchDescriptor.toString());
+		}
+	}
+
+	private static class PatchGroup {
+		final String name;
+		final List<ClassPatchDescriptor> classPatches = new ArrayList<>();
+
+		PatchGroup(String name) {
+			this.name = name;
+		}
+	}
+
+	private class ReadPatchFileTask extends RecursiveTask<List<PatchGroup>> {
+		private static final long serialVersionUID = 1;
+		private final Path file;
+
+		ReadPatchFileTask(Path file) {
+			this.file = file;
+		}
+
+		@Override
+		protected List<PatchGroup> compute() {
+			Document document;
+			try {
+				document = readPatchDocument(new String(java.nio.file.Files.readAllBytes(file), "UTF-8"));
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to read patch file " + file, e);
+			}
+			// DOM implementations aren't thread-safe even for reads, give each group its own document
+			List<ReadPatchGroupTask> tasks = new ArrayList<>();
+			for (Element patchGroupElement : DomUtil.children(document.getDocumentElement())) {
+				Document groupDocument = DomUtil.newDocument();
+				groupDocument.appendChild(groupDocument.importNode(patchGroupElement, true));
+				tasks.add(new ReadPatchGroupTask(groupDocument.getDocumentElement()));
+			}
+			List<PatchGroup> patchGroups = new ArrayList<>(tasks.size());
+			for (ReadPatchGroupTask task : invokeAll(tasks)) {
+				patchGroups.add(task.join());
+			}
+			return patchGroups;
+		}
+	}
+
+	private class ReadPatchGroupTask extends RecursiveTask<PatchGroup> {
+		private static final long serialVersionUID = 1;
+		private final Element element;
+
+		ReadPatchGroupTask(Element element) {
+			this.element = element;
+		}
+
+		@Override
+		protected PatchGroup compute() {
+			return readPatchGroup(element);
 		}
 	}
 
 	@ToString(exclude = "attributes")
 	private static class PatchDescriptor {
-		private String methods;
+		private final String methods;
 		private final String patch;
 		private final Map<String, String> attributes;
 
 		PatchDescriptor(Element element) {
-			attributes = DomUtil.getAttributes(element);
-			methods = element.getTextContent().trim();
-			patch = element.getTagName();
+			this(element.getTagName().intern(), element.getTextContent().trim(), DomUtil.getAttributes(element));
 		}
 
-		public String set(String name, String value) {
-			return attributes.put(name, value);
+		private PatchDescriptor(String patch, String methods, Map<String, String> attributes) {
+			this.patch = patch;
+			this.methods = methods;
+			this.attributes = AttributeMap.of(attributes);
 		}
 
 		public String get(String name) {
@@ -306,36 +879,64 @@ public class Patcher {
 			return methods;
 		}
 
-		public void setMethods(String methods) {
-			this.methods = methods;
-		}
-
 		public String getPatch() {
 			return patch;
 		}
+
+		/**
+		 * Creates a copy of this descriptor with different methods and attributes
+		 */
+		public PatchDescriptor with(String methods, Map<String, String> attributes) {
+			return new PatchDescriptor(patch, methods, attributes);
+		}
+	}
+
+	private static class Worker {
+		final ClassPool classPool;
+		final Object patchClassInstance;
+
+		Worker(ClassPool classPool, Object patchClassInstance) {
+			this.classPool = classPool;
+			this.patchClassInstance = patchClassInstance;
+		}
 	}
 
 	private static class PatchMethodDescriptor {
 		public final String name;
 		public final List<String> requiredAttributes;
-		public final Method patchMethod;
+		public final PatchRegistry.Invoker invoker;
 		public final boolean isClassPatch;
 		public final boolean emptyConstructor;
 
 		private PatchMethodDescriptor(Method method, Patch patch) {
-			String name = patch.name();
-			if (Arrays.asList(method.getParameterTypes()).contains(Map.class)) {
-				this.requiredAttributes = Lists.newArrayList(Splitter.on(",").trimResults().omitEmptyStrings().split(patch.requiredAttributes()));
-			} else {
-				this.requiredAttributes = null;
-			}
-			if (name.isEmpty()) {
-				name = method.getName();
-			}
+			this(patch.name().isEmpty() ? method.getName() : patch.name(), patch.requiredAttributes(), Arrays.asList(method.getParameterTypes()).contains(Map.class),
+				method.getParameterTypes()[0].equals(CtClass.class), patch.emptyConstructor(), reflectiveInvoker(method));
+		}
+
+		private static PatchRegistry.Invoker reflectiveInvoker(final Method method) {
+			final boolean takesAttributes = method.getParameterTypes().length > 1;
+			return new PatchRegistry.Invoker() {
+				@Override
+				public Object invoke(Object patches, Object target, Map<String, String> attributes) throws Throwable {
+					try {
+						return takesAttributes ? method.invoke(patches, target, attributes) : method.invoke(patches, target);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				}
+			};
+		}
+
+		private PatchMethodDescriptor(PatchRegistry.Entry entry) {
+			this(entry.name, entry.requiredAttributes, entry.takesAttributes, entry.targetType.equals(CtClass.class), entry.emptyConstructor, entry.invoker);
+		}
+
+		private PatchMethodDescriptor(String name, String requiredAttributes, boolean takesAttributes, boolean isClassPatch, boolean emptyConstructor, PatchRegistry.Invoker invoker) {
 			this.name = name;
-			emptyConstructor = patch.emptyConstructor();
-			isClassPatch = method.getParameterTypes()[0].equals(CtClass.class);
-			patchMethod = method;
+			this.requiredAttributes = takesAttributes ? Lists.newArrayList(Splitter.on(",").trimResults().omitEmptyStrings().split(requiredAttributes)) : null;
+			this.isClassPatch = isClassPatch;
+			this.emptyConstructor = emptyConstructor;
+			this.invoker = invoker;
 		}
 
 		public Object run(PatchDescriptor patchDescriptor, CtClass ctClass, Object patchClassInstance) {
@@ -349,7 +950,8 @@ public class Patcher {
 				return null;
 			}
 			if ("^all^".equals(methods)) {
-				patchDescriptor.set("silent", "true");
+				attributes = new HashMap<>(attributes);
+				attributes.put("silent", "true");
 				List<CtBehavior> ctBehaviors = new ArrayList<>();
 				Collections.addAll(ctBehaviors, ctClass.getDeclaredMethods());
 				Collections.addAll(ctBehaviors, ctClass.getDeclaredConstructors());
@@ -393,15 +995,8 @@ public class Patcher {
 
 		private Object run(CtClass ctClass, Map<String, String> attributes, Object patchClassInstance) {
 			try {
-				if (requiredAttributes == null) {
-					return patchMethod.invoke(patchClassInstance, ctClass);
-				} else {
-					return patchMethod.invoke(patchClassInstance, ctClass, attributes);
-				}
+				return invoker.invoke(patchClassInstance, ctClass, attributes);
 			} catch (Throwable t) {
-				if (t instanceof InvocationTargetException) {
-					t = t.getCause();
-				}
 				if (t instanceof CannotCompileException && attributes.containsKey("code")) {
 					PatcherLog.error("Code: " + attributes.get("code"));
 				}
@@ -412,15 +1007,8 @@ public class Patcher {
 
 		private Object run(CtBehavior ctBehavior, Map<String, String> attributes, Object patchClassInstance) {
 			try {
-				if (requiredAttributes == null) {
-					return patchMethod.invoke(patchClassInstance, ctBehavior);
-				} else {
-					return patchMethod.invoke(patchClassInstance, ctBehavior, attributes);
-				}
+				return invoker.invoke(patchClassInstance, ctBehavior, attributes);
 			} catch (Throwable t) {
-				if (t instanceof InvocationTargetException) {
-					t = t.getCause();
-				}
 				if (t instanceof CannotCompileException && attributes.containsKey("code")) {
 					PatcherLog.error("Code: " + attributes.get("code"));
 				}
@@ -435,83 +1023,204 @@ public class Patcher {
 		}
 	}
 
-	@ToString(exclude = "attributes")
+	/**
+	 * Patches for one or more target classes.
+	 *
+	 * The patch body is shared between all targets, method and field names in it are mapped for
+	 * each target when that target is patched. Methods of classes found by an `extends:` or
+	 * `implements:` target are mapped as members of that supertype, so only overrides of its methods
+	 * can be named by their deobfuscated names. Wildcard targets have no deobfuscated class to map
+	 * against, method names in their patches must already be obfuscated.
+	 */
+	@ToString(exclude = "targets")
 	public class ClassPatchDescriptor {
 		public final String name;
-		public final List<PatchDescriptor> patches = new ArrayList<>();
-		private final Map<String, String> attributes;
+		public final List<PatchDescriptor> patches;
+		/**
+		 * Obfuscated target class name or wildcard -> deobfuscated name methods are mapped as members of.
+		 * Classes resolved from hierarchy targets map to the deobfuscated supertype they were found by,
+		 * wildcards map to themselves.
+		 */
+		private final Map<String, String> targets;
 
 		private ClassPatchDescriptor(Element element) {
-			attributes = DomUtil.getAttributes(element);
-			ClassDescription deobfuscatedClass = new ClassDescription(attributes.get("id"));
-			ClassDescription obfuscatedClass = mappings.map(deobfuscatedClass);
-			name = obfuscatedClass == null ? deobfuscatedClass.name : obfuscatedClass.name;
+			name = element.getAttribute("id");
+			Map<String, String> targets = new LinkedHashMap<>();
+			String wildcard = null;
+			for (String deobfuscatedName : idSplitter.split(name)) {
+				if (ClassHierarchyIndex.isHierarchyTarget(deobfuscatedName)) {
+					String prefix = deobfuscatedName.substring(0, deobfuscatedName.indexOf(':') + 1);
+					String supertype = deobfuscatedName.substring(prefix.length());
+					ClassDescription obfuscatedClass = mappings.map(new ClassDescription(supertype));
+					String target = obfuscatedClass == null ? deobfuscatedName : prefix + obfuscatedClass.name;
+					Set<String> classNames = getClassHierarchyIndex().resolve(target);
+					if (classNames.isEmpty()) {
+						PatcherLog.warn("No classes found for class target " + deobfuscatedName);
+					}
+					for (String className : classNames) {
+						// Overrides share the supertype's mapped names
+						if (!targets.containsKey(className)) {
+							targets.put(className, supertype);
+						}
+					}
+					continue;
+				}
+				String obfuscatedName = deobfuscatedName;
+				if (ClassTargetIndex.isWildcard(deobfuscatedName)) {
+					wildcard = deobfuscatedName;
+				} else {
+					ClassDescription obfuscatedClass = mappings.map(new ClassDescription(deobfuscatedName));
+					if (obfuscatedClass != null) {
+						obfuscatedName = obfuscatedClass.name;
+					}
+				}
+				targets.put(obfuscatedName, deobfuscatedName);
+			}
+			this.targets = ImmutableMap.copyOf(targets);
+			ImmutableList.Builder<PatchDescriptor> patches = ImmutableList.builder();
 			for (Element patchElement : DomUtil.children(element)) {
-				PatchDescriptor patchDescriptor = new PatchDescriptor(patchElement);
-				patches.add(patchDescriptor);
-				List<MethodDescription> methodDescriptionList = MethodDescription.fromListString(deobfuscatedClass.name, patchDescriptor.getMethods());
+				patches.add(new PatchDescriptor(patchElement));
+			}
+			this.patches = patches.build();
+			if (wildcard != null && !(mappings instanceof DefaultMappings)) {
+				for (PatchDescriptor patchDescriptor : this.patches) {
+					if (!patchDescriptor.getMethods().isEmpty()) {
+						PatcherLog.warn("Method names in patches for wildcard class target " + wildcard + " are not mapped, they must already be obfuscated");
+						break;
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return Name of the field of the patched class which a field attribute refers to, or null if it refers to a field of a parameter
+		 */
+		private String classFieldName(String field) {
+			boolean isThis = field.startsWith("this.");
+			if (isThis) {
+				field = field.substring("this.".length());
+			}
+			if (field.indexOf('.') != -1) {
+				field = field.substring(0, field.indexOf('.'));
+				if (!isThis && !field.isEmpty() && field.charAt(0) == '$') {
+					return null;
+				}
+			}
+			return field;
+		}
+
+		/**
+		 * Maps all methods and fields used by these patches at once
+		 */
+		private ClassMappings getClassMappings(String deobfuscatedClassName, String obfuscatedClassName) {
+			Set<MethodDescription> methods = new LinkedHashSet<>();
+			Set<FieldDescription> fields = new LinkedHashSet<>();
+			for (PatchDescriptor patchDescriptor : patches) {
 				if (!patchDescriptor.getMethods().isEmpty()) {
-					patchDescriptor.set("deobf", methodDescriptionList.get(0).getShortName());
-					patchDescriptor.setMethods(MethodDescription.toListString(mappings.map(methodDescriptionList)));
+					methods.addAll(MethodDescription.fromListString(deobfuscatedClassName, patchDescriptor.getMethods()));
 				}
-				String field = patchDescriptor.get("field"), prefix = "";
+				String field = patchDescriptor.get("field");
 				if (field != null && !field.isEmpty()) {
-					if (field.startsWith("this.")) {
-						field = field.substring("this.".length());
-						prefix = "this.";
+					String classField = classFieldName(field);
+					if (classField != null) {
+						fields.add(new FieldDescription(obfuscatedClassName, classField));
 					}
-					String after = "", type = name;
-					if (field.indexOf('.') != -1) {
-						after = field.substring(field.indexOf('.'));
-						field = field.substring(0, field.indexOf('.'));
-						if (!field.isEmpty() && (field.charAt(0) == '$') && prefix.isEmpty()) {
-							ArrayList<String> parameterList = new ArrayList<>();
-							for (MethodDescription methodDescriptionOriginal : methodDescriptionList) {
-								MethodDescription methodDescription = mappings.unmap(mappings.map(methodDescriptionOriginal));
-								methodDescription = methodDescription == null ? methodDescriptionOriginal : methodDescription;
-								int i = 0;
-								for (String parameter : methodDescription.getParameterList()) {
-									if (parameterList.size() <= i) {
-										parameterList.add(parameter);
-									} else if (!parameterList.get(i).equals(parameter)) {
-										parameterList.set(i, null);
-									}
-									i++;
-								}
-							}
-							int parameterIndex = Integer.valueOf(field.substring(1)) - 1;
-							if (parameterIndex >= parameterList.size()) {
-								if (!parameterList.isEmpty()) {
-									PatcherLog.error("Can not obfuscate parameter field " + patchDescriptor.get("field") + ", index: " + parameterIndex + " but parameter list is: " + Joiner.on(',').join(parameterList));
+				}
+			}
+			return mappings.getClassMappings(new ClassDescription(deobfuscatedClassName), methods, fields);
+		}
+
+		private PatchDescriptor map(PatchDescriptor patchDescriptor, String deobfuscatedClassName, String obfuscatedClassName, ClassMappings classMappings) {
+			String methods = patchDescriptor.getMethods();
+			Map<String, String> attributes = new HashMap<>(patchDescriptor.getAttributes());
+			List<MethodDescription> methodDescriptionList = MethodDescription.fromListString(deobfuscatedClassName, methods);
+			if (!methods.isEmpty()) {
+				attributes.put("deobf", methodDescriptionList.get(0).getShortName());
+				methods = MethodDescription.toListString(classMappings.map(methodDescriptionList));
+			}
+			String field = patchDescriptor.get("field"), prefix = "";
+			if (field != null && !field.isEmpty()) {
+				if (field.startsWith("this.")) {
+					field = field.substring("this.".length());
+					prefix = "this.";
+				}
+				String after = "", type = obfuscatedClassName;
+				if (field.indexOf('.') != -1) {
+					after = field.substring(field.indexOf('.'));
+					field = field.substring(0, field.indexOf('.'));
+					if (!field.isEmpty() && (field.charAt(0) == '$') && prefix.isEmpty()) {
+						ArrayList<String> parameterList = new ArrayList<>();
+						for (MethodDescription methodDescriptionOriginal : methodDescriptionList) {
+							MethodDescription mapped = classMappings.map(methodDescriptionOriginal);
+							MethodDescription methodDescription = mapped == null ? null : classMappings.unmap(mapped);
+							methodDescription = methodDescription == null ? methodDescriptionOriginal : methodDescription;
+							int i = 0;
+							for (String parameter : methodDescription.getParameterList()) {
+								if (parameterList.size() <= i) {
+									parameterList.add(parameter);
+								} else if (!parameterList.get(i).equals(parameter)) {
+									parameterList.set(i, null);
 								}
-								break;
+								i++;
 							}
-							type = parameterList.get(parameterIndex);
-							if (type == null) {
-								PatcherLog.error("Can not obfuscate parameter field " + patchDescriptor.get("field") + " automatically as this parameter does not have a single type across the methods used in this patch.");
-								break;
+						}
+						int parameterIndex = Integer.valueOf(field.substring(1)) - 1;
+						if (parameterIndex >= parameterList.size()) {
+							if (!parameterList.isEmpty()) {
+								PatcherLog.error("Can not obfuscate parameter field " + patchDescriptor.get("field") + ", index: " + parameterIndex + " but parameter list is: " + Joiner.on(',').join(parameterList));
 							}
-							prefix = field + '.';
-							field = after.substring(1);
-							after = "";
+							return patchDescriptor.with(methods, attributes);
 						}
-					}
-					FieldDescription obfuscatedField = mappings.map(new FieldDescription(type, field));
-					if (obfuscatedField != null) {
-						patchDescriptor.set("field", prefix + obfuscatedField.name + after);
+						type = parameterList.get(parameterIndex);
+						if (type == null) {
+							PatcherLog.error("Can not obfuscate parameter field " + patchDescriptor.get("field") + " automatically as this parameter does not have a single type across the methods used in this patch.");
+							return patchDescriptor.with(methods, attributes);
+						}
+						prefix = field + '.';
+						field = after.substring(1);
+						after = "";
 					}
 				}
+				FieldDescription fieldDescription = new FieldDescription(type, field);
+				// Fields of parameters are in other classes
+				FieldDescription obfuscatedField = prefix.startsWith("$") ? mappings.map(fieldDescription) : classMappings.map(fieldDescription);
+				if (obfuscatedField != null) {
+					attributes.put("field", prefix + obfuscatedField.name + after);
+				}
 			}
+			return patchDescriptor.with(methods, attributes);
 		}
 
 		public CtClass runPatches(CtClass ctClass) throws NotFoundException {
+			return runPatches(ctClass, ctClass.getName());
+		}
+
+		/**
+		 * Runs these patches on the given class
+		 *
+		 * @param ctClass   Class to patch
+		 * @param className Obfuscated name the class was targeted by
+		 */
+		public CtClass runPatches(CtClass ctClass, String className) throws NotFoundException {
+			return runPatches(ctClass, className, patchClassInstance);
+		}
+
+		private CtClass runPatches(CtClass ctClass, String className, Object patchClassInstance) throws NotFoundException {
+			// Classes only matched by a wildcard have no deobfuscated name, map using the obfuscated name
+			String deobfuscatedName = targets.get(className);
+			if (deobfuscatedName == null) {
+				deobfuscatedName = className;
+			}
+			ClassMappings classMappings = getClassMappings(deobfuscatedName, className);
 			for (PatchDescriptor patchDescriptor : patches) {
 				PatchMethodDescriptor patchMethodDescriptor = patchMethods.get(patchDescriptor.getPatch());
 				if (patchMethodDescriptor == null) {
 					PatcherLog.error("Couldn't find patch with name " + patchDescriptor.getPatch() + " when patching " + ctClass.getName());
 					return ctClass;
 				}
-				Object result = patchMethodDescriptor.run(patchDescriptor, ctClass, patchClassInstance);
+				PatcherEvent event = PatcherEvent.begin(PatcherEvent.Type.RUN_PATCH);
+				Object result = patchMethodDescriptor.run(map(patchDescriptor, deobfuscatedName, className, classMappings), ctClass, patchClassInstance);
+				event.commit(className, patchMethodDescriptor.name);
 				if (result instanceof CtClass) {
 					ctClass = (CtClass) result;
 				}
@@ -0,0 +1,159 @@
+package me.nallar.javapatcher.patcher;
+
+import me.nallar.javapatcher.PatcherLog;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * JDK Flight Recorder event for one of the patcher's phases.
+ *
+ * Event types are created through jdk.jfr.EventFactory by reflection, so the patcher still runs on JVMs
+ * without JFR. Events are only created while a recording has their type enabled, otherwise {@link #begin}
+ * returns a shared event which records nothing.
+ */
+final class PatcherEvent {
+	private static final PatcherEvent DISABLED = new PatcherEvent(null, null);
+	private static final ThreadLocal<PatcherEvent> currentPatch = new ThreadLocal<>();
+	private static final Method newEvent;
+	private static final Method isEnabled;
+	private static final Method set;
+	private static final Method begin;
+	private static final Method commit;
+
+	static {
+		Method newEvent_ = null, isEnabled_ = null, set_ = null, begin_ = null, commit_ = null;
+		try {
+			Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			newEvent_ = eventFactory.getMethod("newEvent");
+			isEnabled_ = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+			set_ = event.getMethod("set", int.class, Object.class);
+			begin_ = event.getMethod("begin");
+			commit_ = event.getMethod("commit");
+		} catch (ClassNotFoundException ignored) {
+		} catch (NoSuchMethodException e) {
+			PatcherLog.warn("Unsupported JFR API, patcher events won't be recorded", e);
+		}
+		newEvent = newEvent_;
+		isEnabled = isEnabled_;
+		set = set_;
+		begin = begin_;
+		commit = commit_;
+	}
+
+	private final Type type;
+	private final Object event;
+	private int sites;
+
+	private PatcherEvent(Type type, Object event) {
+		this.type = type;
+		this.event = event;
+	}
+
+	/**
+	 * Starts timing an event
+	 */
+	static PatcherEvent begin(Type type) {
+		Object factory = type.factory;
+		if (factory == null) {
+			return DISABLED;
+		}
+		try {
+			if (!(Boolean) isEnabled.invoke(type.eventType)) {
+				return DISABLED;
+			}
+			Object event = newEvent.invoke(factory);
+			begin.invoke(event);
+			PatcherEvent patcherEvent = new PatcherEvent(type, event);
+			if (type == Type.RUN_PATCH) {
+				currentPatch.set(patcherEvent);
+			}
+			return patcherEvent;
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			PatcherLog.warn("Failed to begin JFR event " + type, e);
+			return DISABLED;
+		}
+	}
+
+	/**
+	 * Counts sites replaced by the patch currently running on this thread, recorded in its {@link Type#RUN_PATCH} event
+	 */
+	static void sitesReplaced(int sites) {
+		PatcherEvent event = currentPatch.get();
+		if (event != null) {
+			event.sites += sites;
+		}
+	}
+
+	/**
+	 * Sets the event's fields and records it
+	 *
+	 * @param values Values of the type's fields, in order. The sites field of {@link Type#RUN_PATCH} is filled in.
+	 */
+	void commit(Object... values) {
+		if (event == null) {
+			return;
+		}
+		if (type == Type.RUN_PATCH) {
+			currentPatch.remove();
+			values = Arrays.copyOf(values, values.length + 1);
+			values[values.length - 1] = sites;
+		}
+		try {
+			for (int i = 0; i < values.length; i++) {
+				set.invoke(event, i, values[i]);
+			}
+			commit.invoke(event);
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			PatcherLog.warn("Failed to commit JFR event " + type, e);
+		}
+	}
+
+	enum Type {
+		LOAD_PATCHES("LoadPatches", "Load Patches", "int files", "int patchGroups"),
+		OBFUSCATE("Obfuscate", "Obfuscate Patch Group", "String patchGroup"),
+		BUILD_DESCRIPTORS("BuildDescriptors", "Build Patch Descriptors", "String patchGroup", "int classPatches"),
+		PATCH_CLASS("PatchClass", "Patch Class", "String className", "int bytesIn", "int bytesOut"),
+		RUN_PATCH("RunPatch", "Run Patch", "String className", "String patch", "int sitesReplaced");
+		private final Object factory;
+		private final Object eventType;
+
+		Type(String name, String label, String... fields) {
+			Object factory = null;
+			Object eventType = null;
+			if (newEvent != null) {
+				try {
+					factory = createFactory(name, label, fields);
+					eventType = factory.getClass().getMethod("getEventType").invoke(factory);
+				} catch (Exception e) {
+					PatcherLog.warn("Failed to create JFR event type " + name, e);
+					factory = null;
+				}
+			}
+			this.factory = factory;
+			this.eventType = eventType;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static Object createFactory(String name, String label, String[] fields) throws Exception {
+			Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+			Constructor<?> newAnnotationElement = annotationElement.getConstructor(Class.class, Object.class);
+			Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+			Constructor<?> newValueDescriptor = valueDescriptor.getConstructor(Class.class, String.class);
+			List<Object> annotations = new ArrayList<>();
+			annotations.add(newAnnotationElement.newInstance((Class<? extends Annotation>) Class.forName("jdk.jfr.Name"), "me.nallar.javapatcher." + name));
+			annotations.add(newAnnotationElement.newInstance((Class<? extends Annotation>) Class.forName("jdk.jfr.Label"), label));
+			annotations.add(newAnnotationElement.newInstance((Class<? extends Annotation>) Class.forName("jdk.jfr.Category"), new String[]{"JavaPatcher"}));
+			annotations.add(newAnnotationElement.newInstance((Class<? extends Annotation>) Class.forName("jdk.jfr.StackTrace"), false));
+			List<Object> descriptors = new ArrayList<>();
+			for (String field : fields) {
+				int space = field.indexOf(' ');
+				Class<?> fieldType = field.startsWith("int ") ? int.class : String.class;
+				descriptors.add(newValueDescriptor.newInstance(fieldType, field.substring(space + 1)));
+			}
+			return Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class).invoke(null, annotations, descriptors);
+		}
+	}
+}
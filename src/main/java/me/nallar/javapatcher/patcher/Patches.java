@@ -5,8 +5,15 @@ import javassist.*;
 import javassist.bytecode.*;
 import javassist.expr.*;
 import me.nallar.javapatcher.PatcherLog;
+import me.nallar.javapatcher.async.AsyncCalls;
+import me.nallar.javapatcher.async.AsyncExecutor;
+import me.nallar.javapatcher.collections.MemoCache;
+import me.nallar.javapatcher.mappings.ClassDescription;
+import me.nallar.javapatcher.mappings.ClassMappings;
+import me.nallar.javapatcher.mappings.FieldDescription;
 import me.nallar.javapatcher.mappings.Mappings;
 import me.nallar.javapatcher.mappings.MethodDescription;
+import me.nallar.javapatcher.profiling.Profiler;
 import org.omg.CORBA.IntHolder;
 
 import java.io.*;
@@ -19,6 +26,8 @@ import java.util.*;
 public class Patches {
 	private final ClassPool classPool;
 	private final Mappings mappings;
+	private final CompiledCodeCache compiledCodeCache = new CompiledCodeCache();
+	private final Map<String, MixinTemplate> mixinTemplates = new HashMap<>();
 
 	public Patches(ClassPool classPool, Mappings mappings) {
 		this.classPool = classPool;
@@ -32,20 +41,37 @@ public class Patches {
 
 	/**
 	 * Extends the target class by adding all methods, fields and interfaces from the specified class
+	 *
+	 * Methods which already exist in the target are replaced. Fields and methods annotated with
+	 * {@link Shadow}, and abstract methods, refer to existing members of the target and are not copied.
+	 * Constructors and static initializers of the mixin class are not copied, so neither are field initializers.
+	 *
+	 * @param class Mixin class to copy members from
 	 */
 	@Patch(
 		requiredAttributes = "class"
 	)
-	public void mixin(CtClass ctClass, Map<String, String> attributes) throws NotFoundException {
+	public void mixin(CtClass ctClass, Map<String, String> attributes) throws NotFoundException, CannotCompileException, BadBytecode {
 		String fromClass = attributes.get("class");
-		CtClass from = classPool.get(fromClass);
-		// TODO implement mixin patcher similar to what sponge does - old prepatcher way is fragile
+		MixinTemplate mixinTemplate = mixinTemplates.get(fromClass);
+		if (mixinTemplate == null) {
+			mixinTemplate = new MixinTemplate(classPool.get(fromClass));
+			mixinTemplates.put(fromClass, mixinTemplate);
+		}
+		mixinTemplate.apply(ctClass, classPool);
 	}
 
 	public void transformClassStaticMethods(CtClass ctClass, String className) {
-		for (CtMethod ctMethod : ctClass.getDeclaredMethods()) {
-			MethodDescription methodDescription = new MethodDescription(className, ctMethod.getName(), ctMethod.getSignature());
-			MethodDescription mapped = mappings.map(methodDescription);
+		CtMethod[] ctMethods = ctClass.getDeclaredMethods();
+		List<MethodDescription> methodDescriptions = new ArrayList<>(ctMethods.length);
+		for (CtMethod ctMethod : ctMethods) {
+			methodDescriptions.add(new MethodDescription(className, ctMethod.getName(), ctMethod.getSignature()));
+		}
+		ClassMappings classMappings = mappings.getClassMappings(new ClassDescription(className), methodDescriptions, Collections.<FieldDescription>emptyList());
+		for (int i = 0; i < ctMethods.length; i++) {
+			CtMethod ctMethod = ctMethods[i];
+			MethodDescription methodDescription = methodDescriptions.get(i);
+			MethodDescription mapped = classMappings.map(methodDescription);
 			if (mapped != null && !mapped.name.equals(ctMethod.getName())) {
 				if ((ctMethod.getModifiers() & Modifier.STATIC) == Modifier.STATIC) {
 					try {
@@ -103,7 +129,7 @@ public class Patches {
 	)
 	public void addMethod(CtClass ctClass, Map<String, String> attributes) throws CannotCompileException {
 		try {
-			ctClass.addMethod(CtNewMethod.make(attributes.get("code"), ctClass));
+			ctClass.addMethod(compiledCodeCache.makeMethod(attributes.get("code"), ctClass));
 		} catch (DuplicateMemberException e) {
 			if (!attributes.containsKey("ignoreDuplicate")) {
 				throw e;
@@ -139,21 +165,26 @@ public class Patches {
 	 * Replaces the targeted method's code with the code attribute's code
 	 */
 	@Patch
-	public void replaceMethod(CtBehavior method, Map<String, String> attributes) throws NotFoundException, CannotCompileException, BadBytecode {
-		String fromClass = attributes.get("fromClass");
+	public void replaceMethod(final CtBehavior method, Map<String, String> attributes) throws NotFoundException, CannotCompileException, BadBytecode {
+		final String fromClass = attributes.get("fromClass");
 		String code = attributes.get("code");
 		String field = attributes.get("field");
-		if (field != null) {
+		if (field != null && code != null) {
 			code = code.replace("$field", field);
 		}
 		if (fromClass != null) {
-			String fromMethod = attributes.get("fromMethod");
-			CtBehavior replacingMethod = fromMethod == null ?
-				classPool.get(fromClass).getDeclaredMethod(method.getName(), method.getParameterTypes())
-				: MethodDescription.fromString(fromClass, fromMethod).inClass(classPool.get(fromClass));
-			replaceMethod((CtMethod) method, (CtMethod) replacingMethod);
+			final String fromMethod = attributes.get("fromMethod");
+			CtMethod replacingMethod = compiledCodeCache.getMethod(classPool, fromClass, fromMethod == null ? method.getName() + method.getSignature() : fromMethod, new CompiledCodeCache.MethodLookup() {
+				@Override
+				public CtMethod find(CtClass ctClass) throws NotFoundException {
+					return (CtMethod) (fromMethod == null ?
+						ctClass.getDeclaredMethod(method.getName(), method.getParameterTypes())
+						: MethodDescription.fromString(fromClass, fromMethod).inClass(ctClass));
+				}
+			});
+			replaceMethod((CtMethod) method, replacingMethod);
 		} else if (code != null) {
-			method.setBody(code);
+			compiledCodeCache.setBody(method, code);
 		} else {
 			PatcherLog.error("Missing required attributes for replaceMethod");
 		}
@@ -372,6 +403,7 @@ public class Patches {
 				}
 			});
 		}
+		PatcherEvent.sitesReplaced(replaced.value);
 		if (replaced.value == 0 && !attributes.containsKey("silent")) {
 			PatcherLog.error("No field initializers found for replacement");
 		}
@@ -416,6 +448,7 @@ public class Patches {
 				}
 			});
 		}
+		PatcherEvent.sitesReplaced(done.value);
 		if (done.value == 0) {
 			PatcherLog.error("No new expressions found for replacement.");
 		}
@@ -537,7 +570,7 @@ public class Patches {
 		}
 		newClass.setName(oldName);
 		newClass.setModifiers(newClass.getModifiers() & ~Modifier.ABSTRACT);
-		transformClassStaticMethods(newClass, newClass.getName());
+		ClassRemapper.remap(newClass.getClassFile(), mappings);
 		return newClass;
 	}
 
@@ -595,6 +628,7 @@ public class Patches {
 			});
 		} catch (ExceptionsArentForControlFlow ignored) {
 		}
+		PatcherEvent.sitesReplaced(replaced.value);
 		if (replaced.value == 0 && !attributes.containsKey("silent")) {
 			PatcherLog.error("Didn't replace any field accesses.");
 		}
@@ -664,6 +698,7 @@ public class Patches {
 			});
 		} catch (ExceptionsArentForControlFlow ignored) {
 		}
+		PatcherEvent.sitesReplaced(replaced.value);
 		if (replaced.value == 0 && !attributes.containsKey("silent")) {
 			PatcherLog.warn("Didn't find any method calls to replace in " + ctBehavior.getLongName() + ". Class: " + className + ", method: " + method + ", index: " + index);
 		}
@@ -705,7 +740,7 @@ public class Patches {
 					}
 				}
 			}
-			methodInfo.rebuildStackMapIf6(ctClass.getClassPool(), ctClass.getClassFile());
+			CodeCompactor.compact(methodInfo, ctClass.getClassPool(), ctClass.getClassFile());
 		}
 		if (removed == 0) {
 			PatcherLog.warn("Didn't remove until " + attributes.get("opcode") + ':' + opcode + " at " + removeIndex + " in " + ctBehavior.getName() + ", no matches.");
@@ -724,7 +759,7 @@ public class Patches {
 				iterator.writeByte(Opcode.NOP, i);
 			}
 			iterator.writeByte(Opcode.RETURN, i);
-			methodInfo.rebuildStackMapIf6(ctClass.getClassPool(), ctClass.getClassFile2());
+			CodeCompactor.compact(methodInfo, ctClass.getClassPool(), ctClass.getClassFile2());
 		}
 	}
 
@@ -763,20 +798,34 @@ public class Patches {
 	/**
 	 * Replaces accesses of a field in the target class with accesses of a ThreadLocal.
 	 *
+	 * By default each access looks up the ThreadLocal. With `cache` set, methods look it up once on entry
+	 * into a local, and reads use the local:
+	 * - cache="exit": writes update the local, which is written back when the method returns or throws.
+	 * - cache="write": writes are written back immediately. Use when the value is a mutable holder, so writes are rare.
+	 * Calls to methods of the target class reload the local afterwards, in exit mode a modified value is
+	 * written back before them. Methods of other classes called by a cached method must not write the field,
+	 * the caller would keep using its stale local and in exit mode overwrite their value when it returns.
+	 * Constructors and static initializers always look up the ThreadLocal on each access.
+	 *
 	 * @param field            Field to replace accesses of
 	 * @param threadLocalField Field containing the threadlocal. Can be a fully qualified static field,
 	 *                         or a field in the target class
+	 * @param cache            (optional) exit or write
 	 */
 	@Patch(
 		requiredAttributes = "field,threadLocalField,type"
 	)
-	public void replaceFieldWithThreadLocal(CtClass ctClass, Map<String, String> attributes) throws CannotCompileException {
+	public void replaceFieldWithThreadLocal(CtClass ctClass, Map<String, String> attributes) throws CannotCompileException, NotFoundException {
 		final String field = attributes.get("field");
 		final String threadLocalField = attributes.get("threadLocalField");
 		final String type = attributes.get("type");
 		String setExpression_ = attributes.get("setExpression");
 		final String setExpression = setExpression_ == null ? '(' + type + ") $1" : setExpression_;
-		ctClass.instrument(new ExprEditor() {
+		String cache = attributes.get("cache");
+		if (cache != null && !"exit".equals(cache) && !"write".equals(cache)) {
+			throw new IllegalArgumentException("cache must be exit or write, not " + cache);
+		}
+		ExprEditor uncached = new ExprEditor() {
 			@Override
 			public void edit(FieldAccess e) throws CannotCompileException {
 				if (e.getFieldName().equals(field)) {
@@ -787,7 +836,471 @@ public class Patches {
 					}
 				}
 			}
+		};
+		if (cache == null) {
+			ctClass.instrument(uncached);
+			return;
+		}
+		for (CtBehavior ctBehavior : ctClass.getDeclaredBehaviors()) {
+			if (!(ctBehavior instanceof CtMethod)) {
+				ctBehavior.instrument(uncached);
+			} else if (accessesField(ctBehavior, field)) {
+				cacheThreadLocal((CtMethod) ctBehavior, field, threadLocalField, type, setExpression, "exit".equals(cache));
+			}
+		}
+		CtConstructor classInitializer = ctClass.getClassInitializer();
+		if (classInitializer != null) {
+			classInitializer.instrument(uncached);
+		}
+	}
+
+	private static boolean accessesField(CtBehavior ctBehavior, final String field) throws CannotCompileException {
+		final IntHolder accesses = new IntHolder();
+		ctBehavior.instrument(new ExprEditor() {
+			@Override
+			public void edit(FieldAccess e) {
+				if (e.getFieldName().equals(field)) {
+					accesses.value++;
+				}
+			}
 		});
+		return accesses.value != 0;
+	}
+
+	private void cacheThreadLocal(CtMethod ctMethod, final String field, String threadLocalField, final String type, String setExpression, boolean writeOnExit) throws CannotCompileException, NotFoundException {
+		final String local = "__" + field + "ThreadLocal";
+		final String dirty = local + "Dirty";
+		final String className = ctMethod.getDeclaringClass().getName();
+		ctMethod.addLocalVariable(local, classPool.get(type));
+		final String writeCode;
+		final String callCode;
+		String reload = local + " = (" + type + ") " + threadLocalField + ".get();";
+		if (writeOnExit) {
+			ctMethod.addLocalVariable(dirty, CtClass.booleanType);
+			writeCode = "{ " + local + " = (" + type + ") ($w) (" + setExpression + "); " + dirty + " = true; }";
+			callCode = "{ if (" + dirty + ") { " + threadLocalField + ".set(" + local + "); " + dirty + " = false; } $_ = $proceed($$); " + reload + " }";
+		} else {
+			writeCode = "{ Object v = ($w) (" + setExpression + "); " + threadLocalField + ".set(v); " + local + " = (" + type + ") v; }";
+			callCode = "{ $_ = $proceed($$); " + reload + " }";
+		}
+		ctMethod.instrument(new ExprEditor() {
+			@Override
+			public void edit(MethodCall methodCall) throws CannotCompileException {
+				// The callee may access the field through the ThreadLocal
+				if (methodCall.getClassName().equals(className)) {
+					methodCall.replace(callCode);
+				}
+			}
+
+			@Override
+			public void edit(FieldAccess e) throws CannotCompileException {
+				if (e.getFieldName().equals(field)) {
+					if (e.isReader()) {
+						e.replace("{ $_ = " + local + "; }");
+					} else if (e.isWriter()) {
+						e.replace(writeCode);
+					}
+				}
+			}
+		});
+		MethodInfo methodInfo = ctMethod.getMethodInfo();
+		int codeLength = methodInfo.getCodeAttribute().getCodeLength();
+		ctMethod.insertBefore("{ " + local + " = (" + type + ") " + threadLocalField + ".get();" + (writeOnExit ? ' ' + dirty + " = false;" : "") + " }");
+		if (writeOnExit) {
+			int prologueLength = methodInfo.getCodeAttribute().getCodeLength() - codeLength;
+			ctMethod.insertAfter("{ if (" + dirty + ") { " + threadLocalField + ".set(" + local + "); } }", true);
+			// The finally handler covers the whole method, but the locals it reads are only assigned after the prologue
+			ExceptionTable exceptionTable = methodInfo.getCodeAttribute().getExceptionTable();
+			for (int i = 0; i < exceptionTable.size(); i++) {
+				if (exceptionTable.startPc(i) == 0 && exceptionTable.catchType(i) == 0) {
+					exceptionTable.setStartPc(prologueLength, i);
+				}
+			}
+			try {
+				methodInfo.rebuildStackMapIf6(classPool, ctMethod.getDeclaringClass().getClassFile());
+			} catch (BadBytecode e) {
+				throw new CannotCompileException(e);
+			}
+		}
+	}
+
+	/**
+	 * Replaces an int or long counter field in the target class with a LongAdder, so that concurrent
+	 * increments don't contend on one memory location.
+	 *
+	 * `field++`, `field--`, `field += x` and `field -= x`, where x is a constant or local and the result isn't
+	 * used, become `add` calls. Other writes become `reset` and `add`, and reads become `sum()`. Those writes
+	 * aren't atomic, concurrent updates may be lost and readers may see 0, so a warning is logged for each
+	 * outside of constructors. Falls back to AtomicLong if LongAdder isn't available. The old field is
+	 * renamed to field_old, accesses from other classes are not rewritten.
+	 *
+	 * @param field       Field to replace
+	 * @param accumulator (optional) Class implementing LongBinaryOperator. If set, the field is replaced with a
+	 *                    LongAccumulator using it, writes become `accumulate` calls and reads become `get()`
+	 * @param identity    (optional) Identity value for the accumulator, defaults to 0
+	 */
+	@Patch(
+		requiredAttributes = "field"
+	)
+	public void replaceFieldWithLongAdder(final CtClass ctClass, Map<String, String> attributes) throws CannotCompileException, NotFoundException, BadBytecode {
+		final String field = attributes.get("field");
+		String accumulator = attributes.get("accumulator");
+		CtField oldField = ctClass.getDeclaredField(field);
+		final String oldDescriptor = oldField.getFieldInfo2().getDescriptor();
+		if (!"I".equals(oldDescriptor) && !"J".equals(oldDescriptor)) {
+			PatcherLog.warn("Can't replace " + ctClass.getName() + '.' + field + " with a LongAdder, it is not an int or long.");
+			return;
+		}
+		final String cast = "I".equals(oldDescriptor) ? "(int) " : "";
+		String target = Modifier.isStatic(oldField.getModifiers()) ? field : "$0." + field;
+		String type;
+		String initializer;
+		final String readCode;
+		final String writeCode;
+		String addName = null;
+		String addDescriptor = null;
+		if (accumulator != null) {
+			String identity = attributes.get("identity");
+			type = "java.util.concurrent.atomic.LongAccumulator";
+			initializer = "new " + type + "(new " + accumulator + "(), " + (identity == null ? "0" : identity) + "L)";
+			readCode = "{ $_ = " + cast + target + ".get(); }";
+			writeCode = "{ " + target + ".accumulate((long) $1); }";
+		} else if (classPool.find("java.util.concurrent.atomic.LongAdder") != null) {
+			type = "java.util.concurrent.atomic.LongAdder";
+			initializer = "new " + type + "()";
+			readCode = "{ $_ = " + cast + target + ".sum(); }";
+			writeCode = "{ " + target + ".reset(); " + target + ".add((long) $1); }";
+			addName = "add";
+			addDescriptor = "(J)V";
+		} else {
+			PatcherLog.warn("LongAdder is not available, replacing " + ctClass.getName() + '.' + field + " with an AtomicLong.");
+			type = "java.util.concurrent.atomic.AtomicLong";
+			initializer = "new " + type + "()";
+			readCode = "{ $_ = " + cast + target + ".get(); }";
+			writeCode = "{ " + target + ".set((long) $1); }";
+			addName = "addAndGet";
+			addDescriptor = "(J)J";
+		}
+		oldField.setName(field + "_old");
+		CtField ctField = new CtField(classPool.get(type), field, ctClass);
+		ctField.setModifiers((oldField.getModifiers() & ~Modifier.VOLATILE) | Modifier.FINAL);
+		ctClass.addField(ctField, CtField.Initializer.byExpr(initializer));
+		Set<CtBehavior> allBehaviours = new HashSet<>();
+		Collections.addAll(allBehaviours, ctClass.getDeclaredConstructors());
+		Collections.addAll(allBehaviours, ctClass.getDeclaredMethods());
+		CtBehavior classInitializer = ctClass.getClassInitializer();
+		if (classInitializer != null) {
+			allBehaviours.add(classInitializer);
+		}
+		int updates = 0;
+		for (final CtBehavior ctBehavior : allBehaviours) {
+			if (addName != null) {
+				updates += rewriteCounterUpdates(ctBehavior, field, oldDescriptor, type, addName, addDescriptor);
+			}
+			final boolean warnWrites = addName != null && !(ctBehavior instanceof CtConstructor);
+			ctBehavior.instrument(new ExprEditor() {
+				@Override
+				public void edit(FieldAccess fieldAccess) throws CannotCompileException {
+					if (fieldAccess.getClassName().equals(ctClass.getName()) && fieldAccess.getFieldName().equals(field) && fieldAccess.getSignature().equals(oldDescriptor)) {
+						if (fieldAccess.isReader()) {
+							fieldAccess.replace(readCode);
+						} else if (fieldAccess.isWriter()) {
+							if (warnWrites) {
+								PatcherLog.warn("Write to " + ctClass.getName() + '.' + field + " in " + ctBehavior.getLongName() + " at line " + fieldAccess.getLineNumber()
+									+ " isn't a simple increment, it won't be atomic once the field is replaced.");
+							}
+							fieldAccess.replace(writeCode);
+						}
+					}
+				}
+			});
+		}
+		PatcherEvent.sitesReplaced(updates);
+		PatcherLog.trace("Replaced " + ctClass.getName() + '.' + field + " with a " + type + ", rewrote " + updates + " updates to " + addName);
+	}
+
+	/**
+	 * Rewrites `field (+|-)= x` sequences, where x is pushed by a single instruction, to calls of addName on
+	 * the replacement field in place, so that they stay a single atomic update.
+	 *
+	 * Matches [dup | aload_0 aload_0] getfield x (i|l)(add|sub) putfield, and getstatic x (i|l)(add|sub) putstatic.
+	 *
+	 * @return Number of rewritten updates
+	 */
+	private static int rewriteCounterUpdates(CtBehavior ctBehavior, String field, String oldDescriptor, String type, String addName, String addDescriptor) throws BadBytecode {
+		MethodInfo methodInfo = ctBehavior.getMethodInfo();
+		CodeAttribute codeAttribute = methodInfo.getCodeAttribute();
+		if (codeAttribute == null) {
+			return 0;
+		}
+		String className = ctBehavior.getDeclaringClass().getName();
+		boolean isLong = "J".equals(oldDescriptor);
+		ConstPool constPool = codeAttribute.getConstPool();
+		CodeIterator iterator = codeAttribute.iterator();
+		List<Integer> positions = new ArrayList<>();
+		while (iterator.hasNext()) {
+			positions.add(iterator.next());
+		}
+		List<int[]> matches = new ArrayList<>();
+		for (int i = 0; i + 3 < positions.size(); i++) {
+			int get = positions.get(i);
+			int getOp = iterator.byteAt(get);
+			int putOp = iterator.byteAt(positions.get(i + 3));
+			if (!((getOp == Opcode.GETFIELD && putOp == Opcode.PUTFIELD) || (getOp == Opcode.GETSTATIC && putOp == Opcode.PUTSTATIC))
+				|| !isField(constPool, iterator.u16bitAt(get + 1), className, field, oldDescriptor)
+				|| !isField(constPool, iterator.u16bitAt(positions.get(i + 3) + 1), className, field, oldDescriptor)
+				|| !isSimplePush(iterator.byteAt(positions.get(i + 1)))) {
+				continue;
+			}
+			int arithmeticOp = iterator.byteAt(positions.get(i + 2));
+			if (isLong ? (arithmeticOp != Opcode.LADD && arithmeticOp != Opcode.LSUB) : (arithmeticOp != Opcode.IADD && arithmeticOp != Opcode.ISUB)) {
+				continue;
+			}
+			int receiver = -1;
+			if (getOp == Opcode.GETFIELD) {
+				if (i >= 1 && iterator.byteAt(positions.get(i - 1)) == Opcode.DUP) {
+					receiver = positions.get(i - 1);
+				} else if (i >= 2 && iterator.byteAt(positions.get(i - 1)) == Opcode.ALOAD_0 && iterator.byteAt(positions.get(i - 2)) == Opcode.ALOAD_0) {
+					receiver = positions.get(i - 2);
+				} else {
+					continue;
+				}
+			}
+			matches.add(new int[]{receiver, get, positions.get(i + 2), positions.get(i + 3)});
+		}
+		if (matches.isEmpty()) {
+			return 0;
+		}
+		int fieldIndex = constPool.addFieldrefInfo(constPool.addClassInfo(className), field, Descriptor.of(type));
+		int methodIndex = constPool.addMethodrefInfo(constPool.addClassInfo(type), addName, addDescriptor);
+		boolean popResult = !addDescriptor.endsWith(")V");
+		// Process from the end so that inserted bytes don't move positions of earlier matches
+		Collections.reverse(matches);
+		for (int[] match : matches) {
+			if (match[0] != -1) {
+				iterator.writeByte(Opcode.NOP, match[0]);
+			}
+			iterator.write16bit(fieldIndex, match[1] + 1);
+			iterator.writeByte(Opcode.INVOKEVIRTUAL, match[3]);
+			iterator.write16bit(methodIndex, match[3] + 1);
+			if (popResult) {
+				iterator.insertExAt(match[3] + 3, new byte[]{(byte) Opcode.POP2});
+			}
+			int arithmeticOp = iterator.byteAt(match[2]);
+			boolean subtract = arithmeticOp == Opcode.ISUB || arithmeticOp == Opcode.LSUB;
+			if (isLong) {
+				iterator.writeByte(subtract ? Opcode.LNEG : Opcode.NOP, match[2]);
+			} else if (subtract) {
+				iterator.writeByte(Opcode.INEG, match[2]);
+				iterator.insertExAt(match[2] + 1, new byte[]{(byte) Opcode.I2L});
+			} else {
+				iterator.writeByte(Opcode.I2L, match[2]);
+			}
+		}
+		codeAttribute.computeMaxStack();
+		methodInfo.rebuildStackMapIf6(ctBehavior.getDeclaringClass().getClassPool(), ctBehavior.getDeclaringClass().getClassFile2());
+		return matches.size();
+	}
+
+	private static boolean isField(ConstPool constPool, int index, String className, String field, String descriptor) {
+		return constPool.getFieldrefClassName(index).equals(className) && constPool.getFieldrefName(index).equals(field) && constPool.getFieldrefType(index).equals(descriptor);
+	}
+
+	private static boolean isSimplePush(int op) {
+		return (op >= Opcode.ICONST_M1 && op <= Opcode.LDC2_W) || (op >= Opcode.ILOAD && op <= Opcode.LLOAD) || (op >= Opcode.ILOAD_0 && op <= Opcode.LLOAD_3);
+	}
+
+	/**
+	 * Makes read-modify-write updates of a field in the target class atomic, using an atomic field updater
+	 * rather than a lock. The field is made volatile.
+	 *
+	 * For int and long fields, `field += x`, `field -= x`, `field++` and `field--`, where x is a constant or local,
+	 * become `getAndAdd` calls, including when their result is used. For reference fields,
+	 * `if (field == null) field = value;` becomes `compareAndSet(this, null, value)`, so only the first
+	 * value is stored. Other accesses are left as they are, and are atomic as the field is volatile.
+	 *
+	 * @param field Non-final, non-static int, long or reference field
+	 */
+	@Patch(
+		requiredAttributes = "field"
+	)
+	public void makeFieldAtomic(CtClass ctClass, Map<String, String> attributes) throws CannotCompileException, NotFoundException, BadBytecode {
+		String field = attributes.get("field");
+		CtField ctField = ctClass.getDeclaredField(field);
+		String descriptor = ctField.getFieldInfo2().getDescriptor();
+		if (Modifier.isStatic(ctField.getModifiers()) || Modifier.isFinal(ctField.getModifiers())) {
+			PatcherLog.warn("Can't make " + ctClass.getName() + '.' + field + " atomic, it is static or final.");
+			return;
+		}
+		String className = ctClass.getName();
+		String fieldType = ctField.getType().getName();
+		String updaterType;
+		String initializer;
+		if ("I".equals(descriptor)) {
+			updaterType = "java.util.concurrent.atomic.AtomicIntegerFieldUpdater";
+			initializer = updaterType + ".newUpdater(" + className + ".class, \"" + field + "\")";
+		} else if ("J".equals(descriptor)) {
+			updaterType = "java.util.concurrent.atomic.AtomicLongFieldUpdater";
+			initializer = updaterType + ".newUpdater(" + className + ".class, \"" + field + "\")";
+		} else if (descriptor.charAt(0) == 'L' || descriptor.charAt(0) == '[') {
+			updaterType = "java.util.concurrent.atomic.AtomicReferenceFieldUpdater";
+			initializer = updaterType + ".newUpdater(" + className + ".class, " + fieldType + ".class, \"" + field + "\")";
+		} else {
+			PatcherLog.warn("Can't make " + ctClass.getName() + '.' + field + " atomic, it is a " + fieldType + '.');
+			return;
+		}
+		ctField.setModifiers(ctField.getModifiers() | Modifier.VOLATILE);
+		Set<CtBehavior> allBehaviours = new HashSet<>();
+		Collections.addAll(allBehaviours, ctClass.getDeclaredConstructors());
+		Collections.addAll(allBehaviours, ctClass.getDeclaredMethods());
+		String updater = addStaticField(ctClass, "__" + field + "Updater", updaterType, initializer);
+		// Helpers take the same stack as the putfield they replace, so updates can be rewritten in place
+		String[] helpers;
+		if (updaterType.endsWith("ReferenceFieldUpdater")) {
+			helpers = new String[]{"__" + field + "Init"};
+			ctClass.addMethod(CtNewMethod.make("private static void " + helpers[0] + '(' + className + " o, " + fieldType + " v) { " + updater + ".compareAndSet(o, null, v); }", ctClass));
+		} else {
+			String type = "I".equals(descriptor) ? "int" : "long";
+			helpers = new String[]{"__" + field + "Add", "__" + field + "GetAndAdd", "__" + field + "AddAndGet"};
+			ctClass.addMethod(CtNewMethod.make("private static void " + helpers[0] + '(' + className + " o, " + type + " d) { " + updater + ".getAndAdd(o, d); }", ctClass));
+			ctClass.addMethod(CtNewMethod.make("private static " + type + ' ' + helpers[1] + '(' + className + " o, " + type + " d) { return " + updater + ".getAndAdd(o, d); }", ctClass));
+			ctClass.addMethod(CtNewMethod.make("private static " + type + ' ' + helpers[2] + '(' + className + " o, " + type + " d) { return " + updater + ".addAndGet(o, d); }", ctClass));
+		}
+		int updates = 0;
+		for (CtBehavior ctBehavior : allBehaviours) {
+			updates += rewriteAtomicUpdates(ctBehavior, field, descriptor, helpers);
+		}
+		PatcherEvent.sitesReplaced(updates);
+		PatcherLog.trace("Made " + className + '.' + field + " atomic, rewrote " + updates + " updates");
+	}
+
+	/**
+	 * Rewrites updates of a field to calls to helpers, in place.
+	 *
+	 * For int and long fields, helpers are add, getAndAdd and addAndGet, and matched sequences are
+	 * [dup | aload_0 aload_0] getfield [dup_x1] x (i|l)(add|sub) [dup_x1] putfield.
+	 * For reference fields, the helper is init, replacing the first putfield between
+	 * aload_0 getfield ifnonnull and the ifnonnull's target.
+	 *
+	 * @return Number of rewritten updates
+	 */
+	private static int rewriteAtomicUpdates(CtBehavior ctBehavior, String field, String descriptor, String[] helpers) throws BadBytecode {
+		MethodInfo methodInfo = ctBehavior.getMethodInfo();
+		CodeAttribute codeAttribute = methodInfo.getCodeAttribute();
+		if (codeAttribute == null) {
+			return 0;
+		}
+		CtClass ctClass = ctBehavior.getDeclaringClass();
+		String className = ctClass.getName();
+		ConstPool constPool = codeAttribute.getConstPool();
+		CodeIterator iterator = codeAttribute.iterator();
+		List<Integer> positions = new ArrayList<>();
+		while (iterator.hasNext()) {
+			positions.add(iterator.next());
+		}
+		String ownerDescriptor = Descriptor.of(className);
+		int classIndex = constPool.addClassInfo(className);
+		int updates = 0;
+		if (helpers.length == 1) {
+			int init = constPool.addMethodrefInfo(classIndex, helpers[0], '(' + ownerDescriptor + descriptor + ")V");
+			for (int i = 0; i + 2 < positions.size(); i++) {
+				int get = positions.get(i + 1);
+				int branch = positions.get(i + 2);
+				if (iterator.byteAt(positions.get(i)) != Opcode.ALOAD_0 || iterator.byteAt(get) != Opcode.GETFIELD
+					|| !isField(constPool, iterator.u16bitAt(get + 1), className, field, descriptor) || iterator.byteAt(branch) != Opcode.IFNONNULL) {
+					continue;
+				}
+				int target = branch + iterator.s16bitAt(branch + 1);
+				for (int j = i + 3; j < positions.size() && positions.get(j) < target; j++) {
+					int put = positions.get(j);
+					if (iterator.byteAt(put) == Opcode.PUTFIELD && isField(constPool, iterator.u16bitAt(put + 1), className, field, descriptor)) {
+						iterator.writeByte(Opcode.INVOKESTATIC, put);
+						iterator.write16bit(init, put + 1);
+						updates++;
+						break;
+					}
+				}
+			}
+		} else {
+			boolean isLong = "J".equals(descriptor);
+			int dupOp = isLong ? Opcode.DUP2_X1 : Opcode.DUP_X1;
+			String add = '(' + ownerDescriptor + descriptor + ')';
+			int[] methods = {
+				constPool.addMethodrefInfo(classIndex, helpers[0], add + 'V'),
+				constPool.addMethodrefInfo(classIndex, helpers[1], add + descriptor),
+				constPool.addMethodrefInfo(classIndex, helpers[2], add + descriptor)};
+			for (int i = 1; i + 3 < positions.size(); i++) {
+				int get = positions.get(i);
+				if (iterator.byteAt(get) != Opcode.GETFIELD || !isField(constPool, iterator.u16bitAt(get + 1), className, field, descriptor)) {
+					continue;
+				}
+				int receiver;
+				if (iterator.byteAt(positions.get(i - 1)) == Opcode.DUP) {
+					receiver = positions.get(i - 1);
+				} else if (i >= 2 && iterator.byteAt(positions.get(i - 1)) == Opcode.ALOAD_0 && iterator.byteAt(positions.get(i - 2)) == Opcode.ALOAD_0) {
+					receiver = positions.get(i - 1);
+				} else {
+					continue;
+				}
+				int helper = 0;
+				int dup = -1;
+				int next = i + 1;
+				if (iterator.byteAt(positions.get(next)) == dupOp) {
+					helper = 1;
+					dup = positions.get(next++);
+				}
+				if (next + 2 >= positions.size() || !isSimplePush(iterator.byteAt(positions.get(next)))) {
+					continue;
+				}
+				int arithmetic = positions.get(next + 1);
+				int arithmeticOp = iterator.byteAt(arithmetic);
+				if (isLong ? (arithmeticOp != Opcode.LADD && arithmeticOp != Opcode.LSUB) : (arithmeticOp != Opcode.IADD && arithmeticOp != Opcode.ISUB)) {
+					continue;
+				}
+				int put = positions.get(next + 2);
+				if (helper == 0 && iterator.byteAt(put) == dupOp && next + 3 < positions.size()) {
+					helper = 2;
+					dup = put;
+					put = positions.get(next + 3);
+				}
+				if (iterator.byteAt(put) != Opcode.PUTFIELD || !isField(constPool, iterator.u16bitAt(put + 1), className, field, descriptor)) {
+					continue;
+				}
+				iterator.writeByte(Opcode.NOP, receiver);
+				for (int j = 0; j < 3; j++) {
+					iterator.writeByte(Opcode.NOP, get + j);
+				}
+				if (dup != -1) {
+					iterator.writeByte(Opcode.NOP, dup);
+				}
+				boolean subtract = arithmeticOp == Opcode.ISUB || arithmeticOp == Opcode.LSUB;
+				iterator.writeByte(subtract ? (isLong ? Opcode.LNEG : Opcode.INEG) : Opcode.NOP, arithmetic);
+				iterator.writeByte(Opcode.INVOKESTATIC, put);
+				iterator.write16bit(methods[helper], put + 1);
+				updates++;
+			}
+		}
+		if (updates != 0) {
+			codeAttribute.computeMaxStack();
+			CodeCompactor.compact(methodInfo, ctClass.getClassPool(), ctClass.getClassFile2());
+		}
+		return updates;
+	}
+
+	/**
+	 * Replaces a private HashMap, HashSet or ArrayList field with Integer or Long keys with a primitive
+	 * collection, and rewrites calls which box their key to use the unboxed methods.
+	 *
+	 * The key type is taken from the field's generic signature. Refuses if the field escapes: if it is
+	 * read other than to call a method on it, or written other than with a new instance or null.
+	 *
+	 * @param field Field to replace
+	 */
+	@Patch(
+		requiredAttributes = "field"
+	)
+	public void replaceWithPrimitiveCollection(CtClass ctClass, Map<String, String> attributes) throws NotFoundException, BadBytecode, CannotCompileException {
+		PrimitiveCollectionSubstitution.apply(ctClass, attributes.get("field"), classPool);
 	}
 
 	/**
@@ -929,7 +1442,7 @@ public class Patches {
 		if (field != null) {
 			code = code.replace("$field", field);
 		}
-		ctBehavior.insertBefore(code);
+		compiledCodeCache.insertBefore(ctBehavior, code);
 	}
 
 	/**
@@ -949,7 +1462,7 @@ public class Patches {
 		if (field != null) {
 			code = code.replace("$field", field);
 		}
-		ctBehavior.insertAfter(code, attributes.containsKey("finally"));
+		compiledCodeCache.insertAfter(ctBehavior, code, attributes.containsKey("finally"));
 	}
 
 
@@ -963,8 +1476,8 @@ public class Patches {
 	)
 	public void lock(CtMethod ctMethod, Map<String, String> attributes) throws NotFoundException, CannotCompileException, IOException {
 		String field = attributes.get("field");
-		ctMethod.insertBefore("this." + field + ".lock();");
-		ctMethod.insertAfter("this." + field + ".unlock();", true);
+		compiledCodeCache.insertBefore(ctMethod, "this." + field + ".lock();");
+		compiledCodeCache.insertAfter(ctMethod, "this." + field + ".unlock();", true);
 	}
 
 	/**
@@ -1012,6 +1525,7 @@ public class Patches {
 				}
 			}
 		});
+		PatcherEvent.sitesReplaced(replaced.value);
 		if (replaced.value == 0) {
 			PatcherLog.warn("0 replacements made locking method call " + attributes.get("method") + " in " + ctBehavior.getLongName());
 		}
@@ -1063,11 +1577,95 @@ public class Patches {
 			}
 		});
 
+		PatcherEvent.sitesReplaced(replaced.value);
 		if (replaced.value == 0) {
 			PatcherLog.warn("0 replacements made synchronizing method call " + attributes.get("method") + " in " + ctBehavior.getLongName());
 		}
 	}
 
+	/**
+	 * Guards the target method, or calls to `method` in the target method, with one of an array of
+	 * locks chosen by the hash of a key, so that calls with different keys rarely contend.
+	 * The lock array is added to the target class as a static field.
+	 *
+	 * @param key     Expression to pick a lock by, eg `$1` or `$2.x`. When locking calls, $N refers to the call's arguments.
+	 * @param field   (optional) Name of the lock array field. Methods locked with the same field share locks. Defaults to `stripedLocks`.
+	 * @param stripes (optional) Number of locks, rounded up to a power of two. Defaults to 64. Ignored if the field already exists.
+	 * @param method  (optional) Name of method to lock calls to, instead of locking the whole target method
+	 * @param index   (optional) Index of call to lock. Defaults to all.
+	 * @throws CannotCompileException
+	 */
+	@Patch(
+		requiredAttributes = "key"
+	)
+	public void stripedLock(final CtBehavior ctBehavior, Map<String, String> attributes) throws CannotCompileException, NotFoundException {
+		String field = attributes.get("field");
+		if (field == null) {
+			field = "stripedLocks";
+		}
+		String stripes = attributes.get("stripes");
+		addStripedLocks(ctBehavior.getDeclaringClass(), field, stripes == null ? 64 : Integer.parseInt(stripes));
+		String key = attributes.get("key");
+		String lock = field + "[(hash ^ (hash >>> 16)) & (" + field + ".length - 1)]";
+		String hash = "int hash = java.util.Objects.hashCode(($w) (" + key + "));";
+		String method_ = attributes.get("method");
+		if (method_ == null) {
+			if (!(ctBehavior instanceof CtMethod)) {
+				PatcherLog.warn("Can't lock constructor " + ctBehavior.getLongName() + " without a method to lock calls to");
+				return;
+			}
+			wrapMethod((CtMethod) ctBehavior, "_striped", "{ " + hash + " synchronized (" + lock + ") { return $original($$); } }");
+			return;
+		}
+		String className_ = null;
+		int dotIndex = method_.indexOf('.');
+		if (dotIndex != -1) {
+			className_ = method_.substring(0, dotIndex);
+			method_ = method_.substring(dotIndex + 1);
+		}
+		String index_ = attributes.get("index");
+		if (index_ == null) {
+			index_ = "-1";
+		}
+
+		final String method = method_;
+		final String className = className_;
+		final String code = "{ " + hash + " synchronized (" + lock + ") { $_ = $proceed($$); } }";
+		final int index = Integer.valueOf(index_);
+		final IntHolder replaced = new IntHolder();
+
+		ctBehavior.instrument(new ExprEditor() {
+			private int currentIndex = 0;
+
+			@Override
+			public void edit(MethodCall methodCall) throws CannotCompileException {
+				if ((className == null || methodCall.getClassName().equals(className)) && (method.isEmpty() || methodCall.getMethodName().equals(method)) && (index == -1 || currentIndex++ == index)) {
+					PatcherLog.trace("Replaced " + methodCall.getMethodName() + " from " + ctBehavior);
+					methodCall.replace(code);
+					replaced.value++;
+				}
+			}
+		});
+		PatcherEvent.sitesReplaced(replaced.value);
+		if (replaced.value == 0) {
+			PatcherLog.warn("0 replacements made striped locking method call " + attributes.get("method") + " in " + ctBehavior.getLongName());
+		}
+	}
+
+	private void addStripedLocks(CtClass ctClass, String field, int stripes) throws CannotCompileException, NotFoundException {
+		try {
+			ctClass.getDeclaredField(field);
+			return;
+		} catch (NotFoundException ignored) {
+		}
+		int size = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+		CtField ctField = new CtField(classPool.get("java.lang.Object[]"), field, ctClass);
+		ctField.setModifiers(Modifier.PRIVATE | Modifier.STATIC | Modifier.FINAL);
+		ctClass.addField(ctField);
+		// Before any existing static initializer code, which may call locked methods
+		ctClass.makeClassInitializer().insertBefore("{ " + field + " = new Object[" + size + "]; for (int i = 0; i < " + size + "; i++) { " + field + "[i] = new Object(); } }");
+	}
+
 	/**
 	 * Makes the target method, field, or all fields in the target class synchronized
 	 *
@@ -1123,30 +1721,464 @@ public class Patches {
 				ctMethod.setModifiers(currentModifiers | Modifier.SYNCHRONIZED);
 			}
 		} else {
-			CtClass ctClass = ctMethod.getDeclaringClass();
-			CtMethod replacement = CtNewMethod.copy(ctMethod, ctClass, null);
-			int i = 0;
-			try {
-				//noinspection InfiniteLoopStatement
-				for (; true; i++) {
-					ctClass.getDeclaredMethod(ctMethod.getName() + "_sync" + i);
+			wrapMethod(ctMethod, "_sync", "synchronized(" + field + ") { return $original($$); }");
+		}
+	}
+
+	/**
+	 * Renames the given method to name + suffix + N, and adds a new method with the original name,
+	 * signature and annotations in its place which runs the given code.
+	 *
+	 * @param code Body of the new method. $original is replaced with the renamed method's name.
+	 * @return The new method
+	 */
+	private CtMethod wrapMethod(CtMethod ctMethod, String suffix, String code) throws CannotCompileException {
+		CtClass ctClass = ctMethod.getDeclaringClass();
+		CtMethod replacement = CtNewMethod.copy(ctMethod, ctClass, null);
+		int i = 0;
+		try {
+			//noinspection InfiniteLoopStatement
+			for (; true; i++) {
+				ctClass.getDeclaredMethod(ctMethod.getName() + suffix + i);
+			}
+		} catch (NotFoundException ignored) {
+		}
+		ctMethod.setName(ctMethod.getName() + suffix + i);
+		@SuppressWarnings("unchecked") List<AttributeInfo> attributes = ctMethod.getMethodInfo().getAttributes();
+		Iterator<AttributeInfo> attributeInfoIterator = attributes.iterator();
+		while (attributeInfoIterator.hasNext()) {
+			AttributeInfo attributeInfo = attributeInfoIterator.next();
+			if (attributeInfo instanceof AnnotationsAttribute) {
+				attributeInfoIterator.remove();
+				replacement.getMethodInfo().addAttribute(attributeInfo);
+			}
+		}
+		replacement.setBody(code.replace("$original", ctMethod.getName()));
+		replacement.setModifiers(replacement.getModifiers() & ~Modifier.SYNCHRONIZED);
+		ctClass.addMethod(replacement);
+		return replacement;
+	}
+
+	/**
+	 * Guards the target method, or all non-static, non-private methods of the target class, with a ReadWriteLock
+	 * or StampedLock. Methods are automatically classified as readers or writers: methods which write
+	 * fields of the class, store to arrays, call mutator methods, or call writer or inherited methods of the class
+	 * are writers and take the write lock, all other methods take the read lock.
+	 *
+	 * Private methods are only called by methods which already hold the lock, so they aren't locked when
+	 * the whole class is targeted. StampedLocks are not reentrant, other methods guarded by one must not call
+	 * each other on the same object.
+	 *
+	 * Optimistic readers run without locking first, then again under the read lock if a writer ran
+	 * concurrently. They may see a partially written object, so they must only read fields, not call
+	 * anything with side effects, and always terminate. A RuntimeException from the optimistic run is
+	 * discarded and the method retried under the lock, other exceptions and errors are thrown.
+	 *
+	 * @param field      Field containing the ReadWriteLock or StampedLock
+	 * @param stamped    (optional) Treat the lock as a StampedLock. Detected automatically for fields of the target class.
+	 * @param optimistic (optional) With a StampedLock, comma separated names of non-void reader methods to run
+	 *                   optimistically. When a single method is targeted any value enables it for that method.
+	 * @param mutators   (optional) Comma separated names of methods which modify the object they're called on.
+	 *                   Defaults to common collection mutators such as add, put, remove and clear. When given,
+	 *                   inherited methods of the class are only writers if they are listed.
+	 * @param mode       (optional) `read` or `write`, overrides classification
+	 */
+	@Patch(
+		requiredAttributes = "field",
+		emptyConstructor = false
+	)
+	public void readWriteLock(Object o, Map<String, String> attributes) throws CannotCompileException, NotFoundException, BadBytecode {
+		String field = attributes.get("field");
+		CtClass ctClass = o instanceof CtClass ? (CtClass) o : ((CtBehavior) o).getDeclaringClass();
+		List<CtMethod> targets = new ArrayList<>();
+		if (o instanceof CtClass) {
+			for (CtMethod ctMethod : ctClass.getDeclaredMethods()) {
+				int modifiers = ctMethod.getModifiers();
+				if (!Modifier.isStatic(modifiers) && !Modifier.isPrivate(modifiers) && !Modifier.isAbstract(modifiers) && !Modifier.isNative(modifiers)) {
+					targets.add(ctMethod);
 				}
+			}
+		} else if (o instanceof CtMethod) {
+			targets.add((CtMethod) o);
+		} else {
+			PatcherLog.warn("Can't lock constructor " + ((CtBehavior) o).getLongName());
+			return;
+		}
+		boolean stamped = attributes.containsKey("stamped");
+		if (!stamped) {
+			try {
+				String fieldName = field.startsWith("this.") ? field.substring("this.".length()) : field;
+				stamped = "java.util.concurrent.locks.StampedLock".equals(ctClass.getDeclaredField(fieldName).getType().getName());
 			} catch (NotFoundException ignored) {
 			}
-			ctMethod.setName(ctMethod.getName() + "_sync" + i);
-			@SuppressWarnings("unchecked") List<AttributeInfo> attributes = ctMethod.getMethodInfo().getAttributes();
-			Iterator<AttributeInfo> attributeInfoIterator = attributes.iterator();
-			while (attributeInfoIterator.hasNext()) {
-				AttributeInfo attributeInfo = attributeInfoIterator.next();
-				if (attributeInfo instanceof AnnotationsAttribute) {
-					attributeInfoIterator.remove();
-					replacement.getMethodInfo().addAttribute(attributeInfo);
+		}
+		String mode = attributes.get("mode");
+		Set<CtMethod> writers;
+		if (mode == null) {
+			String mutators = attributes.get("mutators");
+			writers = MutationAnalysis.findWriters(ctClass, mutators == null ? MutationAnalysis.DEFAULT_MUTATORS : new HashSet<>(Splitter.on(',').trimResults().omitEmptyStrings().splitToList(mutators)), mutators == null);
+		} else if ("write".equals(mode)) {
+			writers = new HashSet<>(targets);
+		} else if ("read".equals(mode)) {
+			writers = Collections.emptySet();
+		} else {
+			throw new IllegalArgumentException("Unknown readWriteLock mode " + mode);
+		}
+		String optimistic = attributes.get("optimistic");
+		if (optimistic != null && !stamped) {
+			PatcherLog.warn("Ignoring optimistic attribute of readWriteLock for " + ctClass.getName() + ", " + field + " isn't a StampedLock.");
+			optimistic = null;
+		}
+		Set<String> optimisticMethods = optimistic == null || o instanceof CtMethod ? Collections.<String>emptySet() : new HashSet<>(Splitter.on(',').trimResults().omitEmptyStrings().splitToList(optimistic));
+		int readers = 0;
+		for (CtMethod ctMethod : targets) {
+			boolean writer = writers.contains(ctMethod);
+			boolean optimisticReader = optimistic != null && (o instanceof CtMethod || optimisticMethods.contains(ctMethod.getName()));
+			CtClass returnType = ctMethod.getReturnType();
+			String code;
+			if (!stamped) {
+				String lock = field + (writer ? ".writeLock()" : ".readLock()");
+				code = "{ " + lock + ".lock(); try { return $original($$); } finally { " + lock + ".unlock(); } }";
+			} else if (writer) {
+				code = "{ long stamp = " + field + ".writeLock(); try { return $original($$); } finally { " + field + ".unlockWrite(stamp); } }";
+			} else if (optimisticReader && returnType != CtClass.voidType) {
+				code = "{ long stamp = " + field + ".tryOptimisticRead();"
+					+ " if (stamp != 0L) { try { " + returnType.getName() + " result = $original($$); if (" + field + ".validate(stamp)) { return result; } } catch (RuntimeException ignored) { } }"
+					+ " stamp = " + field + ".readLock(); try { return $original($$); } finally { " + field + ".unlockRead(stamp); } }";
+			} else {
+				code = "{ long stamp = " + field + ".readLock(); try { return $original($$); } finally { " + field + ".unlockRead(stamp); } }";
+			}
+			if (!writer) {
+				readers++;
+			}
+			wrapMethod(ctMethod, "_rw", code);
+		}
+		PatcherLog.trace("Read/write locked " + targets.size() + " methods in " + ctClass.getName() + ", " + readers + " readers.");
+	}
+
+	/**
+	 * Caches the results of the target method, keyed by its arguments. The original method is renamed
+	 * to name_memoN, and only called if its result for the arguments isn't cached.
+	 *
+	 * The method must be pure: its result must only depend on its arguments, and for non-static methods the
+	 * state of the object, as each object gets its own cache, created on the first call. Arguments which are
+	 * all primitives and fit in 64 bits are packed into a long key without allocating. The cache is direct
+	 * mapped, so results may be evicted before it is full.
+	 *
+	 * @param size   (optional) Number of cached results, defaults to 1024
+	 * @param expire (optional) Milliseconds after which a cached result is discarded, defaults to never
+	 */
+	@Patch
+	public void memoize(CtMethod ctMethod, Map<String, String> attributes) throws CannotCompileException, NotFoundException {
+		CtClass ctClass = ctMethod.getDeclaringClass();
+		CtClass returnType = ctMethod.getReturnType();
+		if (returnType == CtClass.voidType || (ctMethod.getModifiers() & (Modifier.ABSTRACT | Modifier.NATIVE)) != 0) {
+			PatcherLog.warn("Can't memoize " + ctMethod.getLongName() + ", it is void, abstract or native.");
+			return;
+		}
+		String size = attributes.get("size");
+		String expire = attributes.get("expire");
+		if (classPool.find(MemoCache.class.getName()) == null) {
+			classPool.appendClassPath(new ClassClassPath(MemoCache.class));
+		}
+		String cacheField = "__memoCache";
+		for (int i = 0; ; i++) {
+			try {
+				ctClass.getDeclaredField(cacheField + i);
+			} catch (NotFoundException e) {
+				cacheField += i;
+				break;
+			}
+		}
+		boolean isStatic = Modifier.isStatic(ctMethod.getModifiers());
+		String cacheClass = MemoCache.class.getName();
+		String newCache = "new " + cacheClass + '(' + (size == null ? "1024" : size) + ", " + (expire == null ? "0" : expire) + "L)";
+		CtField ctField = new CtField(classPool.get(cacheClass), cacheField, ctClass);
+		String getCache;
+		if (isStatic) {
+			ctField.setModifiers(Modifier.PRIVATE | Modifier.FINAL | Modifier.STATIC);
+			ctClass.addField(ctField);
+			// Before any existing static initializer code, which may call the memoized method
+			ctClass.makeClassInitializer().insertBefore("{ " + cacheField + " = " + newCache + "; }");
+			getCache = cacheClass + " cache = " + cacheField + ';';
+		} else {
+			// Created on the first call, so objects which never call the method don't pay for a cache.
+			// Racing threads may each create one and the last stored wins, MemoCache is safe to publish this way.
+			ctField.setModifiers(Modifier.PRIVATE | Modifier.TRANSIENT);
+			ctClass.addField(ctField);
+			getCache = cacheClass + " cache = " + cacheField + "; if (cache == null) { cache = " + newCache + "; " + cacheField + " = cache; }";
+		}
+		wrapMethod(ctMethod, "_memo", "{ " + getCache + ' ' + memoKey(ctMethod.getParameterTypes())
+			+ " Object cached = cache.get(key);"
+			+ " if (cached != " + cacheClass + ".MISS) { return ($r) cached; }"
+			+ ' ' + returnType.getName() + " result = $original($$);"
+			+ " cache.put(key, ($w) result);"
+			+ " return result; }");
+	}
+
+	/**
+	 * @return Statement declaring `key`, a long if the parameters can be packed into one, otherwise an Object
+	 */
+	private static String memoKey(CtClass[] parameterTypes) {
+		int bits = 0;
+		for (CtClass parameterType : parameterTypes) {
+			if (!parameterType.isPrimitive()) {
+				bits = Integer.MAX_VALUE;
+				break;
+			}
+			bits += parameterType == CtClass.longType || parameterType == CtClass.doubleType ? 64 : parameterType == CtClass.booleanType ? 1 : parameterType == CtClass.byteType ? 8 : parameterType == CtClass.shortType || parameterType == CtClass.charType ? 16 : 32;
+		}
+		if (bits <= 64) {
+			StringBuilder key = new StringBuilder("long key = 0L;");
+			for (int i = 0; i < parameterTypes.length; i++) {
+				CtClass parameterType = parameterTypes[i];
+				String argument = "$" + (i + 1);
+				String value;
+				int width;
+				if (parameterType == CtClass.booleanType) {
+					value = '(' + argument + " ? 1L : 0L)";
+					width = 1;
+				} else if (parameterType == CtClass.longType) {
+					value = argument;
+					width = 64;
+				} else if (parameterType == CtClass.doubleType) {
+					value = "Double.doubleToRawLongBits(" + argument + ')';
+					width = 64;
+				} else if (parameterType == CtClass.floatType) {
+					value = "((long) Float.floatToRawIntBits(" + argument + ") & 0xFFFFFFFFL)";
+					width = 32;
+				} else {
+					width = parameterType == CtClass.byteType ? 8 : parameterType == CtClass.intType ? 32 : 16;
+					value = "((long) " + argument + " & " + ((1L << width) - 1) + "L)";
+				}
+				key.append(" key = ").append(width == 64 ? "" : "(key << " + width + ") | ").append(value).append(';');
+			}
+			return key.toString();
+		}
+		if (parameterTypes.length == 1 && !parameterTypes[0].isArray()) {
+			return "Object key = ($w) $1;";
+		}
+		return "Object key = new " + MemoCache.Key.class.getName().replace('$', '.') + "($args);";
+	}
+
+	/**
+	 * Replaces calls to a void method in the target method with submission of the call to a named executor,
+	 * so that the target method doesn't wait for it. The arguments are captured when the call is submitted.
+	 * Exceptions thrown by the call are logged.
+	 *
+	 * Executors are created on first use, running calls on a virtual thread per call if the runtime supports
+	 * them, otherwise on a daemon thread pool. Other executors can be registered with {@link AsyncCalls#register}.
+	 *
+	 * @param method     Name of method to run asynchronously, optionally prefixed with its class
+	 * @param index      (optional) Index of call to replace. Defaults to all.
+	 * @param executor   (optional) Name of the executor. Defaults to `default`.
+	 * @param key        (optional) Expression to order calls by, eg `$1`. Calls with equal keys run in submission order.
+	 * @param maxPending (optional) Maximum number of calls pending on the executor. Defaults to 1024.
+	 * @param whenFull   (optional) inline, block or discard: what to do with calls when maxPending calls are pending.
+	 *                   Defaults to inline, running the call in the target method. Ordered calls block instead.
+	 */
+	@Patch(
+		requiredAttributes = "method"
+	)
+	public void runAsync(final CtBehavior ctBehavior, Map<String, String> attributes) throws CannotCompileException, NotFoundException {
+		final CtClass ctClass = ctBehavior.getDeclaringClass();
+		if (ctClass.isInterface()) {
+			PatcherLog.warn("Can't run calls asynchronously in interface " + ctClass.getName());
+			return;
+		}
+		String method_ = attributes.get("method");
+		String className_ = null;
+		int dotIndex = method_.lastIndexOf('.');
+		if (dotIndex != -1) {
+			className_ = method_.substring(0, dotIndex);
+			method_ = method_.substring(dotIndex + 1);
+		}
+		String index_ = attributes.get("index");
+		if (index_ == null) {
+			index_ = "-1";
+		}
+		String executor = attributes.get("executor");
+		String maxPending_ = attributes.get("maxPending");
+		String whenFull_ = attributes.get("whenFull");
+		int maxPending;
+		try {
+			maxPending = maxPending_ == null ? 1024 : Integer.parseInt(maxPending_);
+		} catch (NumberFormatException e) {
+			maxPending = 0;
+		}
+		if (maxPending <= 0) {
+			throw new IllegalArgumentException("maxPending must be a positive integer, not " + maxPending_);
+		}
+		AsyncExecutor.WhenFull whenFull;
+		try {
+			whenFull = whenFull_ == null ? AsyncExecutor.WhenFull.INLINE : AsyncExecutor.WhenFull.valueOf(whenFull_.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("whenFull must be inline, block or discard, not " + whenFull_);
+		}
+		final String key = attributes.get("key");
+		final String method = method_;
+		final String className = className_;
+		final int index = Integer.valueOf(index_);
+		final IntHolder replaced = new IntHolder();
+		if (classPool.find(AsyncCalls.class.getName()) == null) {
+			classPool.appendClassPath(new ClassClassPath(AsyncCalls.class));
+		}
+		final String asyncCalls = AsyncCalls.class.getName();
+		// Find the calls first, as adding the handle fields modifies the static initializer, which may be the target
+		final Map<String, String> handleFields = new HashMap<>();
+		final Set<String> staticCalls = new HashSet<>();
+		ctBehavior.instrument(new ExprEditor() {
+			private int currentIndex = 0;
+
+			@Override
+			public void edit(MethodCall methodCall) throws CannotCompileException {
+				if ((className == null || methodCall.getClassName().equals(className)) && methodCall.getMethodName().equals(method) && (index == -1 || currentIndex++ == index)) {
+					try {
+						CtMethod calledMethod = methodCall.getMethod();
+						if (calledMethod.getReturnType() != CtClass.voidType || methodCall.isSuper()) {
+							PatcherLog.warn("Can't run call to " + calledMethod.getLongName() + " in " + ctBehavior.getLongName() + " asynchronously, it returns a value or is a super call.");
+							return;
+						}
+						String call = methodCall.getClassName() + '.' + method + methodCall.getSignature();
+						if (Modifier.isStatic(calledMethod.getModifiers())) {
+							staticCalls.add(call);
+						}
+						handleFields.put(call, asyncCalls + ".handle(java.lang.invoke.MethodHandles.lookup(), \""
+							+ methodCall.getClassName() + "\", \"" + method + "\", \"" + methodCall.getSignature() + "\", " + Modifier.isStatic(calledMethod.getModifiers()) + ')');
+					} catch (NotFoundException e) {
+						throw new CannotCompileException(e);
+					}
+				}
+			}
+		});
+		if (handleFields.isEmpty()) {
+			PatcherLog.warn("0 replacements made running method call " + attributes.get("method") + " asynchronously in " + ctBehavior.getLongName());
+			return;
+		}
+		final String executorField = addStaticField(ctClass, "__asyncExecutor", AsyncExecutor.class.getName(), asyncCalls + ".executor(\""
+			+ (executor == null ? "default" : executor) + "\", " + maxPending + ", \"" + whenFull.name() + "\")");
+		for (Map.Entry<String, String> entry : handleFields.entrySet()) {
+			entry.setValue(addStaticField(ctClass, "__asyncHandle", "java.lang.invoke.MethodHandle", entry.getValue()));
+		}
+
+		ctBehavior.instrument(new ExprEditor() {
+			private int currentIndex = 0;
+
+			@Override
+			public void edit(MethodCall methodCall) throws CannotCompileException {
+				if ((className == null || methodCall.getClassName().equals(className)) && methodCall.getMethodName().equals(method) && (index == -1 || currentIndex++ == index)) {
+					String call = methodCall.getClassName() + '.' + method + methodCall.getSignature();
+					String handleField = handleFields.get(call);
+					if (handleField == null) {
+						return;
+					}
+					String receiver = staticCalls.contains(call) ? "null" : "$0";
+					methodCall.replace("{ " + executorField + (key == null ? ".submit(" + handleField + ", " + receiver + ", $args);"
+						: ".submitOrdered(" + handleField + ", " + receiver + ", $args, ($w) (" + key + "));") + " }");
+					PatcherLog.trace("Made call to " + methodCall.getClassName() + '/' + methodCall.getMethodName() + " in " + ctBehavior.getLongName() + " asynchronous");
+					replaced.value++;
 				}
 			}
-			replacement.setBody("synchronized(" + field + ") { return " + ctMethod.getName() + "($$); }");
-			replacement.setModifiers(replacement.getModifiers() & ~Modifier.SYNCHRONIZED);
-			ctClass.addMethod(replacement);
+		});
+		PatcherEvent.sitesReplaced(replaced.value);
+		if (replaced.value == 0) {
+			PatcherLog.warn("0 replacements made running method call " + attributes.get("method") + " asynchronously in " + ctBehavior.getLongName());
+		}
+	}
+
+	/**
+	 * Replaces calls to a method in the target method with a copy of the called method's code.
+	 * Calls which can't be inlined safely, eg because the called method may be overridden, is recursive,
+	 * or uses members the target class can't access, are left as they are and logged.
+	 *
+	 * @param method    Name of method to inline, optionally prefixed with its class
+	 * @param index     (optional) Index of call to inline. Defaults to all.
+	 * @param fromClass (optional) Template class, references to which in the inlined code are changed to the target class
+	 */
+	@Patch(
+		requiredAttributes = "method"
+	)
+	public void inlineMethodCall(CtBehavior ctBehavior, Map<String, String> attributes) throws NotFoundException, BadBytecode {
+		String method = attributes.get("method");
+		String className = null;
+		int dotIndex = method.lastIndexOf('.');
+		if (dotIndex != -1) {
+			className = method.substring(0, dotIndex);
+			method = method.substring(dotIndex + 1);
+		}
+		String index = attributes.get("index");
+		if (index == null) {
+			index = "-1";
+		}
+		ClassMap classMap = new ClassMap();
+		String fromClass = attributes.get("fromClass");
+		if (fromClass != null) {
+			classMap.put(fromClass, ctBehavior.getDeclaringClass().getName());
+		}
+		int inlined = new MethodInliner(classPool, ctBehavior, classMap).inline(className, method, Integer.valueOf(index));
+		PatcherEvent.sitesReplaced(inlined);
+		if (inlined == 0) {
+			PatcherLog.warn("0 calls to " + attributes.get("method") + " inlined in " + ctBehavior.getLongName());
+		}
+	}
+
+	/**
+	 * Adds a private static final field named prefix + N, initialized before any existing static initializer code
+	 *
+	 * @return Name of the field
+	 */
+	private String addStaticField(CtClass ctClass, String prefix, String type, String initializer) throws CannotCompileException, NotFoundException {
+		String name = prefix;
+		for (int i = 0; ; i++) {
+			try {
+				ctClass.getDeclaredField(prefix + i);
+			} catch (NotFoundException e) {
+				name += i;
+				break;
+			}
 		}
+		CtField ctField = new CtField(classPool.get(type), name, ctClass);
+		ctField.setModifiers(Modifier.PRIVATE | Modifier.STATIC | Modifier.FINAL);
+		ctClass.addField(ctField);
+		ctClass.makeClassInitializer().insertBefore("{ " + name + " = " + initializer + "; }");
+		return name;
+	}
+
+	/**
+	 * Counts invocations of the target method, and times them, recording the results in {@link Profiler}.
+	 *
+	 * Use with methods="^all^" to profile a whole class. Abstract and native methods and static
+	 * initializers are skipped.
+	 *
+	 * @param sample (optional) Only time 1 in every `sample` invocations. Defaults to 1, timing all invocations
+	 */
+	@Patch
+	public void profileMethod(CtBehavior ctBehavior, Map<String, String> attributes) throws CannotCompileException, NotFoundException {
+		CtClass ctClass = ctBehavior.getDeclaringClass();
+		if ((ctBehavior.getModifiers() & (Modifier.ABSTRACT | Modifier.NATIVE)) != 0 || ctClass.isInterface()
+			|| (ctBehavior instanceof CtConstructor && ((CtConstructor) ctBehavior).isClassInitializer())) {
+			PatcherLog.trace("Not profiling " + ctBehavior.getLongName());
+			return;
+		}
+		String sample = attributes.get("sample");
+		int sampleEvery = sample == null ? 1 : Integer.parseInt(sample);
+		if (classPool.find(Profiler.class.getName()) == null) {
+			classPool.appendClassPath(new ClassClassPath(Profiler.class));
+		}
+		String profiler = Profiler.class.getName();
+		String name = ctClass.getName() + '.' + ctBehavior.getName() + ctBehavior.getSignature();
+		String slotField = addStaticField(ctClass, "__profilerSlot", "int", profiler + ".register(\"" + name + "\")");
+		if (ctBehavior instanceof CtMethod) {
+			// An asFinally insertAfter handler would cover the code before the start time is stored
+			wrapMethod((CtMethod) ctBehavior, "_profiled", "{ long start = " + profiler + ".enter(" + slotField + ", " + sampleEvery + "); try { return $original($$); } finally { "
+				+ profiler + ".exit(" + slotField + ", start); } }");
+			return;
+		}
+		// Constructor handlers start after the super() call, so the start time is always stored
+		String startLocal = slotField.replace("Slot", "Start");
+		ctBehavior.addLocalVariable(startLocal, CtClass.longType);
+		ctBehavior.insertBefore("{ " + startLocal + " = " + profiler + ".enter(" + slotField + ", " + sampleEvery + "); }");
+		ctBehavior.insertAfter("{ " + profiler + ".exit(" + slotField + ", " + startLocal + "); }", true);
 	}
 
 	/**
@@ -1166,7 +2198,18 @@ public class Patches {
 			exceptionType = "java.lang.Throwable";
 		}
 		PatcherLog.trace("Ignoring " + exceptionType + " in " + ctMethod + ", returning with " + returnCode);
-		ctMethod.addCatch("{ " + returnCode + '}', classPool.get(exceptionType));
+		compiledCodeCache.addCatch(ctMethod, "{ " + returnCode + '}', classPool.get(exceptionType));
+	}
+
+	/**
+	 * Removes NOPs and unreachable code from the target method
+	 */
+	@Patch
+	public void compactCode(CtBehavior ctBehavior) throws BadBytecode {
+		CtClass ctClass = ctBehavior.getDeclaringClass();
+		if (!CodeCompactor.compact(ctBehavior.getMethodInfo(), ctClass.getClassPool(), ctClass.getClassFile2())) {
+			PatcherLog.trace("Nothing to compact in " + ctBehavior.getLongName());
+		}
 	}
 
 	/**
@@ -1223,10 +2266,18 @@ public class Patches {
 				}
 			}
 		}
-		methodInfo.rebuildStackMapIf6(ctClass.getClassPool(), ctClass.getClassFile2());
+		CodeCompactor.compact(methodInfo, ctClass.getClassPool(), ctClass.getClassFile2());
+		PatcherEvent.sitesReplaced(done);
 		PatcherLog.trace("Replaced " + done + " lock/unlock calls.");
 	}
 
+	/**
+	 * @return Cache of compiled code snippets used by this patches instance
+	 */
+	public CompiledCodeCache getCompiledCodeCache() {
+		return compiledCodeCache;
+	}
+
 	private static class ExceptionsArentForControlFlow extends RuntimeException {
 		private static final long serialVersionUID = 1;
 	}
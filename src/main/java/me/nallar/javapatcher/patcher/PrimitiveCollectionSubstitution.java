@@ -0,0 +1,428 @@
+package me.nallar.javapatcher.patcher;
+
+import javassist.*;
+import javassist.bytecode.*;
+import javassist.bytecode.analysis.Analyzer;
+import javassist.bytecode.analysis.Frame;
+import me.nallar.javapatcher.PatcherLog;
+import me.nallar.javapatcher.collections.IntObjectHashMap;
+
+import java.util.*;
+
+/**
+ * Replaces a HashMap, HashSet or ArrayList field with Integer or Long keys or elements with the matching
+ * primitive collection from me.nallar.javapatcher.collections, and rewrites call sites which box
+ * their key to the unboxed methods.
+ *
+ * The field must be private, and every read of it must be directly used as the receiver of a method
+ * call or null check. Every write must store a new instance of the original collection, or null.
+ * Otherwise the field escapes and is left unchanged.
+ */
+class PrimitiveCollectionSubstitution {
+	private static final String COLLECTIONS_PACKAGE = "me.nallar.javapatcher.collections.";
+	/**
+	 * Number of stack slots popped by each opcode, 'v' where it depends on the operand
+	 */
+	private static final String POPS =
+		"000000000000000000000000000000000000000000000022222222121211111222211112222111134343333121232342" +
+			"24242424242424242424121223232324242401112221112221114224411111122222222000111212100v1vvvvvv011111111vv1100";
+	private static final Map<String, String> UNBOXED_NAMES = new HashMap<>();
+
+	static {
+		// kind + name + boxed descriptor -> unboxed name, P is replaced with the primitive descriptor
+		UNBOXED_NAMES.put("Mapget(Ljava/lang/Object;)Ljava/lang/Object;", "get(P)Ljava/lang/Object;");
+		UNBOXED_NAMES.put("MapcontainsKey(Ljava/lang/Object;)Z", "containsKey(P)Z");
+		UNBOXED_NAMES.put("Mapremove(Ljava/lang/Object;)Ljava/lang/Object;", "remove(P)Ljava/lang/Object;");
+		UNBOXED_NAMES.put("Mapput(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", "put(PLjava/lang/Object;)Ljava/lang/Object;");
+		UNBOXED_NAMES.put("Setadd(Ljava/lang/Object;)Z", "add(P)Z");
+		UNBOXED_NAMES.put("Setcontains(Ljava/lang/Object;)Z", "contains(P)Z");
+		UNBOXED_NAMES.put("Setremove(Ljava/lang/Object;)Z", "remove(P)Z");
+		UNBOXED_NAMES.put("Listadd(Ljava/lang/Object;)Z", "addN(P)Z");
+		UNBOXED_NAMES.put("Listcontains(Ljava/lang/Object;)Z", "containsN(P)Z");
+		UNBOXED_NAMES.put("ListindexOf(Ljava/lang/Object;)I", "indexOfN(P)I");
+		UNBOXED_NAMES.put("Listremove(Ljava/lang/Object;)Z", "removeN(P)Z");
+	}
+
+	private final CtClass ctClass;
+	private final String field;
+	private final String kind;
+	private final String original;
+	private final String target;
+	private final String boxed;
+	private final String primitive;
+	private final CtClass interfaceClass;
+	private final Map<CtBehavior, Map<Integer, byte[]>> edits = new HashMap<>();
+	private final List<String> problems = new ArrayList<>();
+	private int unboxed;
+
+	private PrimitiveCollectionSubstitution(CtClass ctClass, String field, String kind, String boxed, CtClass interfaceClass) {
+		this.ctClass = ctClass;
+		this.field = field;
+		this.kind = kind;
+		this.original = "java.util." + ("List".equals(kind) ? "Array" : "Hash") + kind;
+		this.boxed = boxed;
+		boolean isInt = "java.lang.Integer".equals(boxed);
+		this.primitive = isInt ? "I" : "J";
+		this.target = COLLECTIONS_PACKAGE + (isInt ? "Int" : "Long") + ("Map".equals(kind) ? "ObjectHashMap" : "List".equals(kind) ? "ArrayList" : "HashSet");
+		this.interfaceClass = interfaceClass;
+	}
+
+	/**
+	 * @return Whether the field was replaced
+	 */
+	static boolean apply(CtClass ctClass, String field, ClassPool classPool) throws NotFoundException, BadBytecode, CannotCompileException {
+		CtField ctField = ctClass.getDeclaredField(field);
+		String where = ctClass.getName() + '.' + field;
+		if (!Modifier.isPrivate(ctField.getModifiers())) {
+			PatcherLog.warn("Not replacing " + where + " with a primitive collection, it is not private so may escape.");
+			return false;
+		}
+		String type = ctField.getType().getName();
+		String kind = null;
+		for (String candidate : new String[]{"Map", "Set", "List"}) {
+			if (type.equals("java.util." + candidate) || type.equals("java.util." + ("List".equals(candidate) ? "Array" : "Hash") + candidate)) {
+				kind = candidate;
+			}
+		}
+		String boxed = keyType(ctField);
+		if (kind == null || !("java.lang.Integer".equals(boxed) || "java.lang.Long".equals(boxed))) {
+			PatcherLog.warn("Not replacing " + where + " with a primitive collection, its type " + type + " with key " + boxed + " has no primitive equivalent.");
+			return false;
+		}
+		if (classPool.find(IntObjectHashMap.class.getName()) == null) {
+			classPool.appendClassPath(new ClassClassPath(IntObjectHashMap.class));
+		}
+		PrimitiveCollectionSubstitution substitution = new PrimitiveCollectionSubstitution(ctClass, field, kind, boxed, classPool.get("java.util." + kind));
+		substitution.analyse();
+		if (!substitution.problems.isEmpty()) {
+			PatcherLog.warn("Not replacing " + where + " with a primitive collection:\n" + substitution.problems);
+			return false;
+		}
+		substitution.rewrite(ctField, classPool);
+		PatcherLog.trace("Replaced " + where + " with a " + substitution.target + ", unboxed " + substitution.unboxed + " calls.");
+		return true;
+	}
+
+	private static String keyType(CtField ctField) {
+		String genericSignature = ctField.getGenericSignature();
+		if (genericSignature == null) {
+			return null;
+		}
+		try {
+			SignatureAttribute.ObjectType objectType = SignatureAttribute.toFieldSignature(genericSignature);
+			if (!(objectType instanceof SignatureAttribute.ClassType)) {
+				return null;
+			}
+			SignatureAttribute.TypeArgument[] typeArguments = ((SignatureAttribute.ClassType) objectType).getTypeArguments();
+			if (typeArguments == null || typeArguments.length == 0 || typeArguments[0].getKind() != ' ') {
+				return null;
+			}
+			SignatureAttribute.ObjectType keyType = typeArguments[0].getType();
+			return keyType instanceof SignatureAttribute.ClassType ? ((SignatureAttribute.ClassType) keyType).getName() : null;
+		} catch (BadBytecode e) {
+			return null;
+		}
+	}
+
+	private static int pops(CodeIterator iterator, int pos, ConstPool constPool) {
+		int op = iterator.byteAt(pos);
+		int pops = POPS.charAt(op);
+		if (pops != 'v') {
+			return pops - '0';
+		}
+		switch (op) {
+			case Opcode.PUTSTATIC:
+				return Descriptor.dataSize(constPool.getFieldrefType(iterator.u16bitAt(pos + 1)));
+			case Opcode.PUTFIELD:
+				return 1 + Descriptor.dataSize(constPool.getFieldrefType(iterator.u16bitAt(pos + 1)));
+			case Opcode.INVOKEVIRTUAL:
+			case Opcode.INVOKESPECIAL:
+				return 1 + Descriptor.paramSize(constPool.getMethodrefType(iterator.u16bitAt(pos + 1)));
+			case Opcode.INVOKESTATIC:
+				return Descriptor.paramSize(constPool.getMethodrefType(iterator.u16bitAt(pos + 1)));
+			case Opcode.INVOKEINTERFACE:
+				return 1 + Descriptor.paramSize(constPool.getInterfaceMethodrefType(iterator.u16bitAt(pos + 1)));
+			case Opcode.INVOKEDYNAMIC:
+				return Descriptor.paramSize(constPool.getUtf8Info(constPool.getNameAndTypeDescriptor(constPool.getInvokeDynamicNameAndType(iterator.u16bitAt(pos + 1)))));
+			case Opcode.MULTIANEWARRAY:
+				return iterator.byteAt(pos + 3);
+			case Opcode.WIDE:
+				int wideOp = iterator.byteAt(pos + 1);
+				return wideOp == Opcode.LSTORE || wideOp == Opcode.DSTORE ? 2 : wideOp >= Opcode.ISTORE && wideOp <= Opcode.ASTORE ? 1 : 0;
+			default:
+				throw new IllegalStateException("Unknown opcode " + op);
+		}
+	}
+
+	private static boolean isBranch(int op) {
+		return (op >= Opcode.IFEQ && op <= Opcode.LOOKUPSWITCH) || (op >= Opcode.IFNULL && op <= Opcode.JSR_W);
+	}
+
+	private boolean isField(ConstPool constPool, int index) {
+		return constPool.getFieldrefClassName(index).equals(ctClass.getName()) && constPool.getFieldrefName(index).equals(field);
+	}
+
+	private void analyse() throws BadBytecode, NotFoundException {
+		List<CtBehavior> behaviors = new ArrayList<>();
+		Collections.addAll(behaviors, ctClass.getDeclaredBehaviors());
+		CtConstructor classInitializer = ctClass.getClassInitializer();
+		if (classInitializer != null) {
+			behaviors.add(classInitializer);
+		}
+		for (CtBehavior ctBehavior : behaviors) {
+			CodeAttribute codeAttribute = ctBehavior.getMethodInfo2().getCodeAttribute();
+			if (codeAttribute != null) {
+				analyse(ctBehavior, codeAttribute);
+			}
+		}
+	}
+
+	private void analyse(CtBehavior ctBehavior, CodeAttribute codeAttribute) throws BadBytecode, NotFoundException {
+		ConstPool constPool = codeAttribute.getConstPool();
+		CodeIterator iterator = codeAttribute.iterator();
+		List<Integer> positions = new ArrayList<>();
+		boolean usesField = false;
+		while (iterator.hasNext()) {
+			int pos = iterator.next();
+			positions.add(pos);
+			int op = iterator.byteAt(pos);
+			usesField |= (op == Opcode.GETFIELD || op == Opcode.GETSTATIC || op == Opcode.PUTFIELD || op == Opcode.PUTSTATIC) && isField(constPool, iterator.u16bitAt(pos + 1));
+		}
+		if (!usesField) {
+			return;
+		}
+		Frame[] frames = new Analyzer().analyze(ctClass, ctBehavior.getMethodInfo2());
+		Map<Integer, byte[]> behaviorEdits = new TreeMap<>();
+		edits.put(ctBehavior, behaviorEdits);
+		Set<Integer> stores = new HashSet<>();
+		Set<Integer> expectedStores = new HashSet<>();
+		String where = ctBehavior.getLongName();
+		for (int i = 0; i < positions.size(); i++) {
+			int pos = positions.get(i);
+			if (frames[pos] == null) {
+				continue;
+			}
+			int op = iterator.byteAt(pos);
+			switch (op) {
+				case Opcode.GETFIELD:
+				case Opcode.GETSTATIC:
+					if (isField(constPool, iterator.u16bitAt(pos + 1))) {
+						analyseRead(iterator, constPool, frames, positions, i, behaviorEdits, where);
+					}
+					break;
+				case Opcode.PUTFIELD:
+				case Opcode.PUTSTATIC:
+					if (isField(constPool, iterator.u16bitAt(pos + 1))) {
+						stores.add(pos);
+						if (i > 0 && iterator.byteAt(positions.get(i - 1)) == Opcode.ACONST_NULL) {
+							expectedStores.add(pos);
+						}
+					}
+					break;
+				case Opcode.NEW:
+					if (constPool.getClassInfo(iterator.u16bitAt(pos + 1)).equals(original)) {
+						Integer store = analyseNew(iterator, constPool, frames, positions, i, behaviorEdits);
+						if (store != null) {
+							expectedStores.add(store);
+						}
+					}
+					break;
+			}
+		}
+		stores.removeAll(expectedStores);
+		if (!stores.isEmpty()) {
+			problems.add(where + " stores a value other than a new " + original + " or null at " + stores);
+		}
+	}
+
+	/**
+	 * @return Index in positions of the first instruction at or after start which pops stack slot
+	 */
+	private static int findConsumer(CodeIterator iterator, ConstPool constPool, Frame[] frames, List<Integer> positions, int start, int slot) {
+		for (int i = start; i < positions.size(); i++) {
+			int pos = positions.get(i);
+			if (frames[pos] != null && frames[pos].getTopIndex() - pops(iterator, pos, constPool) + 1 <= slot) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void analyseRead(CodeIterator iterator, ConstPool constPool, Frame[] frames, List<Integer> positions, int i, Map<Integer, byte[]> behaviorEdits, String where) throws NotFoundException {
+		int pos = positions.get(i);
+		int slot = frames[pos].getTopIndex() - pops(iterator, pos, constPool) + 1;
+		int consumer = findConsumer(iterator, constPool, frames, positions, i + 1, slot);
+		if (consumer == -1) {
+			problems.add(where + " reads the field at " + pos + " without using it");
+			return;
+		}
+		int consumerPos = positions.get(consumer);
+		int op = iterator.byteAt(consumerPos);
+		if (op == Opcode.IFNULL || op == Opcode.IFNONNULL) {
+			return;
+		}
+		boolean isInterface = op == Opcode.INVOKEINTERFACE;
+		if ((op != Opcode.INVOKEVIRTUAL && !isInterface) || frames[consumerPos].getTopIndex() - pops(iterator, consumerPos, constPool) + 1 != slot) {
+			problems.add(where + " passes the field to " + Mnemonic.OPCODE[op] + " at " + consumerPos);
+			return;
+		}
+		int index = iterator.u16bitAt(consumerPos + 1);
+		String owner = isInterface ? constPool.getInterfaceMethodrefClassName(index) : constPool.getMethodrefClassName(index);
+		String name = isInterface ? constPool.getInterfaceMethodrefName(index) : constPool.getMethodrefName(index);
+		String descriptor = isInterface ? constPool.getInterfaceMethodrefType(index) : constPool.getMethodrefType(index);
+		if (!isAvailable(owner, name, descriptor)) {
+			problems.add(where + " calls " + owner + '.' + name + descriptor + " at " + consumerPos + ", which " + target + " doesn't have");
+			return;
+		}
+		String unboxedName = UNBOXED_NAMES.get(kind + name + descriptor);
+		int producer = unboxedName == null ? -1 : findKeyProducer(iterator, constPool, frames, positions, i + 1, consumer, slot + 1);
+		byte[] call;
+		if (producer != -1) {
+			behaviorEdits.put(producer, new byte[]{Opcode.NOP, Opcode.NOP, Opcode.NOP});
+			String unboxedDescriptor = unboxedName.substring(unboxedName.indexOf('(')).replace("P", primitive);
+			unboxedName = unboxedName.substring(0, unboxedName.indexOf('(')).replace("N", "J".equals(primitive) ? "Long" : "Int");
+			call = invoke(constPool.addMethodrefInfo(constPool.addClassInfo(target), unboxedName, unboxedDescriptor));
+			unboxed++;
+		} else if ("List".equals(kind) && "get".equals(name) && "(I)Ljava/lang/Object;".equals(descriptor) && isUnboxedResult(iterator, constPool, positions, consumer)) {
+			String suffix = "J".equals(primitive) ? "Long" : "Int";
+			call = invoke(constPool.addMethodrefInfo(constPool.addClassInfo(target), "get" + suffix, "(I)" + primitive));
+			behaviorEdits.put(positions.get(consumer + 1), new byte[]{Opcode.NOP, Opcode.NOP, Opcode.NOP});
+			behaviorEdits.put(positions.get(consumer + 2), new byte[]{Opcode.NOP, Opcode.NOP, Opcode.NOP});
+			unboxed++;
+		} else if (isInterface || owner.equals("java.lang.Object")) {
+			return;
+		} else {
+			call = invoke(constPool.addMethodrefInfo(constPool.addClassInfo(target), name, descriptor));
+		}
+		if (isInterface) {
+			call = Arrays.copyOf(call, 5);
+		}
+		behaviorEdits.put(consumerPos, call);
+	}
+
+	private static byte[] invoke(int index) {
+		return new byte[]{(byte) Opcode.INVOKEVIRTUAL, (byte) (index >> 8), (byte) index};
+	}
+
+	private boolean isAvailable(String owner, String name, String descriptor) throws NotFoundException {
+		if (owner.equals("java.lang.Object")) {
+			return true;
+		}
+		if (!owner.equals(original) && !interfaceClass.subtypeOf(interfaceClass.getClassPool().get(owner))) {
+			return false;
+		}
+		try {
+			CtMethod ctMethod = interfaceClass.getMethod(name, descriptor);
+			return Modifier.isPublic(ctMethod.getModifiers()) || !ctMethod.getDeclaringClass().getName().equals("java.lang.Object");
+		} catch (NotFoundException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return Position of the Integer.valueOf or Long.valueOf call which produces the key in slot,
+	 * or -1 if the key isn't boxed directly before the call
+	 */
+	private int findKeyProducer(CodeIterator iterator, ConstPool constPool, Frame[] frames, List<Integer> positions, int start, int end, int slot) {
+		int producer = -1;
+		for (int i = start; i < end; i++) {
+			int pos = positions.get(i);
+			if (isBranch(iterator.byteAt(pos)) || frames[pos] == null) {
+				return -1;
+			}
+			int next = positions.get(i + 1);
+			if (frames[pos].getTopIndex() - pops(iterator, pos, constPool) + 1 <= slot && frames[next] != null && frames[next].getTopIndex() >= slot) {
+				producer = pos;
+			}
+		}
+		if (producer == -1 || iterator.byteAt(producer) != Opcode.INVOKESTATIC) {
+			return -1;
+		}
+		int index = iterator.u16bitAt(producer + 1);
+		boolean isValueOf = constPool.getMethodrefClassName(index).equals(boxed) && constPool.getMethodrefName(index).equals("valueOf")
+			&& constPool.getMethodrefType(index).equals('(' + primitive + ")L" + boxed.replace('.', '/') + ';');
+		return isValueOf ? producer : -1;
+	}
+
+	private boolean isUnboxedResult(CodeIterator iterator, ConstPool constPool, List<Integer> positions, int consumer) {
+		if (consumer + 2 >= positions.size()) {
+			return false;
+		}
+		int cast = positions.get(consumer + 1);
+		int unbox = positions.get(consumer + 2);
+		if (iterator.byteAt(cast) != Opcode.CHECKCAST || !constPool.getClassInfo(iterator.u16bitAt(cast + 1)).equals(boxed) || iterator.byteAt(unbox) != Opcode.INVOKEVIRTUAL) {
+			return false;
+		}
+		int index = iterator.u16bitAt(unbox + 1);
+		return constPool.getMethodrefClassName(index).equals(boxed) && constPool.getMethodrefName(index).equals(("I".equals(primitive) ? "int" : "long") + "Value");
+	}
+
+	/**
+	 * Matches new original; dup; (I)?; invokespecial original.<init>; putfield field
+	 *
+	 * @return Position of the putfield, or null if the new instance isn't stored in the field
+	 */
+	private Integer analyseNew(CodeIterator iterator, ConstPool constPool, Frame[] frames, List<Integer> positions, int i, Map<Integer, byte[]> behaviorEdits) {
+		if (i + 1 >= positions.size() || iterator.byteAt(positions.get(i + 1)) != Opcode.DUP) {
+			return null;
+		}
+		int slot = frames[positions.get(i)].getTopIndex() + 1;
+		int constructor = findConsumer(iterator, constPool, frames, positions, i + 2, slot + 1);
+		if (constructor == -1) {
+			return null;
+		}
+		int constructorPos = positions.get(constructor);
+		if (iterator.byteAt(constructorPos) != Opcode.INVOKESPECIAL) {
+			return null;
+		}
+		int constructorIndex = iterator.u16bitAt(constructorPos + 1);
+		String constructorDescriptor = constPool.getMethodrefType(constructorIndex);
+		if (!constPool.getMethodrefName(constructorIndex).equals(MethodInfo.nameInit) || !(constructorDescriptor.equals("()V") || constructorDescriptor.equals("(I)V"))) {
+			return null;
+		}
+		int store = findConsumer(iterator, constPool, frames, positions, constructor + 1, slot);
+		if (store == -1) {
+			return null;
+		}
+		int storePos = positions.get(store);
+		int storeOp = iterator.byteAt(storePos);
+		if ((storeOp != Opcode.PUTFIELD && storeOp != Opcode.PUTSTATIC) || !isField(constPool, iterator.u16bitAt(storePos + 1)) || frames[storePos].getTopIndex() != slot) {
+			return null;
+		}
+		int classIndex = constPool.addClassInfo(target);
+		behaviorEdits.put(positions.get(i), new byte[]{(byte) Opcode.NEW, (byte) (classIndex >> 8), (byte) classIndex});
+		int methodIndex = constPool.addMethodrefInfo(classIndex, MethodInfo.nameInit, constructorDescriptor);
+		behaviorEdits.put(constructorPos, new byte[]{(byte) Opcode.INVOKESPECIAL, (byte) (methodIndex >> 8), (byte) methodIndex});
+		return storePos;
+	}
+
+	private void rewrite(CtField ctField, ClassPool classPool) throws NotFoundException, BadBytecode {
+		ctField.setType(classPool.get(target));
+		List<AttributeInfo> attributes = ctField.getFieldInfo().getAttributes();
+		for (Iterator<AttributeInfo> iterator = attributes.iterator(); iterator.hasNext(); ) {
+			if (iterator.next().getName().equals(SignatureAttribute.tag)) {
+				iterator.remove();
+			}
+		}
+		for (Map.Entry<CtBehavior, Map<Integer, byte[]>> entry : edits.entrySet()) {
+			CtBehavior ctBehavior = entry.getKey();
+			MethodInfo methodInfo = ctBehavior.getMethodInfo();
+			CodeAttribute codeAttribute = methodInfo.getCodeAttribute();
+			ConstPool constPool = codeAttribute.getConstPool();
+			int fieldIndex = constPool.addFieldrefInfo(constPool.addClassInfo(ctClass.getName()), field, Descriptor.of(target));
+			CodeIterator iterator = codeAttribute.iterator();
+			while (iterator.hasNext()) {
+				int pos = iterator.next();
+				int op = iterator.byteAt(pos);
+				if ((op == Opcode.GETFIELD || op == Opcode.GETSTATIC || op == Opcode.PUTFIELD || op == Opcode.PUTSTATIC) && isField(constPool, iterator.u16bitAt(pos + 1))) {
+					iterator.write16bit(fieldIndex, pos + 1);
+				}
+			}
+			for (Map.Entry<Integer, byte[]> edit : entry.getValue().entrySet()) {
+				iterator.write(edit.getValue(), edit.getKey());
+			}
+			codeAttribute.computeMaxStack();
+			methodInfo.rebuildStackMapIf6(classPool, ctClass.getClassFile2());
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package me.nallar.javapatcher.patcher;
+
+import java.lang.annotation.*;
+
+/**
+ * Marks a field or method in a mixin class as referring to an existing member of the target class.
+ * Shadow members are not copied into the target by the mixin patch.
+ *
+ * Abstract methods in a mixin class are always treated as shadows.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target({ElementType.FIELD, ElementType.METHOD})
+public @interface Shadow {
+}
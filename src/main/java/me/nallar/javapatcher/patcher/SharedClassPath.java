@@ -0,0 +1,96 @@
+package me.nallar.javapatcher.patcher;
+
+import com.google.common.io.ByteStreams;
+import javassist.ClassPath;
+import javassist.ClassPool;
+import javassist.NotFoundException;
+
+import java.io.*;
+import java.net.URL;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-only ClassPath which serves class bytes from another ClassPool, caching them so that
+ * many worker ClassPools can read classes concurrently.
+ *
+ * The source ClassPool is only accessed while holding its lock. Class bytes are cached until 16MB
+ * are cached, classes which aren't found aren't cached, so they are found if they are added to the
+ * source's class path later.
+ */
+class SharedClassPath implements ClassPath {
+	private static final long MAX_CACHED_BYTES = 16 * 1024 * 1024;
+	private final ClassPool source;
+	private final ConcurrentMap<String, byte[]> classBytes = new ConcurrentHashMap<>();
+	private final AtomicLong cachedBytes = new AtomicLong();
+
+	SharedClassPath(ClassPool source) {
+		this.source = source;
+	}
+
+	/**
+	 * @return Bytes of the class, or null if the source can't find it
+	 */
+	private byte[] getBytes(String className) throws NotFoundException {
+		byte[] bytes = classBytes.get(className);
+		if (bytes != null) {
+			return bytes;
+		}
+		synchronized (source) {
+			try (InputStream inputStream = source.openClassfile(className)) {
+				if (inputStream == null) {
+					return null;
+				}
+				bytes = ByteStreams.toByteArray(inputStream);
+			} catch (IOException e) {
+				throw new NotFoundException("Failed to read " + className, e);
+			}
+		}
+		if (cachedBytes.get() + bytes.length > MAX_CACHED_BYTES) {
+			return bytes;
+		}
+		byte[] existing = classBytes.putIfAbsent(className, bytes);
+		if (existing != null) {
+			return existing;
+		}
+		cachedBytes.addAndGet(bytes.length);
+		return bytes;
+	}
+
+	/**
+	 * Replaces the cached bytes of a class, for classes which are repatched
+	 *
+	 * @param bytes New bytes, or null to read them from the source ClassPool again
+	 */
+	void update(String className, byte[] bytes) {
+		// Always cached, the source may still have the old bytes
+		byte[] old = bytes == null ? classBytes.remove(className) : classBytes.put(className, bytes);
+		cachedBytes.addAndGet((bytes == null ? 0 : bytes.length) - (old == null ? 0 : old.length));
+	}
+
+	@Override
+	public InputStream openClassfile(String className) throws NotFoundException {
+		byte[] bytes = getBytes(className);
+		return bytes == null ? null : new ByteArrayInputStream(bytes);
+	}
+
+	@Override
+	public URL find(String className) {
+		try {
+			if (getBytes(className) == null) {
+				return null;
+			}
+		} catch (NotFoundException e) {
+			return null;
+		}
+		synchronized (source) {
+			return source.find(className);
+		}
+	}
+
+	@Override
+	public void close() {
+		classBytes.clear();
+		cachedBytes.set(0);
+	}
+}
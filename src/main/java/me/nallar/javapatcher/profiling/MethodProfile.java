@@ -0,0 +1,83 @@
+package me.nallar.javapatcher.profiling;
+
+import java.util.*;
+
+/**
+ * Snapshot of the timings of one profiled method
+ */
+public class MethodProfile {
+	private final String name;
+	private final long invocations;
+	private final long samples;
+	private final long totalNanos;
+	private final long[] histogram;
+
+	MethodProfile(String name, long invocations, long samples, long totalNanos, long[] histogram) {
+		this.name = name;
+		this.invocations = invocations;
+		this.samples = samples;
+		this.totalNanos = totalNanos;
+		this.histogram = histogram;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getInvocations() {
+		return invocations;
+	}
+
+	/**
+	 * @return Number of timed invocations
+	 */
+	public long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return Total time of timed invocations
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	/**
+	 * @return Total time of all invocations, extrapolated from the timed invocations
+	 */
+	public long getEstimatedTotalNanos() {
+		return samples == 0 ? 0 : (long) (totalNanos * ((double) invocations / samples));
+	}
+
+	public long getMeanNanos() {
+		return samples == 0 ? 0 : totalNanos / samples;
+	}
+
+	/**
+	 * @return Copy of the histogram, see {@link Profiler#BUCKETS}
+	 */
+	public long[] getHistogram() {
+		return histogram.clone();
+	}
+
+	/**
+	 * @param percentile Percentile, between 0 and 100
+	 * @return Upper bound of the histogram bucket containing the percentile, in nanoseconds
+	 */
+	public long getPercentileNanos(double percentile) {
+		long target = (long) Math.ceil(samples * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			seen += histogram[i];
+			if (seen >= target && seen != 0) {
+				return i == histogram.length - 1 ? Long.MAX_VALUE : 1L << i;
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		return name + ": " + invocations + " calls, " + samples + " timed, mean " + getMeanNanos() + "ns, p50 <" + getPercentileNanos(50) + "ns, p99 <" + getPercentileNanos(99) + "ns, total ~" + getEstimatedTotalNanos() / 1000000 + "ms";
+	}
+}
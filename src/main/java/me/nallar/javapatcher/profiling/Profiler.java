@@ -0,0 +1,150 @@
+package me.nallar.javapatcher.profiling;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of method timings, recorded by code added by the profileMethod patch.
+ *
+ * Each registered method gets a preallocated slot, holding an invocation count, a sampled invocation count,
+ * total sampled time and a log2 histogram of sampled times. Slots are striped by thread so that threads
+ * rarely update the same memory, and recording doesn't allocate.
+ *
+ * The number of slots is fixed on first registration, set by the javapatcher.profiler.slots system property
+ * (default 1024). Methods registered once all slots are used are not profiled.
+ */
+public enum Profiler {
+	;
+	/**
+	 * Number of histogram buckets. Bucket i counts times in [2^(i-1), 2^i) nanoseconds, the last bucket
+	 * counts all longer times.
+	 */
+	public static final int BUCKETS = 32;
+	private static final int INVOCATIONS = 0;
+	private static final int SAMPLES = 1;
+	private static final int TOTAL_NANOS = 2;
+	private static final int HISTOGRAM = 3;
+	// Padded to a multiple of 8 longs, so that each slot starts on its own cache line
+	private static final int STRIDE = (HISTOGRAM + BUCKETS + 7) & ~7;
+	private static final List<String> names = new ArrayList<>();
+	private static volatile AtomicLongArray data;
+	private static int slots;
+	private static int stripes;
+
+	/**
+	 * @param name Name of the method
+	 * @return Slot id to pass to {@link #enter(int, int)} and {@link #exit(int, long)}, or -1 if no slots are left
+	 */
+	public static synchronized int register(String name) {
+		if (data == null) {
+			slots = Integer.getInteger("javapatcher.profiler.slots", 1024);
+			stripes = Math.min(16, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1);
+			data = new AtomicLongArray(slots * stripes * STRIDE);
+		}
+		if (names.size() == slots) {
+			return -1;
+		}
+		names.add(name);
+		return names.size() - 1;
+	}
+
+	private static int offset(int id) {
+		return ((((int) Thread.currentThread().getId()) & (stripes - 1)) * slots + id) * STRIDE;
+	}
+
+	/**
+	 * Counts an invocation
+	 *
+	 * @param id          Slot id
+	 * @param sampleEvery Time 1 in every sampleEvery invocations
+	 * @return Start time to pass to exit, or 0 if this invocation isn't timed
+	 */
+	public static long enter(int id, int sampleEvery) {
+		if (id < 0) {
+			return 0;
+		}
+		long invocation = data.getAndIncrement(offset(id) + INVOCATIONS);
+		if (sampleEvery > 1 && invocation % sampleEvery != 0) {
+			return 0;
+		}
+		long start = System.nanoTime();
+		return start == 0 ? 1 : start;
+	}
+
+	/**
+	 * Records the time taken by a timed invocation
+	 *
+	 * @param id    Slot id
+	 * @param start Value returned by enter
+	 */
+	public static void exit(int id, long start) {
+		if (start == 0 || id < 0) {
+			return;
+		}
+		long nanos = Math.max(0, System.nanoTime() - start);
+		// Read data first, so slots and stripes are visible
+		AtomicLongArray data = Profiler.data;
+		int offset = offset(id);
+		data.getAndIncrement(offset + SAMPLES);
+		data.getAndAdd(offset + TOTAL_NANOS, nanos);
+		data.getAndIncrement(offset + HISTOGRAM + Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos)));
+	}
+
+	/**
+	 * @return Profiles of all registered methods which have been invoked, most total time first
+	 */
+	public static List<MethodProfile> snapshot() {
+		List<String> names;
+		AtomicLongArray data;
+		int slots;
+		int stripes;
+		synchronized (Profiler.class) {
+			names = new ArrayList<>(Profiler.names);
+			data = Profiler.data;
+			slots = Profiler.slots;
+			stripes = Profiler.stripes;
+		}
+		List<MethodProfile> profiles = new ArrayList<>();
+		for (int id = 0; id < names.size(); id++) {
+			long[] totals = new long[HISTOGRAM + BUCKETS];
+			for (int stripe = 0; stripe < stripes; stripe++) {
+				int offset = (stripe * slots + id) * STRIDE;
+				for (int i = 0; i < totals.length; i++) {
+					totals[i] += data.get(offset + i);
+				}
+			}
+			if (totals[INVOCATIONS] != 0) {
+				profiles.add(new MethodProfile(names.get(id), totals[INVOCATIONS], totals[SAMPLES], totals[TOTAL_NANOS], Arrays.copyOfRange(totals, HISTOGRAM, totals.length)));
+			}
+		}
+		Collections.sort(profiles, new Comparator<MethodProfile>() {
+			@Override
+			public int compare(MethodProfile a, MethodProfile b) {
+				return Long.compare(b.getEstimatedTotalNanos(), a.getEstimatedTotalNanos());
+			}
+		});
+		return profiles;
+	}
+
+	/**
+	 * Clears all recorded counts and times. Registered methods keep their slots.
+	 */
+	public static synchronized void reset() {
+		if (data != null) {
+			for (int i = 0, length = data.length(); i < length; i++) {
+				data.set(i, 0);
+			}
+		}
+	}
+
+	/**
+	 * @return Report of all method profiles, one per line
+	 */
+	public static String dump() {
+		StringBuilder sb = new StringBuilder();
+		for (MethodProfile profile : snapshot()) {
+			sb.append(profile).append('\n');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,141 @@
+package me.nallar.javapatcher.processor;
+
+import javax.annotation.processing.*;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Generates a PatchRegistry for each class declaring @Patch methods, so that Patcher can find and call
+ * patch methods without reflection.
+ */
+@SupportedAnnotationTypes(PatchRegistryProcessor.PATCH)
+public class PatchRegistryProcessor extends AbstractProcessor {
+	static final String PATCH = "me.nallar.javapatcher.patcher.Patch";
+	private static final String REGISTRY = "me.nallar.javapatcher.patcher.PatchRegistry";
+	private static final String SUFFIX = "_PatchRegistry";
+
+	private static String literal(String value) {
+		return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		Map<TypeElement, List<ExecutableElement>> patchMethods = new LinkedHashMap<>();
+		for (TypeElement annotation : annotations) {
+			for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+				if (element.getKind() != ElementKind.METHOD) {
+					continue;
+				}
+				TypeElement patchesClass = (TypeElement) element.getEnclosingElement();
+				List<ExecutableElement> methods = patchMethods.get(patchesClass);
+				if (methods == null) {
+					methods = new ArrayList<>();
+					patchMethods.put(patchesClass, methods);
+				}
+				methods.add((ExecutableElement) element);
+			}
+		}
+		for (Map.Entry<TypeElement, List<ExecutableElement>> entry : patchMethods.entrySet()) {
+			try {
+				generate(entry.getKey(), entry.getValue());
+			} catch (IOException e) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to write patch registry: " + e, entry.getKey());
+			}
+		}
+		return true;
+	}
+
+	private void generate(TypeElement patchesClass, List<ExecutableElement> methods) throws IOException {
+		String packageName = processingEnv.getElementUtils().getPackageOf(patchesClass).getQualifiedName().toString();
+		String binaryName = processingEnv.getElementUtils().getBinaryName(patchesClass).toString();
+		String registryName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1)) + SUFFIX;
+		String patchesType = patchesClass.getQualifiedName().toString();
+		Types types = processingEnv.getTypeUtils();
+
+		StringBuilder sb = new StringBuilder();
+		if (!packageName.isEmpty()) {
+			sb.append("package ").append(packageName).append(";\n\n");
+		}
+		sb.append("/**\n * Generated by ").append(getClass().getName()).append(" from ").append(patchesType).append("\n */\n");
+		sb.append("public final class ").append(registryName).append(" implements ").append(REGISTRY).append(" {\n");
+		sb.append("\t@Override\n\tpublic Object newInstance(javassist.ClassPool classPool, me.nallar.javapatcher.mappings.Mappings mappings) {\n");
+		sb.append("\t\treturn ").append(hasPatcherConstructor(patchesClass) ? "new " + patchesType + "(classPool, mappings)" : "null").append(";\n\t}\n\n");
+		sb.append("\t@Override\n\tpublic java.util.List<Entry> getPatches() {\n");
+		sb.append("\t\tjava.util.List<Entry> patches = new java.util.ArrayList<>();\n");
+		for (ExecutableElement method : methods) {
+			List<? extends VariableElement> parameters = method.getParameters();
+			if (method.getModifiers().contains(Modifier.PRIVATE) || method.getModifiers().contains(Modifier.STATIC) || parameters.isEmpty() || parameters.size() > 2) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "@Patch methods must be non-private instance methods taking a target and optionally attributes", method);
+				continue;
+			}
+			String name = "";
+			String requiredAttributes = "";
+			boolean emptyConstructor = true;
+			for (AnnotationMirror mirror : method.getAnnotationMirrors()) {
+				if (!mirror.getAnnotationType().toString().equals(PATCH)) {
+					continue;
+				}
+				for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value : processingEnv.getElementUtils().getElementValuesWithDefaults(mirror).entrySet()) {
+					switch (value.getKey().getSimpleName().toString()) {
+						case "name":
+							name = (String) value.getValue().getValue();
+							break;
+						case "requiredAttributes":
+							requiredAttributes = (String) value.getValue().getValue();
+							break;
+						case "emptyConstructor":
+							emptyConstructor = (Boolean) value.getValue().getValue();
+							break;
+					}
+				}
+			}
+			if (name.isEmpty()) {
+				name = method.getSimpleName().toString();
+			}
+			boolean takesAttributes = parameters.size() == 2;
+			TypeMirror targetType = types.erasure(parameters.get(0).asType());
+			boolean returnsValue = !method.getReturnType().toString().equals("void");
+			sb.append("\t\tpatches.add(new Entry(").append(literal(name)).append(", ").append(literal(requiredAttributes)).append(", ")
+				.append(takesAttributes).append(", ").append(targetType).append(".class, ").append(emptyConstructor).append(", new Invoker() {\n");
+			sb.append("\t\t\t@Override\n\t\t\tpublic Object invoke(Object patches, Object target, java.util.Map<String, String> attributes) throws Throwable {\n");
+			sb.append("\t\t\t\t").append(returnsValue ? "return " : "").append("((").append(patchesType).append(") patches).").append(method.getSimpleName())
+				.append("((").append(targetType).append(") target").append(takesAttributes ? ", attributes" : "").append(");\n");
+			if (!returnsValue) {
+				sb.append("\t\t\t\treturn null;\n");
+			}
+			sb.append("\t\t\t}\n\t\t}));\n");
+		}
+		sb.append("\t\treturn patches;\n\t}\n}\n");
+
+		try (Writer writer = processingEnv.getFiler().createSourceFile((packageName.isEmpty() ? "" : packageName + '.') + registryName, patchesClass).openWriter()) {
+			writer.write(sb.toString());
+		}
+	}
+
+	private static boolean hasPatcherConstructor(TypeElement patchesClass) {
+		if (patchesClass.getModifiers().contains(Modifier.ABSTRACT)) {
+			return false;
+		}
+		for (Element element : patchesClass.getEnclosedElements()) {
+			if (element.getKind() != ElementKind.CONSTRUCTOR || element.getModifiers().contains(Modifier.PRIVATE)) {
+				continue;
+			}
+			List<? extends VariableElement> parameters = ((ExecutableElement) element).getParameters();
+			if (parameters.size() == 2 && parameters.get(0).asType().toString().equals("javassist.ClassPool")
+				&& parameters.get(1).asType().toString().equals("me.nallar.javapatcher.mappings.Mappings")) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
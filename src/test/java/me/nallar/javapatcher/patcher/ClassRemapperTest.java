@@ -0,0 +1,107 @@
+package me.nallar.javapatcher.patcher;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.bytecode.*;
+import me.nallar.javapatcher.mappings.DefaultMappings;
+import me.nallar.javapatcher.mappings.MethodDescription;
+import org.junit.Test;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class ClassRemapperTest {
+	private static final String GENERATED = ClassRemapperTest.class.getName() + "$Generated";
+	private static final String METAFACTORY_DESCRIPTOR = "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+		+ "Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;";
+
+	private static void addMethod(ClassFile classFile, String name, String descriptor, Bytecode bytecode) throws DuplicateMemberException {
+		MethodInfo methodInfo = new MethodInfo(classFile.getConstPool(), name, descriptor);
+		methodInfo.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.STATIC);
+		bytecode.setMaxStack(1);
+		methodInfo.setCodeAttribute(bytecode.toCodeAttribute());
+		classFile.addMethod(methodInfo);
+	}
+
+	/**
+	 * Generates a class which calls its answer method directly, through a method handle constant loaded with ldc,
+	 * and through a lambda. Javac can't be used as these tests are compiled for Java 7.
+	 */
+	private static void generate(ClassPool classPool) throws DuplicateMemberException {
+		CtClass ctClass = classPool.makeClass(GENERATED);
+		ClassFile classFile = ctClass.getClassFile();
+		classFile.setMajorVersion(ClassFile.JAVA_7);
+		ConstPool constPool = classFile.getConstPool();
+		int answer = constPool.addMethodrefInfo(constPool.addClassInfo(GENERATED), "answer", "()Ljava/lang/Integer;");
+		int handle = constPool.addMethodHandleInfo(ConstPool.REF_invokeStatic, answer);
+		// Handles added when remapping don't fit in ldc's one byte index
+		for (int i = 0; i < 300; i++) {
+			constPool.addIntegerInfo(1000000 + i);
+		}
+		int metafactory = constPool.addMethodHandleInfo(ConstPool.REF_invokeStatic,
+			constPool.addMethodrefInfo(constPool.addClassInfo("java.lang.invoke.LambdaMetafactory"), "metafactory", METAFACTORY_DESCRIPTOR));
+		int erasedType = constPool.addMethodTypeInfo(constPool.addUtf8Info("()Ljava/lang/Object;"));
+		int instantiatedType = constPool.addMethodTypeInfo(constPool.addUtf8Info("()Ljava/lang/Integer;"));
+		classFile.addAttribute(new BootstrapMethodsAttribute(constPool, new BootstrapMethodsAttribute.BootstrapMethod[]{
+			new BootstrapMethodsAttribute.BootstrapMethod(metafactory, new int[]{erasedType, handle, instantiatedType})}));
+
+		Bytecode bytecode = new Bytecode(constPool);
+		bytecode.addIconst(42);
+		bytecode.addInvokestatic("java.lang.Integer", "valueOf", "(I)Ljava/lang/Integer;");
+		bytecode.addOpcode(Opcode.ARETURN);
+		addMethod(classFile, "answer", "()Ljava/lang/Integer;", bytecode);
+
+		bytecode = new Bytecode(constPool);
+		bytecode.addOpcode(Opcode.INVOKESTATIC);
+		bytecode.addIndex(answer);
+		bytecode.addOpcode(Opcode.ARETURN);
+		addMethod(classFile, "direct", "()Ljava/lang/Object;", bytecode);
+
+		bytecode = new Bytecode(constPool);
+		bytecode.addLdc(handle);
+		bytecode.addOpcode(Opcode.ARETURN);
+		addMethod(classFile, "handle", "()Ljava/lang/Object;", bytecode);
+
+		bytecode = new Bytecode(constPool);
+		bytecode.addInvokedynamic(0, "call", "()Ljava/util/concurrent/Callable;");
+		bytecode.addOpcode(Opcode.ARETURN);
+		addMethod(classFile, "lambda", "()Ljava/lang/Object;", bytecode);
+	}
+
+	@Test
+	public void replaceClassWithMappings() throws Throwable {
+		Patcher patcher = new Patcher(new ClassPool(true), Patches.class, new RenamingMappings());
+		generate(patcher.getClassPool());
+		patcher.loadPatches(PatchTestUtil.patchXml(Target.class, "<replaceClass class=\"" + GENERATED + "\"/>"));
+		byte[] bytes = patcher.patch(Target.class.getName(), PatchTestUtil.originalBytes(Target.class));
+		assertEquals(Opcode.LDC_W, PatchTestUtil.code(bytes, "handle").iterator().byteAt(0));
+		Class<?> patched = PatchTestUtil.load(Target.class.getName(), bytes);
+		assertNotNull(patched.getMethod("renamedAnswer"));
+		try {
+			patched.getMethod("answer");
+			fail("answer was not renamed");
+		} catch (NoSuchMethodException ignored) {
+		}
+		assertEquals(42, PatchTestUtil.invoke(patched, "direct"));
+		assertEquals(42, ((MethodHandle) PatchTestUtil.invoke(patched, "handle")).invokeWithArguments());
+		assertEquals(42, ((Callable<?>) PatchTestUtil.invoke(patched, "lambda")).call());
+	}
+
+	public static class Target {
+	}
+
+	/**
+	 * Renames Target.answer to renamedAnswer
+	 */
+	private static class RenamingMappings extends DefaultMappings {
+		@Override
+		public MethodDescription map(MethodDescription methodDescription) {
+			if (methodDescription.clazz.equals(Target.class.getName()) && methodDescription.name.equals("answer")) {
+				return new MethodDescription(methodDescription.clazz, "renamedAnswer", '(' + methodDescription.parameters + ')' + methodDescription.returnType);
+			}
+			return methodDescription;
+		}
+	}
+}
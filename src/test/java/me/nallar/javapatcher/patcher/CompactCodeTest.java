@@ -0,0 +1,36 @@
+package me.nallar.javapatcher.patcher;
+
+import javassist.bytecode.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CompactCodeTest {
+	@Test
+	public void removeUnreachableCode() throws Throwable {
+		int originalLength = PatchTestUtil.code(PatchTestUtil.originalBytes(Fixture.class), "compute").getCodeLength();
+		// Returning at the start makes the whole original body unreachable
+		byte[] bytes = PatchTestUtil.patch(Fixture.class, "<insertCodeBefore code=\"{ if ($1 == 0) { return 0; } return ($r) 42; }\">compute</insertCodeBefore><compactCode>compute</compactCode>");
+		CodeAttribute compute = PatchTestUtil.code(bytes, "compute");
+		assertTrue("Unreachable code wasn't removed", compute.getCodeLength() < originalLength);
+		CodeIterator iterator = compute.iterator();
+		while (iterator.hasNext()) {
+			int pos = iterator.next();
+			assertNotEquals("NOP left at " + pos, Opcode.NOP, iterator.byteAt(pos));
+		}
+
+		Object fixture = PatchTestUtil.newInstance(PatchTestUtil.load(Fixture.class.getName(), bytes));
+		assertEquals(0, PatchTestUtil.invoke(fixture, "compute", 0));
+		assertEquals(42, PatchTestUtil.invoke(fixture, "compute", 5));
+	}
+
+	public static class Fixture {
+		public int compute(int x) {
+			int total = 0;
+			for (int i = 0; i < x; i++) {
+				total += i * i;
+			}
+			return total;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package me.nallar.javapatcher.patcher;
+
+import javassist.ClassPool;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CompiledCodeCacheTest {
+	@Test
+	public void insertBeforeCanReturn() throws Throwable {
+		String code = "{ if ($1 &lt; 0) { return ($r) 0; } }";
+		Object fixture = PatchTestUtil.newInstance(PatchTestUtil.patchAndLoad(Fixture.class,
+			"<insertCodeBefore code=\"" + code + "\">first</insertCodeBefore><insertCodeBefore code=\"" + code + "\">second</insertCodeBefore>"));
+		assertEquals(0, PatchTestUtil.invoke(fixture, "first", -5));
+		assertEquals(5, PatchTestUtil.invoke(fixture, "first", 5));
+		assertEquals(0, PatchTestUtil.invoke(fixture, "second", -5));
+		assertEquals(6, PatchTestUtil.invoke(fixture, "second", 5));
+	}
+
+	@Test
+	public void insertAfterOutsideHandlers() throws Throwable {
+		Object fixture = PatchTestUtil.newInstance(PatchTestUtil.patchAndLoad(Fixture.class,
+			"<insertCodeAfter code=\"{ if ($_ == 5) { throw new IllegalStateException(); } }\">tryReturn</insertCodeAfter>"));
+		assertEquals(3, PatchTestUtil.invoke(fixture, "tryReturn", 3));
+		assertEquals(0, PatchTestUtil.invoke(fixture, "tryReturn", -3));
+		try {
+			PatchTestUtil.invoke(fixture, "tryReturn", 5);
+			fail("Exception from inserted code was caught by the method's handler");
+		} catch (IllegalStateException expected) {
+		}
+	}
+
+	@Test
+	public void addCatch() throws Throwable {
+		Object fixture = PatchTestUtil.newInstance(PatchTestUtil.patchAndLoad(Fixture.class,
+			"<catchAndIgnoreExceptions exceptionClass=\"java.lang.IllegalArgumentException\" code=\"return -1;\">check</catchAndIgnoreExceptions>"));
+		assertEquals(4, PatchTestUtil.invoke(fixture, "check", 4));
+		assertEquals(-1, PatchTestUtil.invoke(fixture, "check", -4));
+	}
+
+	@Test
+	public void setBody() throws Throwable {
+		String code = "{ return $1 * 3; }";
+		Object fixture = PatchTestUtil.newInstance(PatchTestUtil.patchAndLoad(Fixture.class,
+			"<replaceMethod code=\"" + code + "\">first</replaceMethod><replaceMethod code=\"" + code + "\">second</replaceMethod>"));
+		assertEquals(6, PatchTestUtil.invoke(fixture, "first", 2));
+		assertEquals(9, PatchTestUtil.invoke(fixture, "second", 3));
+	}
+
+	@Test
+	public void makeMethodInClassesWithDifferentFieldTypes() throws Throwable {
+		String addMethod = "<addMethod code=\"public String describe() { return String.valueOf(value); }\"/>";
+		Patcher patcher = new Patcher(new ClassPool(true));
+		patcher.loadPatches("<patches><test><class id=\"" + IntHolder.class.getName() + "\">" + addMethod + "</class>"
+			+ "<class id=\"" + LongHolder.class.getName() + "\">" + addMethod + "</class></test></patches>");
+		Object intHolder = PatchTestUtil.newInstance(PatchTestUtil.load(IntHolder.class.getName(), patcher.patch(IntHolder.class.getName(), PatchTestUtil.originalBytes(IntHolder.class))));
+		Object longHolder = PatchTestUtil.newInstance(PatchTestUtil.load(LongHolder.class.getName(), patcher.patch(LongHolder.class.getName(), PatchTestUtil.originalBytes(LongHolder.class))));
+		assertEquals("1", PatchTestUtil.invoke(intHolder, "describe"));
+		assertEquals("4294967296", PatchTestUtil.invoke(longHolder, "describe"));
+	}
+
+	public static class Fixture {
+		public int first(int x) {
+			return x;
+		}
+
+		public int second(int x) {
+			return x + 1;
+		}
+
+		public int tryReturn(int x) {
+			try {
+				if (x > 0) {
+					return x;
+				}
+			} catch (RuntimeException e) {
+				return -1;
+			}
+			return 0;
+		}
+
+		public int check(int x) {
+			if (x < 0) {
+				throw new IllegalArgumentException();
+			}
+			return x;
+		}
+	}
+
+	public static class IntHolder {
+		public int value = 1;
+	}
+
+	public static class LongHolder {
+		public long value = 1L << 32;
+	}
+}
@@ -0,0 +1,92 @@
+package me.nallar.javapatcher.patcher;
+
+import javassist.bytecode.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InlineMethodCallTest {
+	private static final String PATCHES = "<inlineMethodCall method=\"square\">compute</inlineMethodCall>"
+		+ "<inlineMethodCall method=\"twice\">compute</inlineMethodCall>"
+		+ "<inlineMethodCall method=\"base\">compute</inlineMethodCall>"
+		+ "<inlineMethodCall method=\"parse\">safeParse</inlineMethodCall>"
+		+ "<inlineMethodCall method=\"overridable\">callOverridable</inlineMethodCall>";
+
+	/**
+	 * @return Number of calls to methods with the given name
+	 */
+	private static int calls(CodeAttribute codeAttribute, String name) throws BadBytecode {
+		ConstPool constPool = codeAttribute.getConstPool();
+		CodeIterator iterator = codeAttribute.iterator();
+		int calls = 0;
+		while (iterator.hasNext()) {
+			int pos = iterator.next();
+			int op = iterator.byteAt(pos);
+			if ((op == Opcode.INVOKEVIRTUAL || op == Opcode.INVOKESPECIAL || op == Opcode.INVOKESTATIC) && constPool.getMethodrefName(iterator.u16bitAt(pos + 1)).equals(name)) {
+				calls++;
+			}
+		}
+		return calls;
+	}
+
+	@Test
+	public void inlineCalls() throws Throwable {
+		byte[] bytes = PatchTestUtil.patch(Fixture.class, PATCHES);
+		CodeAttribute compute = PatchTestUtil.code(bytes, "compute");
+		assertEquals(0, calls(compute, "square"));
+		assertEquals(0, calls(compute, "twice"));
+		assertEquals(0, calls(compute, "base"));
+		assertEquals(0, calls(PatchTestUtil.code(bytes, "safeParse"), "parse"));
+		assertEquals("Overridable method was inlined", 1, calls(PatchTestUtil.code(bytes, "callOverridable"), "overridable"));
+
+		Object fixture = PatchTestUtil.newInstance(PatchTestUtil.load(Fixture.class.getName(), bytes));
+		assertEquals(25, PatchTestUtil.invoke(fixture, "compute", 3));
+		assertEquals(2, PatchTestUtil.invoke(fixture, "compute", -2));
+		assertEquals(12, PatchTestUtil.invoke(fixture, "safeParse", "12"));
+		assertEquals(-1, PatchTestUtil.invoke(fixture, "safeParse", "twelve"));
+		assertEquals(4, PatchTestUtil.invoke(fixture, "callOverridable", 4));
+	}
+
+	public static class Fixture {
+		private int base = 10;
+
+		private static int twice(int x) {
+			return x * 2;
+		}
+
+		private static int parse(String s) {
+			try {
+				return Integer.parseInt(s);
+			} catch (NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		public int compute(int x) {
+			return square(x) + twice(x) + base();
+		}
+
+		public int safeParse(String s) {
+			return parse(s);
+		}
+
+		public int callOverridable(int x) {
+			return overridable(x);
+		}
+
+		public int overridable(int x) {
+			return x;
+		}
+
+		private int square(int x) {
+			if (x < 0) {
+				return x * -x;
+			}
+			return x * x;
+		}
+
+		private int base() {
+			return base;
+		}
+	}
+}
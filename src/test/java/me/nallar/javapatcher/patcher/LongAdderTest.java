@@ -0,0 +1,94 @@
+package me.nallar.javapatcher.patcher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LongAdderTest {
+	@Test
+	public void replaceCounters() throws Throwable {
+		final Object fixture = PatchTestUtil.newInstance(PatchTestUtil.patchAndLoad(Fixture.class,
+			"<replaceFieldWithLongAdder field=\"count\"/><replaceFieldWithLongAdder field=\"total\"/>"));
+		PatchTestUtil.invoke(fixture, "increment", false);
+		PatchTestUtil.invoke(fixture, "increment", true);
+		PatchTestUtil.invoke(fixture, "subtract", true, 3);
+		PatchTestUtil.invoke(fixture, "subtract", false, 5);
+		assertEquals(-2, PatchTestUtil.invoke(fixture, "getCount"));
+		PatchTestUtil.invoke(fixture, "set", 10);
+		assertEquals(10, PatchTestUtil.invoke(fixture, "getCount"));
+		PatchTestUtil.invoke(fixture, "add", 7L);
+		PatchTestUtil.invoke(fixture, "add", -2L);
+		assertEquals(5L, PatchTestUtil.invoke(fixture, "getTotal"));
+	}
+
+	@Test
+	public void usedIncrementResult() throws Throwable {
+		// Not a simple increment, so this takes the non-atomic reset and add path
+		Object fixture = PatchTestUtil.newInstance(PatchTestUtil.patchAndLoad(Fixture.class, "<replaceFieldWithLongAdder field=\"count\"/>"));
+		assertEquals(0, PatchTestUtil.invoke(fixture, "getAndIncrement"));
+		assertEquals(1, PatchTestUtil.invoke(fixture, "getAndIncrement"));
+		assertEquals(2, PatchTestUtil.invoke(fixture, "getCount"));
+	}
+
+	@Test
+	public void concurrentIncrements() throws Throwable {
+		final Object fixture = PatchTestUtil.newInstance(PatchTestUtil.patchAndLoad(Fixture.class, "<replaceFieldWithLongAdder field=\"count\"/>"));
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 10000; j++) {
+							PatchTestUtil.invoke(fixture, "increment", true);
+						}
+					} catch (Throwable t) {
+						throw new AssertionError(t);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(40000, PatchTestUtil.invoke(fixture, "getCount"));
+	}
+
+	public static class Fixture {
+		public int count;
+		public long total;
+
+		public void increment(boolean really) {
+			if (really) {
+				count++;
+			}
+		}
+
+		public void subtract(boolean really, int x) {
+			if (really) {
+				count -= x;
+			}
+		}
+
+		public int getAndIncrement() {
+			return count++;
+		}
+
+		public void add(long x) {
+			total += x;
+		}
+
+		public void set(int count) {
+			this.count = count;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public long getTotal() {
+			return total;
+		}
+	}
+}
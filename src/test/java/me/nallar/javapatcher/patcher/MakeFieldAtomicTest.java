@@ -0,0 +1,100 @@
+package me.nallar.javapatcher.patcher;
+
+import org.junit.Test;
+
+import java.lang.reflect.Modifier;
+
+import static org.junit.Assert.*;
+
+public class MakeFieldAtomicTest {
+	private static final String PATCHES = "<makeFieldAtomic field=\"count\"/><makeFieldAtomic field=\"total\"/><makeFieldAtomic field=\"value\"/>";
+
+	@Test
+	public void atomicUpdates() throws Throwable {
+		Class<?> patched = PatchTestUtil.patchAndLoad(Fixture.class, PATCHES);
+		assertTrue(Modifier.isVolatile(patched.getDeclaredField("count").getModifiers()));
+		Object fixture = PatchTestUtil.newInstance(patched);
+		PatchTestUtil.invoke(fixture, "increment");
+		assertEquals(1, PatchTestUtil.invoke(fixture, "getAndIncrement"));
+		assertEquals(7, PatchTestUtil.invoke(fixture, "addAndGet", 5));
+		PatchTestUtil.invoke(fixture, "decrement");
+		assertEquals(6, PatchTestUtil.invoke(fixture, "getCount"));
+		PatchTestUtil.invoke(fixture, "addTotal", 1L << 40);
+		PatchTestUtil.invoke(fixture, "addTotal", -1L);
+		assertEquals((1L << 40) - 1, PatchTestUtil.invoke(fixture, "getTotal"));
+		assertEquals("first", PatchTestUtil.invoke(fixture, "init", "first"));
+		assertEquals("first", PatchTestUtil.invoke(fixture, "init", "second"));
+	}
+
+	@Test
+	public void concurrentUpdates() throws Throwable {
+		final Object fixture = PatchTestUtil.newInstance(PatchTestUtil.patchAndLoad(Fixture.class, PATCHES));
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			final String value = "thread" + i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 10000; j++) {
+							PatchTestUtil.invoke(fixture, "increment");
+							PatchTestUtil.invoke(fixture, "addTotal", 2L);
+							PatchTestUtil.invoke(fixture, "init", value);
+						}
+					} catch (Throwable t) {
+						throw new AssertionError(t);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(40000, PatchTestUtil.invoke(fixture, "getCount"));
+		assertEquals(80000L, PatchTestUtil.invoke(fixture, "getTotal"));
+		assertNotNull(PatchTestUtil.invoke(fixture, "init", "late"));
+		assertNotEquals("late", PatchTestUtil.invoke(fixture, "init", "late"));
+	}
+
+	public static class Fixture {
+		private int count;
+		private long total;
+		private String value;
+
+		public void increment() {
+			count++;
+		}
+
+		public void decrement() {
+			count--;
+		}
+
+		public int getAndIncrement() {
+			return count++;
+		}
+
+		public int addAndGet(int x) {
+			return count += x;
+		}
+
+		public void addTotal(long x) {
+			total += x;
+		}
+
+		public String init(String value) {
+			if (this.value == null) {
+				this.value = value;
+			}
+			return this.value;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public long getTotal() {
+			return total;
+		}
+	}
+}
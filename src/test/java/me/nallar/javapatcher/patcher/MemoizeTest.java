@@ -0,0 +1,39 @@
+package me.nallar.javapatcher.patcher;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.*;
+
+public class MemoizeTest {
+	@Test
+	public void instanceCacheCreatedOnFirstCall() throws Throwable {
+		Class<?> patched = PatchTestUtil.patchAndLoad(Fixture.class, "<memoize>square</memoize>");
+		Object fixture = PatchTestUtil.newInstance(patched);
+		Field cacheField = patched.getDeclaredField("__memoCache0");
+		cacheField.setAccessible(true);
+		assertNull(cacheField.get(fixture));
+		assertEquals(9L, PatchTestUtil.invoke(fixture, "square", 3));
+		Object cache = cacheField.get(fixture);
+		assertNotNull(cache);
+		assertEquals(9L, PatchTestUtil.invoke(fixture, "square", 3));
+		assertEquals(16L, PatchTestUtil.invoke(fixture, "square", 4));
+		assertSame(cache, cacheField.get(fixture));
+		assertEquals(2, PatchTestUtil.invoke(fixture, "getCalls"));
+		assertNull(cacheField.get(PatchTestUtil.newInstance(patched)));
+	}
+
+	public static class Fixture {
+		private int calls;
+
+		public long square(int x) {
+			calls++;
+			return (long) x * x;
+		}
+
+		public int getCalls() {
+			return calls;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package me.nallar.javapatcher.patcher;
+
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ParallelPatchingTest {
+	private static final String PATCHES = "<addMethod code=\"public int patched() { return 1; }\"/>";
+
+	@Test
+	public void patchOnWorkers() throws Throwable {
+		List<Class<?>> fixtures = Arrays.<Class<?>>asList(First.class, Second.class, Third.class);
+		StringBuilder xml = new StringBuilder("<patches><test>");
+		List<String> classNames = new ArrayList<>();
+		for (Class<?> fixture : fixtures) {
+			xml.append("<class id=\"").append(fixture.getName()).append("\">").append(PATCHES).append("</class>");
+			classNames.add(fixture.getName());
+		}
+		Patcher patcher = new Patcher(new ClassPool(true));
+		patcher.loadPatches(xml.append("</test></patches>").toString());
+		patcher.setParallelism(2);
+		Map<String, byte[]> patched = patcher.patchAll(classNames);
+		assertEquals(new HashSet<>(classNames), patched.keySet());
+		for (String className : classNames) {
+			Object fixture = PatchTestUtil.newInstance(PatchTestUtil.load(className, patched.get(className)));
+			assertEquals(1, PatchTestUtil.invoke(fixture, "patched"));
+			assertEquals(className.substring(className.lastIndexOf('$') + 1), PatchTestUtil.invoke(fixture, "name"));
+		}
+	}
+
+	@Test
+	public void missesAreNotCached() throws Throwable {
+		ClassPool source = new ClassPool(false);
+		SharedClassPath sharedClassPath = new SharedClassPath(source);
+		String className = First.class.getName();
+		assertNull(sharedClassPath.openClassfile(className));
+		source.appendClassPath(new ClassClassPath(First.class));
+		assertNotNull("Class added to the source's class path after a miss wasn't found", sharedClassPath.openClassfile(className));
+		assertNotNull(sharedClassPath.find(className));
+	}
+
+	public static class First {
+		public String name() {
+			return "First";
+		}
+	}
+
+	public static class Second {
+		public String name() {
+			return "Second";
+		}
+	}
+
+	public static class Third {
+		public String name() {
+			return "Third";
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package me.nallar.javapatcher.patcher;
+
+import com.google.common.io.ByteStreams;
+import javassist.ClassPool;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+
+import java.io.*;
+
+/**
+ * Patches fixture classes and loads the patched classes, so that tests fail if patched bytecode doesn't verify.
+ *
+ * Fixtures must be public and only use public members of other classes, as patched fixtures are defined in
+ * their own class loader.
+ */
+enum PatchTestUtil {
+	;
+
+	/**
+	 * @param target  Fixture class to patch
+	 * @param patches Patch elements for the fixture class
+	 * @return Patch document containing one class patch
+	 */
+	static String patchXml(Class<?> target, String patches) {
+		return "<patches><test><class id=\"" + target.getName() + "\">" + patches + "</class></test></patches>";
+	}
+
+	/**
+	 * @return Patcher with its own ClassPool, with the given patches for target loaded
+	 */
+	static Patcher patcher(Class<?> target, String patches) {
+		Patcher patcher = new Patcher(new ClassPool(true));
+		patcher.loadPatches(patchXml(target, patches));
+		return patcher;
+	}
+
+	static byte[] originalBytes(Class<?> target) {
+		String resource = '/' + target.getName().replace('.', '/') + ".class";
+		try (InputStream inputStream = target.getResourceAsStream(resource)) {
+			return ByteStreams.toByteArray(inputStream);
+		} catch (IOException e) {
+			throw new IOError(e);
+		}
+	}
+
+	/**
+	 * @return Patched bytes of target
+	 * @throws AssertionError if the class wasn't patched
+	 */
+	static byte[] patch(Class<?> target, String patches) {
+		byte[] originalBytes = originalBytes(target);
+		byte[] bytes = patcher(target, patches).patch(target.getName(), originalBytes);
+		if (bytes == null || bytes == originalBytes) {
+			throw new AssertionError("Failed to patch " + target.getName());
+		}
+		return bytes;
+	}
+
+	/**
+	 * Patches target and loads the patched class
+	 *
+	 * @throws AssertionError if the class wasn't patched
+	 */
+	static Class<?> patchAndLoad(Class<?> target, String patches) {
+		return load(target.getName(), patch(target, patches));
+	}
+
+	/**
+	 * @return Code of the first method with the given name in a class file
+	 */
+	static CodeAttribute code(byte[] bytes, String method) {
+		try {
+			return new ClassFile(new DataInputStream(new ByteArrayInputStream(bytes))).getMethod(method).getCodeAttribute();
+		} catch (IOException e) {
+			throw new IOError(e);
+		}
+	}
+
+	/**
+	 * Defines and initializes a class, which verifies it
+	 */
+	static Class<?> load(String className, byte[] bytes) {
+		try {
+			return Class.forName(className, true, new PatchedClassLoader(className, bytes));
+		} catch (ClassNotFoundException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * @return New instance of a patched class with a public no-argument constructor
+	 */
+	static Object newInstance(Class<?> patched) {
+		try {
+			return patched.getConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Calls a public method, unwrapping exceptions it throws
+	 */
+	static Object invoke(Object target, String name, Object... arguments) throws Throwable {
+		Class<?> clazz = target instanceof Class ? (Class<?>) target : target.getClass();
+		for (java.lang.reflect.Method method : clazz.getMethods()) {
+			if (method.getName().equals(name) && method.getParameterTypes().length == arguments.length) {
+				try {
+					return method.invoke(target instanceof Class ? null : target, arguments);
+				} catch (java.lang.reflect.InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		}
+		throw new AssertionError("No method " + name + " in " + clazz.getName());
+	}
+
+	private static class PatchedClassLoader extends ClassLoader {
+		private final String className;
+		private final byte[] bytes;
+
+		PatchedClassLoader(String className, byte[] bytes) {
+			super(PatchTestUtil.class.getClassLoader());
+			this.className = className;
+			this.bytes = bytes;
+		}
+
+		@Override
+		protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (!name.equals(className)) {
+				return super.loadClass(name, resolve);
+			}
+			Class<?> loaded = findLoadedClass(name);
+			if (loaded == null) {
+				loaded = defineClass(name, bytes, 0, bytes.length);
+			}
+			if (resolve) {
+				resolveClass(loaded);
+			}
+			return loaded;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package me.nallar.javapatcher.patcher;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class PrePatchingTest {
+	private static final String PATCHES = "<addMethod code=\"public int patched() { return 1; }\"/>";
+
+	@Test
+	public void loadWhilePrePatching() throws Throwable {
+		loadWhilePrePatching(1);
+	}
+
+	@Test
+	public void loadWhilePrePatchingInParallel() throws Throwable {
+		loadWhilePrePatching(2);
+	}
+
+	private void loadWhilePrePatching(int parallelism) throws Throwable {
+		byte[] originalBytes = PatchTestUtil.originalBytes(Fixture.class);
+		for (int i = 0; i < 50; i++) {
+			Patcher patcher = PatchTestUtil.patcher(Fixture.class, PATCHES);
+			patcher.setParallelism(parallelism);
+			patcher.startPrePatching(profile());
+			byte[] bytes = patcher.patch(Fixture.class.getName(), originalBytes);
+			assertNotSame("Class loaded unpatched while being pre-patched", originalBytes, bytes);
+			assertSame(bytes, patcher.patch(Fixture.class.getName(), originalBytes));
+			Object fixture = PatchTestUtil.newInstance(PatchTestUtil.load(Fixture.class.getName(), bytes));
+			assertEquals(1, PatchTestUtil.invoke(fixture, "patched"));
+			patcher.stopPrePatching();
+		}
+	}
+
+	@Test
+	public void startTwice() throws Throwable {
+		Patcher patcher = PatchTestUtil.patcher(Fixture.class, PATCHES);
+		File profile = profile();
+		patcher.startPrePatching(profile);
+		try {
+			patcher.startPrePatching(profile);
+			fail("Pre-patching started twice");
+		} catch (IllegalStateException ignored) {
+		}
+		patcher.patch(Fixture.class.getName(), PatchTestUtil.originalBytes(Fixture.class));
+		patcher.stopPrePatching();
+		assertEquals(Fixture.class.getName(), Files.toString(profile, Charsets.UTF_8));
+		patcher.stopPrePatching();
+		patcher.startPrePatching(profile);
+		patcher.stopPrePatching();
+	}
+
+	private static File profile() throws IOException {
+		File profile = File.createTempFile("classLoadProfile", ".txt");
+		profile.deleteOnExit();
+		return profile;
+	}
+
+	public static class Fixture {
+	}
+}
@@ -0,0 +1,121 @@
+package me.nallar.javapatcher.patcher;
+
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.Opcode;
+import me.nallar.javapatcher.collections.IntArrayList;
+import me.nallar.javapatcher.collections.IntObjectHashMap;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PrimitiveCollectionTest {
+	private static final String PATCHES = "<replaceWithPrimitiveCollection field=\"names\"/><replaceWithPrimitiveCollection field=\"values\"/>";
+
+	/**
+	 * @return Whether method calls a method with the given name
+	 */
+	private static boolean calls(byte[] bytes, String method, String name) throws BadBytecode {
+		CodeAttribute codeAttribute = PatchTestUtil.code(bytes, method);
+		CodeIterator iterator = codeAttribute.iterator();
+		while (iterator.hasNext()) {
+			int pos = iterator.next();
+			int op = iterator.byteAt(pos);
+			if ((op == Opcode.INVOKESTATIC || op == Opcode.INVOKEVIRTUAL) && codeAttribute.getConstPool().getMethodrefName(iterator.u16bitAt(pos + 1)).equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Test
+	public void replaceCollections() throws Throwable {
+		byte[] bytes = PatchTestUtil.patch(Fixture.class, PATCHES);
+		assertFalse(calls(bytes, "put", "valueOf"));
+		assertFalse(calls(bytes, "get", "valueOf"));
+		assertFalse(calls(bytes, "add", "valueOf"));
+		assertFalse(calls(bytes, "first", "intValue"));
+		assertTrue(calls(bytes, "first", "getInt"));
+		Class<?> patched = PatchTestUtil.load(Fixture.class.getName(), bytes);
+		assertEquals(IntObjectHashMap.class, patched.getDeclaredField("names").getType());
+		assertEquals(IntArrayList.class, patched.getDeclaredField("values").getType());
+		Object fixture = PatchTestUtil.newInstance(patched);
+		PatchTestUtil.invoke(fixture, "put", 1, "one");
+		PatchTestUtil.invoke(fixture, "put", -5, "minus five");
+		assertEquals("one", PatchTestUtil.invoke(fixture, "get", 1));
+		assertEquals("minus five", PatchTestUtil.invoke(fixture, "get", -5));
+		assertNull(PatchTestUtil.invoke(fixture, "get", 2));
+		assertEquals(true, PatchTestUtil.invoke(fixture, "has", 1));
+		assertEquals(2, PatchTestUtil.invoke(fixture, "size"));
+		PatchTestUtil.invoke(fixture, "add", 7);
+		PatchTestUtil.invoke(fixture, "add", 8);
+		assertEquals(7, PatchTestUtil.invoke(fixture, "first"));
+		PatchTestUtil.invoke(fixture, "clear");
+		assertNull(PatchTestUtil.invoke(fixture, "get", 1));
+	}
+
+	@Test
+	public void escapingField() throws Throwable {
+		Class<?> patched = PatchTestUtil.patchAndLoad(EscapingFixture.class, PATCHES);
+		assertEquals(Map.class, patched.getDeclaredField("names").getType());
+		assertEquals(ArrayList.class, patched.getDeclaredField("values").getType());
+		Object fixture = PatchTestUtil.newInstance(patched);
+		PatchTestUtil.invoke(fixture, "put", 1, "one");
+		assertEquals("one", ((Map<?, ?>) PatchTestUtil.invoke(fixture, "names")).get(1));
+	}
+
+	public static class Fixture {
+		private final Map<Integer, String> names = new HashMap<>();
+		private List<Integer> values = new ArrayList<>();
+
+		public void put(int key, String name) {
+			names.put(key, name);
+		}
+
+		public String get(int key) {
+			return names.get(key);
+		}
+
+		public boolean has(int key) {
+			return names.containsKey(key);
+		}
+
+		public int size() {
+			return names.size();
+		}
+
+		public void add(int value) {
+			values.add(value);
+		}
+
+		public int first() {
+			return values.get(0);
+		}
+
+		public void clear() {
+			names.clear();
+			values = null;
+		}
+	}
+
+	public static class EscapingFixture {
+		private Map<Integer, String> names = new HashMap<>();
+		private ArrayList<Integer> values = new ArrayList<>(4);
+
+		public void put(int key, String name) {
+			names.put(key, name);
+			values.add(key);
+		}
+
+		public Map<Integer, String> names() {
+			return names;
+		}
+
+		public void replace(ArrayList<Integer> values) {
+			this.values = values;
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package me.nallar.javapatcher.patcher;
+
+import me.nallar.javapatcher.profiling.MethodProfile;
+import me.nallar.javapatcher.profiling.Profiler;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ProfileMethodTest {
+	private static long invocations(String method) {
+		String name = Fixture.class.getName() + '.' + method;
+		for (MethodProfile profile : Profiler.snapshot()) {
+			if (profile.getName().equals(name)) {
+				return profile.getInvocations();
+			}
+		}
+		return 0;
+	}
+
+	@Test
+	public void profileAllMethods() throws Throwable {
+		Class<?> patched = PatchTestUtil.patchAndLoad(Fixture.class, "<profileMethod>^all^</profileMethod>");
+		Profiler.reset();
+		Object fixture = PatchTestUtil.newInstance(patched);
+		assertEquals(5, PatchTestUtil.invoke(fixture, "add", 2, 3));
+		assertEquals(16L, PatchTestUtil.invoke(patched, "square", 4L));
+		PatchTestUtil.invoke(fixture, "increment");
+		try {
+			PatchTestUtil.invoke(fixture, "fail");
+			fail("Exception was swallowed");
+		} catch (IllegalStateException ignored) {
+		}
+		assertEquals(1, invocations("add(II)I"));
+		assertEquals(1, invocations("square(J)J"));
+		assertEquals(1, invocations("increment()V"));
+		assertEquals(1, invocations("fail()V"));
+	}
+
+	@Test
+	public void sampledProfile() throws Throwable {
+		Class<?> patched = PatchTestUtil.patchAndLoad(Fixture.class, "<profileMethod sample=\"4\">increment</profileMethod>");
+		Object fixture = PatchTestUtil.newInstance(patched);
+		Profiler.reset();
+		for (int i = 0; i < 8; i++) {
+			PatchTestUtil.invoke(fixture, "increment");
+		}
+		assertEquals(8, PatchTestUtil.invoke(fixture, "getCount"));
+		assertEquals(8, invocations("increment()V"));
+	}
+
+	public static class Fixture {
+		public int count;
+
+		public Fixture() {
+			count = 0;
+		}
+
+		public static long square(long x) {
+			return x * x;
+		}
+
+		public int add(int a, int b) {
+			return a + b;
+		}
+
+		public void increment() {
+			count++;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		public void fail() {
+			throw new IllegalStateException();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package me.nallar.javapatcher.patcher;
+
+import org.junit.Test;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+import static org.junit.Assert.*;
+
+public class ReadWriteLockTest {
+	@Test(timeout = 10000)
+	public void privateHelpersAreNotLocked() throws Throwable {
+		Object fixture = PatchTestUtil.newInstance(PatchTestUtil.patchAndLoad(Fixture.class, "<readWriteLock field=\"lock\" optimistic=\"get\"/>"));
+		PatchTestUtil.invoke(fixture, "add", 3);
+		PatchTestUtil.invoke(fixture, "add", 4);
+		assertEquals(7, PatchTestUtil.invoke(fixture, "get"));
+		assertEquals(7, PatchTestUtil.invoke(fixture, "getLocked"));
+	}
+
+	@Test
+	public void inheritedCallsAreWrites() throws Throwable {
+		Object fixture = PatchTestUtil.newInstance(PatchTestUtil.patchAndLoad(InheritingFixture.class, "<readWriteLock field=\"lock\"/>"));
+		assertEquals(true, PatchTestUtil.invoke(fixture, "move", 3));
+		assertEquals(3, PatchTestUtil.invoke(fixture, "getPosition"));
+		assertEquals(false, PatchTestUtil.invoke(fixture, "describe"));
+	}
+
+	public static class Base {
+		private int position;
+
+		public void setPosition(int position) {
+			this.position = position;
+		}
+
+		public int getPosition() {
+			return position;
+		}
+	}
+
+	public static class InheritingFixture extends Base {
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+		/**
+		 * @return Whether the write lock is held while moving
+		 */
+		public boolean move(int position) {
+			setPosition(position);
+			return lock.isWriteLockedByCurrentThread();
+		}
+
+		/**
+		 * @return Whether the write lock is held, calling a method inherited from Object
+		 */
+		public boolean describe() {
+			toString();
+			return lock.isWriteLockedByCurrentThread();
+		}
+	}
+
+	public static class Fixture {
+		private final StampedLock lock = new StampedLock();
+		private int value;
+
+		public void add(int x) {
+			store(read() + x);
+		}
+
+		public int get() {
+			return read();
+		}
+
+		public int getLocked() {
+			return read();
+		}
+
+		private int read() {
+			return value;
+		}
+
+		private void store(int value) {
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package me.nallar.javapatcher.patcher;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RepatchTest {
+	private static final String PATCHES = "<addMethod code=\"public int patched() { return 1; }\"/>";
+
+	@Test
+	public void repatchNewBytes() throws Throwable {
+		repatchNewBytes(1);
+	}
+
+	@Test
+	public void repatchNewBytesInParallel() throws Throwable {
+		repatchNewBytes(2);
+	}
+
+	private void repatchNewBytes(int parallelism) throws Throwable {
+		String className = Fixture.class.getName();
+		Patcher patcher = PatchTestUtil.patcher(Fixture.class, PATCHES);
+		patcher.setParallelism(parallelism);
+		patcher.setRetainPatches(true);
+		Object fixture = PatchTestUtil.newInstance(PatchTestUtil.load(className, patcher.patch(className, PatchTestUtil.originalBytes(Fixture.class))));
+		assertEquals(1, PatchTestUtil.invoke(fixture, "version"));
+
+		byte[] bytes = patcher.repatch(className, changedBytes());
+		fixture = PatchTestUtil.newInstance(PatchTestUtil.load(className, bytes));
+		assertEquals(2, PatchTestUtil.invoke(fixture, "version"));
+		assertEquals(1, PatchTestUtil.invoke(fixture, "patched"));
+		assertSame(bytes, patcher.patch(className, null));
+	}
+
+	/**
+	 * @return Bytes of Fixture with version changed to return 2, as if the class was reloaded
+	 */
+	private static byte[] changedBytes() throws Exception {
+		CtClass ctClass = new ClassPool(true).get(Fixture.class.getName());
+		ctClass.getDeclaredMethod("version").setBody("{ return 2; }");
+		return ctClass.toBytecode();
+	}
+
+	public static class Fixture {
+		public int version() {
+			return 1;
+		}
+	}
+}
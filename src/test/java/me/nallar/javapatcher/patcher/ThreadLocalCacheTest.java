@@ -0,0 +1,85 @@
+package me.nallar.javapatcher.patcher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ThreadLocalCacheTest {
+	private static Object patch(String cache) {
+		return PatchTestUtil.newInstance(PatchTestUtil.patchAndLoad(Fixture.class,
+			"<replaceFieldWithThreadLocal field=\"value\" threadLocalField=\"values\" type=\"java.lang.String\" cache=\"" + cache + "\"/>"));
+	}
+
+	private static Object getOnOtherThread(final Object fixture) throws InterruptedException {
+		final Object[] result = new Object[1];
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					result[0] = PatchTestUtil.invoke(fixture, "get");
+				} catch (Throwable t) {
+					result[0] = t;
+				}
+			}
+		});
+		thread.start();
+		thread.join();
+		return result[0];
+	}
+
+	private static void check(Object fixture) throws Throwable {
+		PatchTestUtil.invoke(fixture, "set", "a");
+		assertEquals("abb", PatchTestUtil.invoke(fixture, "appendTwice", "b"));
+		assertEquals("abb", PatchTestUtil.invoke(fixture, "get"));
+		assertNull(getOnOtherThread(fixture));
+		try {
+			PatchTestUtil.invoke(fixture, "failAfterWrite", "c");
+			fail("Exception was swallowed");
+		} catch (IllegalStateException ignored) {
+		}
+		assertEquals("c", PatchTestUtil.invoke(fixture, "get"));
+		PatchTestUtil.invoke(fixture, "set", "a");
+		assertEquals("abb", PatchTestUtil.invoke(fixture, "appendThenSet", "b"));
+		assertEquals("abb", PatchTestUtil.invoke(fixture, "get"));
+	}
+
+	@Test
+	public void cacheUntilExit() throws Throwable {
+		check(patch("exit"));
+	}
+
+	@Test
+	public void cacheWriteThrough() throws Throwable {
+		check(patch("write"));
+	}
+
+	public static class Fixture {
+		public static final ThreadLocal<String> values = new ThreadLocal<>();
+		public String value;
+
+		public String get() {
+			return value;
+		}
+
+		public void set(String value) {
+			this.value = value;
+		}
+
+		public String appendTwice(String s) {
+			value = value + s;
+			value = value + s;
+			return value;
+		}
+
+		public String appendThenSet(String s) {
+			value = value + s;
+			set(value + s);
+			return value;
+		}
+
+		public void failAfterWrite(String s) {
+			value = s;
+			throw new IllegalStateException();
+		}
+	}
+}